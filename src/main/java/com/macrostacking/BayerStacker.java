@@ -0,0 +1,284 @@
+package com.macrostacking;
+
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferUShort;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stacks RAW files before demosaicing. Each frame is kept as its Bayer mosaic (2 bytes
+ * per pixel instead of a developed 16-bit RGB frame), aligned and scored on a half-size
+ * view with one pixel per 2x2 cell, and whole cells are picked or blended into a composite
+ * mosaic that is demosaiced once at the end. Alignment moves frames by whole cells so the
+ * CFA phase is kept. PYRAMID and LAPLACIAN have no mosaic-domain equivalent and pick the
+ * sharpest frame per cell, like MAX_CONTRAST.
+ */
+public class BayerStacker {
+    private final StackingAlgorithm algorithm;
+    private int threadCount;
+    private boolean autoAlign = true;
+    private FocusMeasure focusMeasure;
+
+    public BayerStacker(StackingAlgorithm algorithm) {
+        this.algorithm = algorithm;
+        this.threadCount = Runtime.getRuntime().availableProcessors();
+    }
+
+    public void setThreadCount(int count) {
+        this.threadCount = Math.max(1, count);
+    }
+
+    public void setAutoAlign(boolean autoAlign) {
+        this.autoAlign = autoAlign;
+    }
+
+    public void setFocusMeasure(FocusMeasure focusMeasure) {
+        this.focusMeasure = focusMeasure;
+    }
+
+    public BufferedImage stackImages(List<File> files, ImageStacker.ProgressCallback callback) throws Exception {
+        if (files.isEmpty()) {
+            throw new Exception("Aucune image à traiter");
+        }
+
+        RawDecoder.Mosaic[] mosaics = new RawDecoder.Mosaic[files.size()];
+        BufferedImage[] proxies = new BufferedImage[files.size()];
+        loadMosaics(files, mosaics, proxies, callback);
+
+        RawDecoder.Mosaic reference = mosaics[0];
+        int cellWidth = reference.width / 2;
+        int cellHeight = reference.height / 2;
+        callback.update(30, "Mosaïque: " + reference.width + "x" + reference.height);
+
+        ImageStacker stacker = new ImageStacker(algorithm);
+        stacker.setThreadCount(threadCount);
+        stacker.setFocusMeasure(focusMeasure);
+
+        Point[] offsets;
+        if (autoAlign && files.size() > 1) {
+            callback.update(30, "Alignement automatique...");
+            offsets = stacker.alignmentOffsets(proxies, callback);
+        } else {
+            offsets = new Point[files.size()];
+            for (int i = 0; i < offsets.length; i++) {
+                offsets[i] = new Point(0, 0);
+            }
+        }
+        StackFrame[] frames = new StackFrame[files.size()];
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = new TranslatedFrame(new BufferedStackFrame(proxies[i]), offsets[i].x, offsets[i].y,
+                    cellWidth, cellHeight);
+        }
+
+        // Cells not written below (odd last row or column, uncovered borders) keep the reference
+        short[] composite = new short[reference.width * reference.height];
+        for (int y = 0; y < reference.height; y++) {
+            for (int x = 0; x < reference.width; x++) {
+                composite[y * reference.width + x] = (short) reference.sample(x, y);
+            }
+        }
+
+        if (algorithm == StackingAlgorithm.WEIGHTED_AVERAGE) {
+            blendCells(stacker, frames, mosaics, offsets, composite, callback);
+        } else {
+            selectCells(stacker, frames, mosaics, offsets, composite, callback);
+        }
+
+        callback.update(90, "Dématriçage final...");
+        RawDecoder decoder = new RawDecoder();
+        decoder.setThreadCount(threadCount);
+        BufferedImage result = toRgb(decoder.develop(reference.withData(composite)));
+        callback.update(100, "Terminé - " + result.getWidth() + "x" + result.getHeight());
+        return result;
+    }
+
+    private void loadMosaics(List<File> files, RawDecoder.Mosaic[] mosaics, BufferedImage[] proxies,
+                             ImageStacker.ProgressCallback callback) throws Exception {
+        callback.update(0, "Chargement Bayer de " + files.size() + " images (" + threadCount + " threads)...");
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        List<Future<?>> futures = new ArrayList<>();
+        AtomicInteger loaded = new AtomicInteger(0);
+
+        for (int i = 0; i < files.size(); i++) {
+            final int index = i;
+            final File file = files.get(i);
+
+            futures.add(executor.submit(() -> {
+                RawDecoder.Mosaic mosaic = ImageLoader.loadRawMosaic(file);
+                if (mosaic.width < 4 || mosaic.height < 4) {
+                    throw new Exception("Mosaïque trop petite: " + file.getName());
+                }
+                mosaics[index] = mosaic;
+                proxies[index] = proxy(mosaic);
+
+                int done = loaded.incrementAndGet();
+                callback.update(done * 30 / files.size(), "Chargée: " + file.getName());
+                return null;
+            }));
+        }
+
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception cause ? cause : e;
+        } finally {
+            executor.shutdown();
+        }
+
+        for (int i = 1; i < mosaics.length; i++) {
+            if (!mosaics[0].isCompatible(mosaics[i])) {
+                throw new Exception("Dimensions ou matrice de Bayer différentes pour " + files.get(i).getName() + ": " +
+                        mosaics[i].width + "x" + mosaics[i].height + " au lieu de " +
+                        mosaics[0].width + "x" + mosaics[0].height);
+            }
+        }
+    }
+
+    /**
+     * One pixel per 2x2 cell: its red, mean green and blue samples, scaled to 8 bits as
+     * BufferedImage.getRGB scales a developed 16-bit frame, so focus measures see the same
+     * range as on a regular stack.
+     */
+    private static BufferedImage proxy(RawDecoder.Mosaic mosaic) {
+        int cellWidth = mosaic.width / 2;
+        int cellHeight = mosaic.height / 2;
+        BufferedImage proxy = new BufferedImage(cellWidth, cellHeight, BufferedImage.TYPE_INT_RGB);
+        int[] pixels = ((DataBufferInt) proxy.getRaster().getDataBuffer()).getData();
+        int[] counts = new int[3];
+        for (int colour : mosaic.cfa) {
+            counts[colour]++;
+        }
+
+        int[] sums = new int[3];
+        for (int cy = 0; cy < cellHeight; cy++) {
+            for (int cx = 0; cx < cellWidth; cx++) {
+                sums[0] = sums[1] = sums[2] = 0;
+                for (int cell = 0; cell < 4; cell++) {
+                    sums[mosaic.cfa[cell]] += mosaic.sample(2 * cx + (cell & 1), 2 * cy + (cell >> 1));
+                }
+                int r = to8Bit(sums[0] / counts[0]);
+                int g = to8Bit(sums[1] / counts[1]);
+                int b = to8Bit(sums[2] / counts[2]);
+                pixels[cy * cellWidth + cx] = (r << 16) | (g << 8) | b;
+            }
+        }
+        return proxy;
+    }
+
+    /** Sharpest frame per cell (median-smoothed for DEPTH_MAP), its four samples copied. */
+    private void selectCells(ImageStacker stacker, StackFrame[] frames, RawDecoder.Mosaic[] mosaics, Point[] offsets,
+                             short[] composite, ImageStacker.ProgressCallback callback) throws Exception {
+        int cellWidth = frames[0].getWidth();
+        int cellHeight = frames[0].getHeight();
+        int[][] bestFrame = new int[cellHeight][cellWidth];
+        double[][] bestScore = new double[cellHeight][cellWidth];
+        for (double[] row : bestScore) {
+            Arrays.fill(row, -1);
+        }
+
+        stacker.scoreFrames(frames, callback, (f, startY, endY, scores) -> {
+            for (int i = 0; i < scores.length; i++) {
+                int y = startY + i / cellWidth;
+                int x = i % cellWidth;
+                if (scores[i] > bestScore[y][x]) {
+                    bestScore[y][x] = scores[i];
+                    bestFrame[y][x] = f;
+                }
+            }
+        });
+
+        int[][] labels = bestFrame;
+        if (algorithm == StackingAlgorithm.DEPTH_MAP) {
+            callback.update(75, "Lissage médian...");
+            labels = stacker.smoothDepthMap(bestFrame, callback);
+        }
+
+        callback.update(85, "Assemblage de la mosaïque...");
+        int width = mosaics[0].width;
+        for (int cy = 0; cy < cellHeight; cy++) {
+            for (int cx = 0; cx < cellWidth; cx++) {
+                int f = labels[cy][cx];
+                // Smoothing may pick a frame that does not cover the cell: its nearest cell then
+                int sx = Math.max(0, Math.min(cellWidth - 1, cx - offsets[f].x));
+                int sy = Math.max(0, Math.min(cellHeight - 1, cy - offsets[f].y));
+                for (int cell = 0; cell < 4; cell++) {
+                    int dx = cell & 1;
+                    int dy = cell >> 1;
+                    composite[(2 * cy + dy) * width + 2 * cx + dx] =
+                            (short) mosaics[f].sample(2 * sx + dx, 2 * sy + dy);
+                }
+            }
+        }
+    }
+
+    /** Cells averaged over all frames, weighted by (score + 1)^2 as in the RGB weighted average. */
+    private void blendCells(ImageStacker stacker, StackFrame[] frames, RawDecoder.Mosaic[] mosaics, Point[] offsets,
+                            short[] composite, ImageStacker.ProgressCallback callback) throws Exception {
+        int cellWidth = frames[0].getWidth();
+        int cellHeight = frames[0].getHeight();
+        int cells = cellWidth * cellHeight;
+        double[][] sums = new double[4][cells];
+        double[] totalWeight = new double[cells];
+
+        stacker.scoreFrames(frames, callback, (f, startY, endY, scores) -> {
+            RawDecoder.Mosaic mosaic = mosaics[f];
+            for (int i = 0; i < scores.length; i++) {
+                if (Double.isNaN(scores[i])) continue;
+
+                int cy = startY + i / cellWidth;
+                int cx = i % cellWidth;
+                int sx = cx - offsets[f].x;
+                int sy = cy - offsets[f].y;
+                double weight = Math.pow(scores[i] + 1, 2);
+                int index = cy * cellWidth + cx;
+                for (int cell = 0; cell < 4; cell++) {
+                    sums[cell][index] += mosaic.sample(2 * sx + (cell & 1), 2 * sy + (cell >> 1)) * weight;
+                }
+                totalWeight[index] += weight;
+            }
+        });
+
+        callback.update(85, "Assemblage de la mosaïque...");
+        int width = mosaics[0].width;
+        for (int cy = 0; cy < cellHeight; cy++) {
+            for (int cx = 0; cx < cellWidth; cx++) {
+                int index = cy * cellWidth + cx;
+                if (totalWeight[index] <= 0) continue;
+
+                for (int cell = 0; cell < 4; cell++) {
+                    long value = Math.round(sums[cell][index] / totalWeight[index]);
+                    composite[(2 * cy + (cell >> 1)) * width + 2 * cx + (cell & 1)] = (short) Math.min(65535, value);
+                }
+            }
+        }
+    }
+
+    /** 8-bit RGB like every other stacking result. */
+    private static BufferedImage toRgb(BufferedImage developed) {
+        int width = developed.getWidth();
+        int height = developed.getHeight();
+        DataBufferUShort buffer = (DataBufferUShort) developed.getRaster().getDataBuffer();
+        short[] red = buffer.getData(0);
+        short[] green = buffer.getData(1);
+        short[] blue = buffer.getData(2);
+
+        BufferedImage result = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] pixels = ((DataBufferInt) result.getRaster().getDataBuffer()).getData();
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = (to8Bit(red[i] & 0xFFFF) << 16) | (to8Bit(green[i] & 0xFFFF) << 8) | to8Bit(blue[i] & 0xFFFF);
+        }
+        return result;
+    }
+
+    private static int to8Bit(int value) {
+        return (value * 255 + 32767) / 65535;
+    }
+}
@@ -0,0 +1,181 @@
+package com.macrostacking;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Recycles the primitive planes and result rasters of successive stacking runs. Buffers
+ * are pooled by exact length (tile and map geometry repeat from run to run on the same
+ * frames), leased zero-filled and handed back once a tile or a run is done. At most
+ * {@code maxRetainedBytes} are kept; a pool of size 0 simply allocates.
+ */
+public class BufferPool {
+    /** Allocates every lease and keeps nothing. */
+    static final BufferPool NONE = new BufferPool(0);
+
+    private final long maxRetainedBytes;
+    private final AtomicLong retainedBytes = new AtomicLong();
+    private final AtomicLong allocatedBytes = new AtomicLong();
+    private final AtomicLong reusedBytes = new AtomicLong();
+    private final Map<Integer, Deque<int[]>> intPlanes = new ConcurrentHashMap<>();
+    private final Map<Integer, Deque<double[]>> doublePlanes = new ConcurrentHashMap<>();
+    private final Map<Integer, Deque<long[]>> longPlanes = new ConcurrentHashMap<>();
+    private final Map<Long, Deque<BufferedImage>> images = new ConcurrentHashMap<>();
+    private int width;
+    private int height;
+
+    public BufferPool(long maxRetainedBytes) {
+        this.maxRetainedBytes = Math.max(0, maxRetainedBytes);
+    }
+
+    /**
+     * Called with the frame size at the start of every run: buffers sized for other
+     * frames will not be leased again, so they are dropped.
+     */
+    public synchronized void setGeometry(int width, int height) {
+        if (width != this.width || height != this.height) {
+            clear();
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    public int[] leaseInts(int length) {
+        int[] array = take(intPlanes, length, 4L * length);
+        if (array == null) {
+            return new int[length];
+        }
+        Arrays.fill(array, 0);
+        return array;
+    }
+
+    public double[] leaseDoubles(int length) {
+        double[] array = take(doublePlanes, length, 8L * length);
+        if (array == null) {
+            return new double[length];
+        }
+        Arrays.fill(array, 0);
+        return array;
+    }
+
+    public long[] leaseLongs(int length) {
+        long[] array = take(longPlanes, length, 8L * length);
+        if (array == null) {
+            return new long[length];
+        }
+        Arrays.fill(array, 0);
+        return array;
+    }
+
+    /** Rows of a full-frame map, each leased separately. */
+    public int[][] leaseIntRows(int rows, int length) {
+        int[][] map = new int[rows][];
+        for (int y = 0; y < rows; y++) {
+            map[y] = leaseInts(length);
+        }
+        return map;
+    }
+
+    public double[][] leaseDoubleRows(int rows, int length) {
+        double[][] map = new double[rows][];
+        for (int y = 0; y < rows; y++) {
+            map[y] = leaseDoubles(length);
+        }
+        return map;
+    }
+
+    /** An RGB image; its pixels are left as the previous run wrote them. */
+    public BufferedImage leaseImage(int width, int height) {
+        BufferedImage image = take(images, imageKey(width, height), 4L * width * height);
+        return image != null ? image : new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    }
+
+    public void release(int[] array) {
+        if (array != null) {
+            give(intPlanes, array.length, array, 4L * array.length);
+        }
+    }
+
+    public void release(double[] array) {
+        if (array != null) {
+            give(doublePlanes, array.length, array, 8L * array.length);
+        }
+    }
+
+    public void release(long[] array) {
+        if (array != null) {
+            give(longPlanes, array.length, array, 8L * array.length);
+        }
+    }
+
+    public void release(int[][] map) {
+        if (map != null) {
+            for (int[] row : map) {
+                release(row);
+            }
+        }
+    }
+
+    public void release(double[][] map) {
+        if (map != null) {
+            for (double[] row : map) {
+                release(row);
+            }
+        }
+    }
+
+    public void release(BufferedImage image) {
+        if (image != null && image.getType() == BufferedImage.TYPE_INT_RGB) {
+            give(images, imageKey(image.getWidth(), image.getHeight()), image,
+                    4L * image.getWidth() * image.getHeight());
+        }
+    }
+
+    /** Drops every pooled buffer. */
+    public synchronized void clear() {
+        intPlanes.clear();
+        doublePlanes.clear();
+        longPlanes.clear();
+        images.clear();
+        retainedBytes.set(0);
+    }
+
+    /** Bytes allocated because no pooled buffer fitted, since the pool was created. */
+    public long getAllocatedBytes() {
+        return allocatedBytes.get();
+    }
+
+    /** Bytes served from pooled buffers, since the pool was created. */
+    public long getReusedBytes() {
+        return reusedBytes.get();
+    }
+
+    private <K, T> T take(Map<K, Deque<T>> classes, K key, long bytes) {
+        Deque<T> pooled = classes.get(key);
+        T buffer = pooled != null ? pooled.pollFirst() : null;
+        if (buffer != null) {
+            retainedBytes.addAndGet(-bytes);
+            reusedBytes.addAndGet(bytes);
+        } else {
+            allocatedBytes.addAndGet(bytes);
+        }
+        return buffer;
+    }
+
+    private <K, T> void give(Map<K, Deque<T>> classes, K key, T buffer, long bytes) {
+        if (retainedBytes.addAndGet(bytes) > maxRetainedBytes) {
+            retainedBytes.addAndGet(-bytes);
+            return;
+        }
+        classes.computeIfAbsent(key, k -> new ConcurrentLinkedDeque<>()).addFirst(buffer);
+    }
+
+    private static long imageKey(int width, int height) {
+        return ((long) width << 32) | height;
+    }
+}
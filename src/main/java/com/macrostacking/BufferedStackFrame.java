@@ -0,0 +1,44 @@
+package com.macrostacking;
+
+import java.awt.image.BufferedImage;
+
+public class BufferedStackFrame implements StackFrame {
+    private final BufferedImage image;
+
+    public BufferedStackFrame(BufferedImage image) {
+        this.image = image;
+    }
+
+    public BufferedImage getImage() {
+        return image;
+    }
+
+    @Override
+    public int getWidth() {
+        return image.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return image.getHeight();
+    }
+
+    @Override
+    public void readRows(int startY, int endY, int[] dst) {
+        int width = image.getWidth();
+        int type = image.getType();
+
+        if (type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB) {
+            // Direct copy from the int raster, much faster than the ColorModel path of getRGB
+            image.getRaster().getDataElements(0, startY, width, endY - startY, dst);
+            if (type == BufferedImage.TYPE_INT_RGB) {
+                int count = width * (endY - startY);
+                for (int i = 0; i < count; i++) {
+                    dst[i] |= 0xFF000000;
+                }
+            }
+        } else {
+            image.getRGB(0, startY, width, endY - startY, dst, 0, width);
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package com.macrostacking;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Keeps aligned frames as independently Deflate-compressed tiles of {@link #TILE_ROWS}
+ * full-width rows. Each row is delta-filtered per channel against its left neighbour
+ * before compression, which makes the large smooth out-of-focus areas of macro frames
+ * compress very well. Only the tiles needed by a stacking tile are inflated, and
+ * recently used tiles are kept in an LRU cache, sized by the caller with
+ * {@link #bandCacheBytes} so that the bands in flight stay decoded across every frame.
+ */
+public class CompressedFrameStore {
+    public static final int TILE_ROWS = 32;
+    private static final long DEFAULT_CACHE_BYTES = 64L * 1024 * 1024;
+
+    private final int width;
+    private final int height;
+    private final int tileCount;
+    private final byte[][][] tiles;
+    private final Rectangle[] validBounds;
+    private final Map<Long, int[]> cache;
+    private final AtomicLong compressedBytes = new AtomicLong();
+
+    public CompressedFrameStore(int frameCount, int width, int height) {
+        this(frameCount, width, height, DEFAULT_CACHE_BYTES);
+    }
+
+    public CompressedFrameStore(int frameCount, int width, int height, long cacheBytes) {
+        this.width = width;
+        this.height = height;
+        this.tileCount = (height + TILE_ROWS - 1) / TILE_ROWS;
+        this.tiles = new byte[frameCount][][];
+        this.validBounds = new Rectangle[frameCount];
+
+        long tileBytes = (long) TILE_ROWS * width * 4;
+        int maxCachedTiles = (int) Math.min((long) frameCount * tileCount, Math.max(4, cacheBytes / tileBytes));
+        this.cache = new LinkedHashMap<>(maxCachedTiles, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, int[]> eldest) {
+                return size() > maxCachedTiles;
+            }
+        };
+    }
+
+    /**
+     * Cache holding, for {@code bands} concurrent stacking bands of {@code bandRows} rows
+     * (halo included), their tiles in every frame; never less than the default. A band
+     * that is not aligned on {@link #TILE_ROWS} straddles one more tile.
+     */
+    public static long bandCacheBytes(int frameCount, int width, int bandRows, int bands) {
+        long tilesPerBand = (bandRows + TILE_ROWS - 1) / TILE_ROWS + 1;
+        long bytes = (long) bands * frameCount * tilesPerBand * TILE_ROWS * width * 4;
+        return Math.max(DEFAULT_CACHE_BYTES, bytes);
+    }
+
+    public int getFrameCount() {
+        return tiles.length;
+    }
+
+    public long getCompressedBytes() {
+        return compressedBytes.get();
+    }
+
+    public long getRawBytes() {
+        return (long) tiles.length * width * height * 3;
+    }
+
+    /** Compresses the image into the given slot. Safe to call concurrently for different slots. */
+    public void put(int index, BufferedImage image) {
+        put(index, new BufferedStackFrame(image));
+    }
+
+    public void put(int index, StackFrame frame) {
+        if (frame.getWidth() != width || frame.getHeight() != height) {
+            throw new IllegalArgumentException("Dimensions " + frame.getWidth() + "x" + frame.getHeight() +
+                    " différentes de " + width + "x" + height);
+        }
+
+        byte[][] frameTiles = new byte[tileCount][];
+        int[] rows = new int[TILE_ROWS * width];
+        byte[] raw = new byte[TILE_ROWS * width * 3];
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        long total = 0;
+
+        try {
+            for (int tile = 0; tile < tileCount; tile++) {
+                int startY = tile * TILE_ROWS;
+                int endY = Math.min(startY + TILE_ROWS, height);
+                frame.readRows(startY, endY, rows);
+
+                int length = encodeDelta(rows, (endY - startY), raw);
+                frameTiles[tile] = deflate(deflater, raw, length);
+                total += frameTiles[tile].length;
+            }
+        } finally {
+            deflater.end();
+        }
+
+        tiles[index] = frameTiles;
+        validBounds[index] = frame.getValidBounds();
+        compressedBytes.addAndGet(total);
+    }
+
+    public StackFrame frame(int index) {
+        return new StackFrame() {
+            @Override
+            public int getWidth() {
+                return width;
+            }
+
+            @Override
+            public int getHeight() {
+                return height;
+            }
+
+            @Override
+            public Rectangle getValidBounds() {
+                return new Rectangle(validBounds[index]);
+            }
+
+            @Override
+            public void readRows(int startY, int endY, int[] dst) {
+                int y = startY;
+                while (y < endY) {
+                    int tile = y / TILE_ROWS;
+                    int tileStart = tile * TILE_ROWS;
+                    int rowsFromTile = Math.min(endY, tileStart + TILE_ROWS) - y;
+                    int[] pixels = getTile(index, tile);
+                    System.arraycopy(pixels, (y - tileStart) * width, dst, (y - startY) * width,
+                            rowsFromTile * width);
+                    y += rowsFromTile;
+                }
+            }
+        };
+    }
+
+    private int[] getTile(int frame, int tile) {
+        long key = ((long) frame << 32) | tile;
+        synchronized (cache) {
+            int[] cached = cache.get(key);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        // Inflate outside the lock; two threads racing on the same tile just decode it twice
+        int[] pixels = inflate(tiles[frame][tile], Math.min(TILE_ROWS, height - tile * TILE_ROWS));
+        synchronized (cache) {
+            cache.put(key, pixels);
+        }
+        return pixels;
+    }
+
+    private int encodeDelta(int[] rows, int rowCount, byte[] raw) {
+        int pos = 0;
+        for (int y = 0; y < rowCount; y++) {
+            int prevR = 0, prevG = 0, prevB = 0;
+            int offset = y * width;
+            for (int x = 0; x < width; x++) {
+                int rgb = rows[offset + x];
+                int r = (rgb >> 16) & 0xFF;
+                int g = (rgb >> 8) & 0xFF;
+                int b = rgb & 0xFF;
+                raw[pos++] = (byte) (r - prevR);
+                raw[pos++] = (byte) (g - prevG);
+                raw[pos++] = (byte) (b - prevB);
+                prevR = r;
+                prevG = g;
+                prevB = b;
+            }
+        }
+        return pos;
+    }
+
+    private byte[] deflate(Deflater deflater, byte[] raw, int length) {
+        deflater.reset();
+        deflater.setInput(raw, 0, length);
+        deflater.finish();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length / 4 + 64);
+        byte[] buffer = new byte[32 * 1024];
+        while (!deflater.finished()) {
+            int n = deflater.deflate(buffer);
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private int[] inflate(byte[] compressed, int rowCount) {
+        byte[] raw = new byte[rowCount * width * 3];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            int done = 0;
+            while (done < raw.length && !inflater.finished()) {
+                done += inflater.inflate(raw, done, raw.length - done);
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Tuile compressée corrompue", e);
+        } finally {
+            inflater.end();
+        }
+
+        int[] pixels = new int[rowCount * width];
+        int pos = 0;
+        for (int y = 0; y < rowCount; y++) {
+            int r = 0, g = 0, b = 0;
+            int offset = y * width;
+            for (int x = 0; x < width; x++) {
+                r = (r + raw[pos++]) & 0xFF;
+                g = (g + raw[pos++]) & 0xFF;
+                b = (b + raw[pos++]) & 0xFF;
+                pixels[offset + x] = 0xFF000000 | (r << 16) | (g << 8) | b;
+            }
+        }
+        return pixels;
+    }
+}
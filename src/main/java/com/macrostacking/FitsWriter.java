@@ -0,0 +1,150 @@
+package com.macrostacking;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+public class FitsWriter {
+    public static final int BITPIX_16 = 16;
+    public static final int BITPIX_FLOAT = -32;
+
+    private static final int BLOCK_SIZE = 2880;
+    private static final int CARD_SIZE = 80;
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    /**
+     * Writes the image as a single NAXIS3 = 3 RGB cube, streaming one row at a time
+     * so that only a row buffer is allocated on top of the image itself.
+     */
+    public static void write(BufferedImage image, File file, int bitpix) throws IOException {
+        if (bitpix != BITPIX_16 && bitpix != BITPIX_FLOAT) {
+            throw new IllegalArgumentException("BITPIX non supporté: " + bitpix);
+        }
+
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int bytesPerSample = Math.abs(bitpix) / 8;
+
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+
+            ByteBuffer buffer = ByteBuffer.allocateDirect(Math.max(BUFFER_SIZE, width * bytesPerSample))
+                    .order(ByteOrder.BIG_ENDIAN);
+
+            writeHeader(channel, buildHeader(width, height, bitpix));
+
+            int[] rgbRow = new int[width];
+            int[] samples = new int[width];
+            for (int channelIndex = 0; channelIndex < 3; channelIndex++) {
+                for (int y = 0; y < height; y++) {
+                    readRow16(image, y, channelIndex, rgbRow, samples);
+
+                    if (buffer.remaining() < width * bytesPerSample) {
+                        drain(channel, buffer);
+                    }
+
+                    if (bitpix == BITPIX_16) {
+                        for (int x = 0; x < width; x++) {
+                            // Unsigned 16-bit stored as signed with BZERO = 32768
+                            buffer.putShort((short) (samples[x] - 32768));
+                        }
+                    } else {
+                        for (int x = 0; x < width; x++) {
+                            buffer.putFloat(samples[x] / 65535.0f);
+                        }
+                    }
+                }
+            }
+            drain(channel, buffer);
+
+            long dataBytes = (long) width * height * 3 * bytesPerSample;
+            int padding = (int) ((BLOCK_SIZE - dataBytes % BLOCK_SIZE) % BLOCK_SIZE);
+            if (padding > 0) {
+                channel.write(ByteBuffer.allocate(padding));
+            }
+        }
+    }
+
+    private static void readRow16(BufferedImage image, int y, int channel, int[] rgbRow, int[] samples) {
+        int width = image.getWidth();
+        Raster raster = image.getRaster();
+
+        if (raster.getNumBands() >= 3 && raster.getSampleModel().getSampleSize(channel) == 16) {
+            raster.getSamples(0, y, width, 1, channel, samples);
+            return;
+        }
+
+        image.getRGB(0, y, width, 1, rgbRow, 0, width);
+        int shift = 16 - channel * 8;
+        for (int x = 0; x < width; x++) {
+            samples[x] = ((rgbRow[x] >> shift) & 0xFF) * 257;
+        }
+    }
+
+    private static List<String> buildHeader(int width, int height, int bitpix) {
+        List<String> cards = new ArrayList<>();
+        cards.add(card("SIMPLE", "T", "Standard FITS"));
+        cards.add(card("BITPIX", String.valueOf(bitpix), bitpix == BITPIX_16 ? "16-bit integer" : "32-bit float"));
+        cards.add(card("NAXIS", "3", "RGB cube"));
+        cards.add(card("NAXIS1", String.valueOf(width), "Width"));
+        cards.add(card("NAXIS2", String.valueOf(height), "Height"));
+        cards.add(card("NAXIS3", "3", "Color channels"));
+        if (bitpix == BITPIX_16) {
+            cards.add(card("BZERO", "32768", "Unsigned 16-bit offset"));
+            cards.add(card("BSCALE", "1", ""));
+        } else {
+            cards.add(card("DATAMIN", "0.0", ""));
+            cards.add(card("DATAMAX", "1.0", ""));
+        }
+        cards.add(card("CTYPE3", "'RGB     '", "Plane order R, G, B"));
+        cards.add(card("CREATOR", "'Macro Focus Stacker'", ""));
+        cards.add(pad("END"));
+        return cards;
+    }
+
+    private static String card(String keyword, String value, String comment) {
+        String head = String.format(Locale.ROOT, "%-8s= %20s", keyword, value);
+        if (value.startsWith("'")) {
+            head = String.format(Locale.ROOT, "%-8s= %-20s", keyword, value);
+        }
+        if (!comment.isEmpty()) {
+            head += " / " + comment;
+        }
+        return pad(head);
+    }
+
+    private static String pad(String card) {
+        if (card.length() > CARD_SIZE) {
+            return card.substring(0, CARD_SIZE);
+        }
+        return String.format(Locale.ROOT, "%-" + CARD_SIZE + "s", card);
+    }
+
+    private static void writeHeader(FileChannel channel, List<String> cards) throws IOException {
+        StringBuilder header = new StringBuilder();
+        for (String card : cards) {
+            header.append(card);
+        }
+        while (header.length() % BLOCK_SIZE != 0) {
+            header.append(' ');
+        }
+        channel.write(ByteBuffer.wrap(header.toString().getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    private static void drain(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
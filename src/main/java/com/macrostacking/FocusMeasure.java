@@ -0,0 +1,131 @@
+package com.macrostacking;
+
+import java.awt.Rectangle;
+
+/**
+ * Per-pixel sharpness of one frame, computed as a whole plane over one stacking tile.
+ * All stacking algorithms rank or weight frames with the measure they are given
+ * (see {@link FocusMeasures} for the built-in ones).
+ */
+public interface FocusMeasure {
+    /** Stable identifier, used by checkpoints and worker processes. */
+    String getId();
+
+    String getName();
+
+    /** Rows needed above and below the tile to score its first and last rows. */
+    int getHalo();
+
+    /**
+     * Writes a score for every pixel of the tile inside the frame's valid area. The other
+     * entries of {@link Tile#scores} are already NaN and must be left alone.
+     */
+    void score(Tile tile);
+
+    /**
+     * One frame over one tile. {@link #pixels} holds full-width rows [rowStartY, rowEndY)
+     * (the tile plus its halo, clamped to the image); scores are indexed from startY.
+     * The region is the part of those rows inside the valid area, where measures may
+     * read pixels. Scratch buffers are reused from frame to frame.
+     */
+    final class Tile {
+        public final int width;
+        public final int imageHeight;
+        public final int startY;
+        public final int endY;
+        public final int rowStartY;
+        public final int rowEndY;
+        public final int[] pixels;
+        public final double[] scores;
+
+        public Rectangle valid;
+        public int regionX;
+        public int regionY;
+        public int regionWidth;
+        public int regionHeight;
+
+        private final int[][] intScratch = new int[4][];
+        private final double[][] doubleScratch = new double[4][];
+        private final BufferPool pool;
+
+        public Tile(int width, int imageHeight, int startY, int endY, int rowStartY, int rowEndY) {
+            this(width, imageHeight, startY, endY, rowStartY, rowEndY, BufferPool.NONE);
+        }
+
+        /** Tile whose planes are leased from the pool; {@link #release()} hands them back. */
+        Tile(int width, int imageHeight, int startY, int endY, int rowStartY, int rowEndY, BufferPool pool) {
+            this.width = width;
+            this.imageHeight = imageHeight;
+            this.startY = startY;
+            this.endY = endY;
+            this.rowStartY = rowStartY;
+            this.rowEndY = rowEndY;
+            this.pool = pool;
+            this.pixels = pool.leaseInts((rowEndY - rowStartY) * width);
+            this.scores = pool.leaseDoubles((endY - startY) * width);
+        }
+
+        /** Sets the frame's valid area; returns false if it has no pixel in the tile. */
+        public boolean setValid(Rectangle valid) {
+            this.valid = valid;
+            regionX = valid.x;
+            regionWidth = valid.width;
+            regionY = Math.max(rowStartY, valid.y);
+            regionHeight = Math.min(rowEndY, valid.y + valid.height) - regionY;
+            return Math.max(startY, valid.y) < Math.min(endY, valid.y + valid.height) && valid.width > 0;
+        }
+
+        /** First and last (exclusive) tile rows inside the valid area. */
+        public int scoreStartY() {
+            return Math.max(startY, valid.y);
+        }
+
+        public int scoreEndY() {
+            return Math.min(endY, valid.y + valid.height);
+        }
+
+        /** Index of (x, y) in {@link #pixels}. */
+        public int pixelIndex(int x, int y) {
+            return (y - rowStartY) * width + x;
+        }
+
+        public int scoreIndex(int x, int y) {
+            return (y - startY) * width + x;
+        }
+
+        /** Index of (x, y) in a region-sized plane. */
+        public int regionIndex(int x, int y) {
+            return (y - regionY) * regionWidth + (x - regionX);
+        }
+
+        /** Scratch plane of at least the size of {@link #pixels}. */
+        public int[] ints(int slot) {
+            if (intScratch[slot] == null) {
+                intScratch[slot] = pool.leaseInts(pixels.length);
+            }
+            return intScratch[slot];
+        }
+
+        /** Scratch plane large enough for an integral image of the rows, (width+1) x (rows+1). */
+        public double[] doubles(int slot) {
+            if (doubleScratch[slot] == null) {
+                doubleScratch[slot] = pool.leaseDoubles((width + 1) * (rowEndY - rowStartY + 1));
+            }
+            return doubleScratch[slot];
+        }
+
+        /** Returns every plane to the pool; the tile must not be used afterwards. */
+        void release() {
+            pool.release(pixels);
+            pool.release(scores);
+            for (int slot = 0; slot < intScratch.length; slot++) {
+                pool.release(intScratch[slot]);
+                intScratch[slot] = null;
+            }
+            for (int slot = 0; slot < doubleScratch.length; slot++) {
+                pool.release(doubleScratch[slot]);
+                doubleScratch[slot] = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,341 @@
+package com.macrostacking;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Built-in {@link FocusMeasure}s. The first three are the historical measures of the
+ * stacking algorithms (min-max contrast, 4-neighbour Laplacian and the depth-map blend of
+ * both) and give the same scores as before; min-max is now computed as two separable
+ * passes. The others are classic autofocus measures averaged over a 5x5 window with an
+ * integral image: Tenengrad (separable Sobel), variance of the Laplacian, sum-modified
+ * Laplacian and energy of gradient.
+ */
+public final class FocusMeasures {
+    // Derivative half-width 1 + window radius 2
+    private static final int WINDOW_RADIUS = 2;
+    private static final int WINDOW_HALO = WINDOW_RADIUS + 1;
+
+    public static final FocusMeasure LOCAL_CONTRAST = new Measure("contrast", "Contraste local", 5) {
+        @Override
+        public void score(FocusMeasure.Tile tile) {
+            int[] gray = tile.ints(0);
+            contrastGray(tile, gray);
+            localContrast(tile, gray, 5, 1.0, false);
+        }
+    };
+
+    public static final FocusMeasure LAPLACIAN = new Measure("laplacian", "Laplacien", 1) {
+        @Override
+        public void score(FocusMeasure.Tile tile) {
+            int[] gray = tile.ints(0);
+            gray(tile, gray);
+            laplacian(tile, gray, 1.0, false);
+        }
+    };
+
+    public static final FocusMeasure DEPTH_BLEND = new Measure("depth-blend", "Contraste + Laplacien", 7) {
+        @Override
+        public void score(FocusMeasure.Tile tile) {
+            int[] contrastGray = tile.ints(0);
+            int[] gray = tile.ints(3);
+            contrastGray(tile, contrastGray);
+            gray(tile, gray);
+            localContrast(tile, contrastGray, 3, 0.5, false);
+            localContrast(tile, contrastGray, 7, 0.3, true);
+            laplacian(tile, gray, 2.0, true);
+        }
+    };
+
+    public static final FocusMeasure TENENGRAD = new Measure("tenengrad", "Tenengrad (Sobel)", WINDOW_HALO) {
+        @Override
+        public void score(FocusMeasure.Tile tile) {
+            int[] gray = tile.ints(0);
+            int[] smoothV = tile.ints(1);
+            int[] smoothH = tile.ints(2);
+            double[] plane = tile.doubles(0);
+            gray(tile, gray);
+
+            // Sobel as [1 2 1] smoothing along one axis, then a central difference along the other
+            for (int y = tile.regionY; y < tile.regionY + tile.regionHeight; y++) {
+                int up = Math.max(tile.regionY, y - 1);
+                int down = Math.min(tile.regionY + tile.regionHeight - 1, y + 1);
+                for (int x = tile.regionX; x < tile.regionX + tile.regionWidth; x++) {
+                    int left = Math.max(tile.regionX, x - 1);
+                    int right = Math.min(tile.regionX + tile.regionWidth - 1, x + 1);
+                    int r = tile.regionIndex(x, y);
+                    smoothV[r] = gray[tile.pixelIndex(x, up)] + 2 * gray[tile.pixelIndex(x, y)] + gray[tile.pixelIndex(x, down)];
+                    smoothH[r] = gray[tile.pixelIndex(left, y)] + 2 * gray[tile.pixelIndex(x, y)] + gray[tile.pixelIndex(right, y)];
+                }
+            }
+            for (int y = tile.regionY; y < tile.regionY + tile.regionHeight; y++) {
+                int up = Math.max(tile.regionY, y - 1);
+                int down = Math.min(tile.regionY + tile.regionHeight - 1, y + 1);
+                for (int x = tile.regionX; x < tile.regionX + tile.regionWidth; x++) {
+                    int left = Math.max(tile.regionX, x - 1);
+                    int right = Math.min(tile.regionX + tile.regionWidth - 1, x + 1);
+                    double gx = smoothV[tile.regionIndex(right, y)] - smoothV[tile.regionIndex(left, y)];
+                    double gy = smoothH[tile.regionIndex(x, down)] - smoothH[tile.regionIndex(x, up)];
+                    plane[tile.regionIndex(x, y)] = gx * gx + gy * gy;
+                }
+            }
+            windowMean(tile, plane);
+        }
+    };
+
+    public static final FocusMeasure VARIANCE_OF_LAPLACIAN = new Measure("variance-laplacian", "Variance du Laplacien", WINDOW_HALO) {
+        @Override
+        public void score(FocusMeasure.Tile tile) {
+            int[] gray = tile.ints(0);
+            double[] plane = tile.doubles(0);
+            double[] sum = tile.doubles(1);
+            double[] sumSquares = tile.doubles(2);
+            gray(tile, gray);
+
+            forEachRegionPixel(tile, (x, y, up, down, left, right) -> {
+                int center = gray[tile.pixelIndex(x, y)];
+                plane[tile.regionIndex(x, y)] = 4 * center - gray[tile.pixelIndex(x, up)] - gray[tile.pixelIndex(x, down)]
+                        - gray[tile.pixelIndex(left, y)] - gray[tile.pixelIndex(right, y)];
+            });
+            integrate(tile, plane, sum, false);
+            integrate(tile, plane, sumSquares, true);
+
+            for (int y = tile.scoreStartY(); y < tile.scoreEndY(); y++) {
+                for (int x = tile.regionX; x < tile.regionX + tile.regionWidth; x++) {
+                    double mean = windowMean(tile, sum, x, y);
+                    tile.scores[tile.scoreIndex(x, y)] = windowMean(tile, sumSquares, x, y) - mean * mean;
+                }
+            }
+        }
+    };
+
+    public static final FocusMeasure SUM_MODIFIED_LAPLACIAN = new Measure("sml", "Laplacien modifié (SML)", WINDOW_HALO) {
+        @Override
+        public void score(FocusMeasure.Tile tile) {
+            int[] gray = tile.ints(0);
+            double[] plane = tile.doubles(0);
+            gray(tile, gray);
+
+            forEachRegionPixel(tile, (x, y, up, down, left, right) -> {
+                int twice = 2 * gray[tile.pixelIndex(x, y)];
+                plane[tile.regionIndex(x, y)] =
+                        Math.abs(twice - gray[tile.pixelIndex(left, y)] - gray[tile.pixelIndex(right, y)]) +
+                        Math.abs(twice - gray[tile.pixelIndex(x, up)] - gray[tile.pixelIndex(x, down)]);
+            });
+            windowMean(tile, plane);
+        }
+    };
+
+    public static final FocusMeasure ENERGY_OF_GRADIENT = new Measure("energy-gradient", "Énergie du gradient", WINDOW_HALO) {
+        @Override
+        public void score(FocusMeasure.Tile tile) {
+            int[] gray = tile.ints(0);
+            double[] plane = tile.doubles(0);
+            gray(tile, gray);
+
+            forEachRegionPixel(tile, (x, y, up, down, left, right) -> {
+                int center = gray[tile.pixelIndex(x, y)];
+                double dx = gray[tile.pixelIndex(right, y)] - center;
+                double dy = gray[tile.pixelIndex(x, down)] - center;
+                plane[tile.regionIndex(x, y)] = dx * dx + dy * dy;
+            });
+            windowMean(tile, plane);
+        }
+    };
+
+    private static final List<FocusMeasure> ALL = List.of(LOCAL_CONTRAST, LAPLACIAN, DEPTH_BLEND, TENENGRAD,
+            VARIANCE_OF_LAPLACIAN, SUM_MODIFIED_LAPLACIAN, ENERGY_OF_GRADIENT);
+
+    private FocusMeasures() {
+    }
+
+    public static List<FocusMeasure> all() {
+        return ALL;
+    }
+
+    public static FocusMeasure byId(String id) {
+        for (FocusMeasure measure : ALL) {
+            if (measure.getId().equals(id)) {
+                return measure;
+            }
+        }
+        throw new IllegalArgumentException("Mesure de netteté inconnue: " + id);
+    }
+
+    /** The measure each algorithm has always used. */
+    public static FocusMeasure defaultFor(StackingAlgorithm algorithm) {
+        return switch (algorithm) {
+            case LAPLACIAN -> LAPLACIAN;
+            case DEPTH_MAP -> DEPTH_BLEND;
+            default -> LOCAL_CONTRAST;
+        };
+    }
+
+    private abstract static class Measure implements FocusMeasure {
+        private final String id;
+        private final String name;
+        private final int halo;
+
+        Measure(String id, String name, int halo) {
+            this.id = id;
+            this.name = name;
+            this.halo = halo;
+        }
+
+        @Override
+        public String getId() {
+            return id;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public int getHalo() {
+            return halo;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    /** Gray level as the contrast measure has always computed it (operator precedence included). */
+    private static void contrastGray(FocusMeasure.Tile tile, int[] gray) {
+        int[] pixels = tile.pixels;
+        for (int i = 0; i < pixels.length; i++) {
+            int rgb = pixels[i];
+            gray[i] = ((rgb >> 16) & 0xFF + (rgb >> 8) & 0xFF + (rgb & 0xFF)) / 3;
+        }
+    }
+
+    private static void gray(FocusMeasure.Tile tile, int[] gray) {
+        int[] pixels = tile.pixels;
+        for (int i = 0; i < pixels.length; i++) {
+            int rgb = pixels[i];
+            gray[i] = (((rgb >> 16) & 0xFF) + ((rgb >> 8) & 0xFF) + (rgb & 0xFF)) / 3;
+        }
+    }
+
+    /**
+     * Max - min gray over a (2r+1)^2 window clipped to the valid area, as a horizontal
+     * then a vertical pass. Adds {@code weight * contrast} to the scores, or sets them.
+     */
+    private static void localContrast(FocusMeasure.Tile tile, int[] gray, int radius, double weight, boolean add) {
+        int[] rowMin = tile.ints(1);
+        int[] rowMax = tile.ints(2);
+        int regionEndX = tile.regionX + tile.regionWidth;
+        int regionEndY = tile.regionY + tile.regionHeight;
+
+        for (int y = tile.regionY; y < regionEndY; y++) {
+            int rowOffset = tile.pixelIndex(0, y);
+            for (int x = tile.regionX; x < regionEndX; x++) {
+                int min = 255;
+                int max = 0;
+                int endX = Math.min(regionEndX, x + radius + 1);
+                for (int nx = Math.max(tile.regionX, x - radius); nx < endX; nx++) {
+                    int value = gray[rowOffset + nx];
+                    min = Math.min(min, value);
+                    max = Math.max(max, value);
+                }
+                rowMin[rowOffset + x] = min;
+                rowMax[rowOffset + x] = max;
+            }
+        }
+
+        for (int y = tile.scoreStartY(); y < tile.scoreEndY(); y++) {
+            int startY = Math.max(tile.regionY, y - radius);
+            int endY = Math.min(regionEndY, y + radius + 1);
+            for (int x = tile.regionX; x < regionEndX; x++) {
+                int min = 255;
+                int max = 0;
+                for (int ny = startY; ny < endY; ny++) {
+                    int i = tile.pixelIndex(x, ny);
+                    min = Math.min(min, rowMin[i]);
+                    max = Math.max(max, rowMax[i]);
+                }
+
+                double contrast = max - min;
+                int s = tile.scoreIndex(x, y);
+                tile.scores[s] = add ? tile.scores[s] + contrast * weight : contrast * weight;
+            }
+        }
+    }
+
+    /** |4-neighbour Laplacian|, zero on the image border. */
+    private static void laplacian(FocusMeasure.Tile tile, int[] gray, double weight, boolean add) {
+        int width = tile.width;
+        for (int y = tile.scoreStartY(); y < tile.scoreEndY(); y++) {
+            for (int x = tile.regionX; x < tile.regionX + tile.regionWidth; x++) {
+                double laplacian = 0;
+                if (x > 0 && x < width - 1 && y > 0 && y < tile.imageHeight - 1) {
+                    int i = tile.pixelIndex(x, y);
+                    laplacian = Math.abs(4 * gray[i] - gray[i - width] - gray[i + width] - gray[i - 1] - gray[i + 1]);
+                }
+
+                int s = tile.scoreIndex(x, y);
+                tile.scores[s] = add ? tile.scores[s] + laplacian * weight : laplacian * weight;
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface RegionPixel {
+        void apply(int x, int y, int up, int down, int left, int right);
+    }
+
+    /** Visits the region with neighbour coordinates clamped to it. */
+    private static void forEachRegionPixel(FocusMeasure.Tile tile, RegionPixel action) {
+        int lastX = tile.regionX + tile.regionWidth - 1;
+        int lastY = tile.regionY + tile.regionHeight - 1;
+        for (int y = tile.regionY; y <= lastY; y++) {
+            int up = Math.max(tile.regionY, y - 1);
+            int down = Math.min(lastY, y + 1);
+            for (int x = tile.regionX; x <= lastX; x++) {
+                action.apply(x, y, up, down, Math.max(tile.regionX, x - 1), Math.min(lastX, x + 1));
+            }
+        }
+    }
+
+    /** Scores = mean of the region plane over the window around each pixel. */
+    private static void windowMean(FocusMeasure.Tile tile, double[] plane) {
+        double[] integral = tile.doubles(1);
+        integrate(tile, plane, integral, false);
+        for (int y = tile.scoreStartY(); y < tile.scoreEndY(); y++) {
+            for (int x = tile.regionX; x < tile.regionX + tile.regionWidth; x++) {
+                tile.scores[tile.scoreIndex(x, y)] = windowMean(tile, integral, x, y);
+            }
+        }
+    }
+
+    /** Summed-area table of the region plane (or of its squares), stride regionWidth + 1. */
+    private static void integrate(FocusMeasure.Tile tile, double[] plane, double[] integral, boolean squared) {
+        int stride = tile.regionWidth + 1;
+        Arrays.fill(integral, 0, stride, 0);
+        for (int ry = 0; ry < tile.regionHeight; ry++) {
+            double rowSum = 0;
+            int row = (ry + 1) * stride;
+            integral[row] = 0;
+            for (int rx = 0; rx < tile.regionWidth; rx++) {
+                double value = plane[ry * tile.regionWidth + rx];
+                rowSum += squared ? value * value : value;
+                integral[row + rx + 1] = integral[row - stride + rx + 1] + rowSum;
+            }
+        }
+    }
+
+    private static double windowMean(FocusMeasure.Tile tile, double[] integral, int x, int y) {
+        int stride = tile.regionWidth + 1;
+        int x0 = Math.max(tile.regionX, x - WINDOW_RADIUS) - tile.regionX;
+        int x1 = Math.min(tile.regionX + tile.regionWidth, x + WINDOW_RADIUS + 1) - tile.regionX;
+        int y0 = Math.max(tile.regionY, y - WINDOW_RADIUS) - tile.regionY;
+        int y1 = Math.min(tile.regionY + tile.regionHeight, y + WINDOW_RADIUS + 1) - tile.regionY;
+
+        double sum = integral[y1 * stride + x1] - integral[y0 * stride + x1]
+                - integral[y1 * stride + x0] + integral[y0 * stride + x0];
+        return sum / ((x1 - x0) * (y1 - y0));
+    }
+}
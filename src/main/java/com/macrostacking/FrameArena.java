@@ -0,0 +1,145 @@
+package com.macrostacking;
+
+import java.awt.Rectangle;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Off-heap storage for the frames of one stacking job. Pixels live in direct buffers
+ * outside the Java heap, so dozens of large frames neither fill the heap nor burden the
+ * garbage collector, and they are all freed at once when the job closes the arena
+ * (instead of whenever the collector gets to the buffers). Frames read after
+ * {@link #close()} throw an IllegalStateException.
+ */
+public class FrameArena implements AutoCloseable {
+    // Rows copied per step when a frame moves into the arena
+    private static final int COPY_ROWS = 64;
+    private static final Method INVOKE_CLEANER;
+    private static final Object UNSAFE;
+
+    static {
+        Method method = null;
+        Object unsafe = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+            method = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            System.err.println("Libération immédiate de la mémoire hors tas indisponible: " + e.getMessage());
+        }
+        INVOKE_CLEANER = method;
+        UNSAFE = unsafe;
+    }
+
+    private final List<ByteBuffer> buffers = new ArrayList<>();
+    private long allocatedBytes;
+    private volatile boolean closed;
+
+    /** Copies the frame (as seen through its readRows) into the arena. Safe to call concurrently. */
+    public StackFrame copyOf(StackFrame frame) {
+        int width = frame.getWidth();
+        int height = frame.getHeight();
+        long bytes = (long) width * height * 4;
+        if (bytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Image trop grande pour la mémoire hors tas: " + width + "x" + height);
+        }
+
+        ByteBuffer buffer = allocate((int) bytes);
+        IntBuffer pixels = buffer.asIntBuffer();
+        int[] rows = new int[Math.min(COPY_ROWS, height) * width];
+        for (int startY = 0; startY < height; startY += COPY_ROWS) {
+            int endY = Math.min(startY + COPY_ROWS, height);
+            frame.readRows(startY, endY, rows);
+            pixels.put(startY * width, rows, 0, (endY - startY) * width);
+        }
+        return new OffHeapFrame(pixels, width, height, frame.getValidBounds());
+    }
+
+    public synchronized long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    private synchronized ByteBuffer allocate(int bytes) {
+        if (closed) {
+            throw new IllegalStateException("Arène de mémoire fermée");
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+        buffers.add(buffer);
+        allocatedBytes += bytes;
+        return buffer;
+    }
+
+    /**
+     * Frees every frame of the arena. Nothing may read them afterwards: callers first stop
+     * the tasks that use them (see {@link ImageStacker#stopAndWait}), since the check in
+     * readRows cannot catch a read already under way.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (ByteBuffer buffer : buffers) {
+            free(buffer);
+        }
+        buffers.clear();
+        allocatedBytes = 0;
+    }
+
+    private static void free(ByteBuffer buffer) {
+        if (INVOKE_CLEANER == null) {
+            return;
+        }
+        try {
+            INVOKE_CLEANER.invoke(UNSAFE, buffer);
+        } catch (ReflectiveOperationException e) {
+            // Left to the garbage collector
+        }
+    }
+
+    private class OffHeapFrame implements StackFrame {
+        private final IntBuffer pixels;
+        private final int width;
+        private final int height;
+        private final Rectangle validBounds;
+
+        OffHeapFrame(IntBuffer pixels, int width, int height, Rectangle validBounds) {
+            this.pixels = pixels;
+            this.width = width;
+            this.height = height;
+            this.validBounds = validBounds;
+        }
+
+        @Override
+        public int getWidth() {
+            return width;
+        }
+
+        @Override
+        public int getHeight() {
+            return height;
+        }
+
+        @Override
+        public Rectangle getValidBounds() {
+            return new Rectangle(validBounds);
+        }
+
+        @Override
+        public void readRows(int startY, int endY, int[] dst) {
+            if (closed) {
+                throw new IllegalStateException("Arène de mémoire fermée");
+            }
+            // Absolute bulk get: no buffer position is shared between threads
+            pixels.get(startY * width, dst, 0, (endY - startY) * width);
+        }
+    }
+}
@@ -0,0 +1,348 @@
+package com.macrostacking;
+
+import org.apache.commons.imaging.Imaging;
+import org.apache.commons.imaging.common.ImageMetadata;
+import org.apache.commons.imaging.formats.jpeg.JpegImageMetadata;
+import org.apache.commons.imaging.formats.tiff.TiffField;
+import org.apache.commons.imaging.formats.tiff.TiffImageMetadata;
+import org.apache.commons.imaging.formats.tiff.constants.ExifTagConstants;
+import org.apache.commons.imaging.formats.tiff.constants.TiffTagConstants;
+import org.apache.commons.imaging.formats.tiff.taginfos.TagInfo;
+
+import java.awt.Dimension;
+import java.io.File;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Reads what a stack needs to know about its frames from their metadata alone: size,
+ * orientation, capture time and, when the camera records it, the focus distance. No pixel
+ * is decoded and files are read in parallel, so a folder of thousands of RAW files is
+ * scanned in seconds. Frames come back in focus order, those whose size differs from the
+ * rest of the series flagged.
+ */
+public class FrameScanner {
+    private static final DateTimeFormatter EXIF_DATE = DateTimeFormatter.ofPattern("yyyy:MM:dd HH:mm:ss");
+
+    public enum Order {
+        FOCUS_DISTANCE("distance de mise au point"),
+        CAPTURE_TIME("heure de prise de vue"),
+        FILE_NAME("nom de fichier");
+
+        private final String displayName;
+
+        Order(String displayName) {
+            this.displayName = displayName;
+        }
+
+        @Override
+        public String toString() {
+            return displayName;
+        }
+    }
+
+    public static class FrameInfo {
+        public final File file;
+        /** Size of the decoded frame, 0 when the metadata does not give it. */
+        public final int width;
+        public final int height;
+        /** EXIF orientation, 1 (upright) when absent. */
+        public final int orientation;
+        /** Milliseconds, only comparable between frames; -1 when absent. */
+        public final long captureTime;
+        /** Metres, NaN when absent. */
+        public final double focusDistance;
+        private boolean mismatched;
+
+        FrameInfo(File file, int width, int height, int orientation, long captureTime, double focusDistance) {
+            this.file = file;
+            this.width = width;
+            this.height = height;
+            this.orientation = orientation;
+            this.captureTime = captureTime;
+            this.focusDistance = focusDistance;
+        }
+
+        public boolean hasSize() {
+            return width > 0 && height > 0;
+        }
+
+        /** True when the frame's size differs from most of the series. */
+        public boolean isMismatched() {
+            return mismatched;
+        }
+    }
+
+    public static class Result {
+        /** Every frame, in focus order. */
+        public final List<FrameInfo> frames;
+        public final List<FrameInfo> mismatched;
+        public final Order order;
+        /** Size shared by most frames, null if no frame had one. */
+        public final Dimension size;
+
+        Result(List<FrameInfo> frames, List<FrameInfo> mismatched, Order order, Dimension size) {
+            this.frames = frames;
+            this.mismatched = mismatched;
+            this.order = order;
+            this.size = size;
+        }
+
+        public List<File> getFiles() {
+            List<File> files = new ArrayList<>(frames.size());
+            for (FrameInfo frame : frames) {
+                files.add(frame.file);
+            }
+            return files;
+        }
+
+        public String describe() {
+            String text = frames.size() + " image(s) triée(s) par " + order;
+            if (size != null) {
+                text += ", " + size.width + "x" + size.height;
+            }
+            if (!mismatched.isEmpty()) {
+                text += ", " + mismatched.size() + " de dimensions différentes";
+            }
+            return text;
+        }
+    }
+
+    private int threadCount = Math.max(4, Runtime.getRuntime().availableProcessors());
+
+    /** Files read at once; reading is mostly I/O, so more threads than cores pays off. */
+    public void setThreadCount(int count) {
+        this.threadCount = Math.max(1, count);
+    }
+
+    public Result scan(List<File> files, ImageStacker.ProgressCallback callback) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        List<FrameInfo> frames = new ArrayList<>(files.size());
+        try {
+            List<Future<FrameInfo>> futures = new ArrayList<>(files.size());
+            for (File file : files) {
+                futures.add(executor.submit(() -> read(file)));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                frames.add(futures.get(i).get());
+                if (callback != null && (i % 50 == 0 || i == futures.size() - 1)) {
+                    callback.update((i + 1) * 100 / futures.size(),
+                            "Lecture des métadonnées " + (i + 1) + "/" + futures.size());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Order order = chooseOrder(frames);
+        frames.sort(comparator(order));
+        Dimension size = majoritySize(frames);
+
+        List<FrameInfo> mismatched = new ArrayList<>();
+        if (size != null) {
+            for (FrameInfo frame : frames) {
+                if (frame.hasSize() && (frame.width != size.width || frame.height != size.height)) {
+                    frame.mismatched = true;
+                    mismatched.add(frame);
+                }
+            }
+        }
+        return new Result(frames, mismatched, order, size);
+    }
+
+    /** One file's metadata; a file commons-imaging cannot parse comes back with nothing known. */
+    static FrameInfo read(File file) {
+        TiffImageMetadata exif;
+        try {
+            ImageMetadata metadata = Imaging.getMetadata(file);
+            exif = metadata instanceof JpegImageMetadata jpeg ? jpeg.getExif()
+                    : metadata instanceof TiffImageMetadata tiff ? tiff : null;
+        } catch (Exception e) {
+            exif = null;
+        }
+
+        int orientation = exif != null ? intValue(exif, TiffTagConstants.TIFF_TAG_ORIENTATION, 1) : 1;
+        long captureTime = exif != null ? captureTime(exif) : -1;
+        double focusDistance = exif != null ? focusDistance(exif) : Double.NaN;
+
+        Dimension size = null;
+        if (isRaw(file)) {
+            try {
+                size = RawDecoder.readDimensions(file);
+            } catch (Exception e) {
+                size = null;
+            }
+            if (size == null && exif != null) {
+                size = rawSize(exif);
+                // RAW decoders turn the frame upright, ImageIO does not
+                if (size != null && orientation >= 5 && orientation <= 8) {
+                    size = new Dimension(size.height, size.width);
+                }
+            }
+        } else {
+            try {
+                size = Imaging.getImageSize(file);
+            } catch (Exception e) {
+                size = null;
+            }
+        }
+
+        return new FrameInfo(file, size != null ? size.width : 0, size != null ? size.height : 0,
+                orientation, captureTime, focusDistance);
+    }
+
+    /**
+     * For RAW formats the Java decoder does not read: the size in the EXIF block, else the
+     * largest full-resolution directory. The sensor data of some formats (NEF) sits in
+     * sub-directories that are not read, so their size may stay unknown.
+     */
+    private static Dimension rawSize(TiffImageMetadata exif) {
+        int width = intValue(exif, ExifTagConstants.EXIF_TAG_EXIF_IMAGE_WIDTH, 0);
+        int height = intValue(exif, ExifTagConstants.EXIF_TAG_EXIF_IMAGE_LENGTH, 0);
+        if (width > 0 && height > 0) {
+            return new Dimension(width, height);
+        }
+
+        Dimension best = null;
+        for (Object item : exif.getDirectories()) {
+            if (!(item instanceof TiffImageMetadata.Directory directory)) {
+                continue;
+            }
+            try {
+                TiffField subfileType = directory.findField(TiffTagConstants.TIFF_TAG_NEW_SUBFILE_TYPE);
+                TiffField w = directory.findField(TiffTagConstants.TIFF_TAG_IMAGE_WIDTH);
+                TiffField h = directory.findField(TiffTagConstants.TIFF_TAG_IMAGE_LENGTH);
+                // Bit 0 marks a reduced-resolution preview
+                if (w == null || h == null || (subfileType != null && (subfileType.getIntValue() & 1) != 0)) {
+                    continue;
+                }
+                if (best == null || (long) w.getIntValue() * h.getIntValue() > (long) best.width * best.height) {
+                    best = new Dimension(w.getIntValue(), h.getIntValue());
+                }
+            } catch (Exception e) {
+                // Malformed directory: skip it
+            }
+        }
+        return best;
+    }
+
+    private static long captureTime(TiffImageMetadata exif) {
+        try {
+            TiffField date = exif.findField(ExifTagConstants.EXIF_TAG_DATE_TIME_ORIGINAL);
+            if (date == null) {
+                return -1;
+            }
+            long millis = LocalDateTime.parse(date.getStringValue().trim(), EXIF_DATE)
+                    .toInstant(ZoneOffset.UTC).toEpochMilli();
+            // Bursts share the second: the fraction keeps them in order
+            TiffField subSec = exif.findField(ExifTagConstants.EXIF_TAG_SUB_SEC_TIME_ORIGINAL);
+            if (subSec != null) {
+                String digits = subSec.getStringValue().trim();
+                if (digits.matches("\\d+")) {
+                    millis += Math.round(Double.parseDouble("0." + digits) * 1000);
+                }
+            }
+            return millis;
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    /** EXIF SubjectDistance, which 0 marks as unknown. */
+    private static double focusDistance(TiffImageMetadata exif) {
+        try {
+            TiffField distance = exif.findField(ExifTagConstants.EXIF_TAG_SUBJECT_DISTANCE);
+            if (distance != null) {
+                double metres = distance.getDoubleValue();
+                if (metres > 0) {
+                    return metres;
+                }
+            }
+        } catch (Exception e) {
+            // Treated as absent
+        }
+        return Double.NaN;
+    }
+
+    private static int intValue(TiffImageMetadata exif, TagInfo tag, int fallback) {
+        try {
+            TiffField field = exif.findField(tag);
+            return field != null ? field.getIntValue() : fallback;
+        } catch (Exception e) {
+            return fallback;
+        }
+    }
+
+    /**
+     * The focus distance when every frame has one and they are not all equal (focusing
+     * with the lens), else the capture time when every frame has one (a rail shoots in
+     * order), else the file name.
+     */
+    private static Order chooseOrder(List<FrameInfo> frames) {
+        boolean allDistances = !frames.isEmpty();
+        boolean allTimes = !frames.isEmpty();
+        double firstDistance = frames.isEmpty() ? Double.NaN : frames.get(0).focusDistance;
+        boolean distancesVary = false;
+        for (FrameInfo frame : frames) {
+            allDistances &= !Double.isNaN(frame.focusDistance);
+            allTimes &= frame.captureTime >= 0;
+            distancesVary |= frame.focusDistance != firstDistance;
+        }
+        if (allDistances && distancesVary) {
+            return Order.FOCUS_DISTANCE;
+        }
+        return allTimes ? Order.CAPTURE_TIME : Order.FILE_NAME;
+    }
+
+    private static Comparator<FrameInfo> comparator(Order order) {
+        Comparator<FrameInfo> byName = Comparator.comparing(frame -> frame.file.getName().toLowerCase(Locale.ROOT));
+        Comparator<FrameInfo> byTime = Comparator.<FrameInfo>comparingLong(frame -> frame.captureTime).thenComparing(byName);
+        return switch (order) {
+            case FOCUS_DISTANCE -> Comparator.<FrameInfo>comparingDouble(frame -> frame.focusDistance).thenComparing(byTime);
+            case CAPTURE_TIME -> byTime;
+            case FILE_NAME -> byName;
+        };
+    }
+
+    private static Dimension majoritySize(List<FrameInfo> frames) {
+        Map<Dimension, Integer> counts = new HashMap<>();
+        Dimension best = null;
+        for (FrameInfo frame : frames) {
+            if (!frame.hasSize()) {
+                continue;
+            }
+            Dimension size = new Dimension(frame.width, frame.height);
+            int count = counts.merge(size, 1, Integer::sum);
+            if (best == null || count > counts.get(best)) {
+                best = size;
+            }
+        }
+        return best;
+    }
+
+    static boolean isImageFile(File file) {
+        String name = file.getName().toLowerCase();
+        return isRaw(file) ||
+                name.endsWith(".jpg") || name.endsWith(".jpeg") ||
+                name.endsWith(".png") || name.endsWith(".tif") ||
+                name.endsWith(".tiff");
+    }
+
+    private static boolean isRaw(File file) {
+        String name = file.getName().toLowerCase();
+        return name.endsWith(".arw") || name.endsWith(".cr2") ||
+                name.endsWith(".cr3") || name.endsWith(".nef") ||
+                name.endsWith(".raw") || name.endsWith(".dng") ||
+                name.endsWith(".orf") || name.endsWith(".raf");
+    }
+}
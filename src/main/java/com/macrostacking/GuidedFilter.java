@@ -0,0 +1,137 @@
+package com.macrostacking;
+
+import java.util.Arrays;
+
+/**
+ * Box-filter guided filter (He et al.): smooths an input plane while following the edges
+ * of a guide plane. Every box mean is a separable running sum, so the cost per pixel does
+ * not depend on the radius. Windows are clipped to the plane. One instance owns the work
+ * buffers for one plane size and is reused from frame to frame.
+ */
+class GuidedFilter {
+    private static final double FIXED_ONE = 1 << 20;
+
+    private final int width;
+    private final int height;
+    private final int radius;
+    private final double eps;
+    private final double[] meanGuide;
+    private final double[] meanInput;
+    private final double[] product;
+    private final double[] a;
+    private final double[] b;
+    private final long[] row;
+    private final long[] column;
+    private final BufferPool pool;
+
+    GuidedFilter(int width, int height, int radius, double eps) {
+        this(width, height, radius, eps, BufferPool.NONE);
+    }
+
+    /** Work buffers are leased from the pool; {@link #release()} hands them back. */
+    GuidedFilter(int width, int height, int radius, double eps, BufferPool pool) {
+        this.width = width;
+        this.height = height;
+        this.radius = radius;
+        this.eps = eps;
+        this.pool = pool;
+        int size = width * height;
+        this.meanGuide = pool.leaseDoubles(size);
+        this.meanInput = pool.leaseDoubles(size);
+        this.product = pool.leaseDoubles(size);
+        this.a = pool.leaseDoubles(size);
+        this.b = pool.leaseDoubles(size);
+        this.row = pool.leaseLongs(size);
+        this.column = pool.leaseLongs(width);
+    }
+
+    void release() {
+        for (double[] plane : new double[][]{meanGuide, meanInput, product, a, b}) {
+            pool.release(plane);
+        }
+        pool.release(row);
+        pool.release(column);
+    }
+
+    /** out = mean(a) * guide + mean(b), with a, b the per-window linear fit of input on guide. */
+    void filter(double[] guide, double[] input, double[] out) {
+        int size = width * height;
+
+        boxMean(guide, meanGuide);
+        boxMean(input, meanInput);
+
+        for (int i = 0; i < size; i++) {
+            product[i] = guide[i] * input[i];
+        }
+        boxMean(product, a);
+        for (int i = 0; i < size; i++) {
+            product[i] = guide[i] * guide[i];
+        }
+        boxMean(product, b);
+
+        for (int i = 0; i < size; i++) {
+            double covariance = a[i] - meanGuide[i] * meanInput[i];
+            double variance = b[i] - meanGuide[i] * meanGuide[i];
+            a[i] = covariance / (variance + eps);
+            b[i] = meanInput[i] - a[i] * meanGuide[i];
+        }
+
+        boxMean(a, meanGuide);
+        boxMean(b, meanInput);
+        for (int i = 0; i < size; i++) {
+            out[i] = meanGuide[i] * guide[i] + meanInput[i];
+        }
+    }
+
+    /**
+     * Mean over the clipped (2r+1)^2 window: horizontal then vertical running sums. The sums
+     * run in fixed point so they are exact, which makes every mean independent of where the
+     * plane starts (tiles of different heights give the same result).
+     */
+    private void boxMean(double[] src, double[] dst) {
+        for (int y = 0; y < height; y++) {
+            int offset = y * width;
+            long sum = 0;
+            for (int x = 0; x < Math.min(radius, width); x++) {
+                sum += fixed(src[offset + x]);
+            }
+            for (int x = 0; x < width; x++) {
+                if (x + radius < width) sum += fixed(src[offset + x + radius]);
+                if (x - radius - 1 >= 0) sum -= fixed(src[offset + x - radius - 1]);
+                row[offset + x] = sum;
+            }
+        }
+
+        // Vertical pass row by row, with one running sum per column
+        Arrays.fill(column, 0);
+        for (int y = 0; y < Math.min(radius, height); y++) {
+            for (int x = 0; x < width; x++) {
+                column[x] += row[y * width + x];
+            }
+        }
+        for (int y = 0; y < height; y++) {
+            if (y + radius < height) {
+                int add = (y + radius) * width;
+                for (int x = 0; x < width; x++) {
+                    column[x] += row[add + x];
+                }
+            }
+            if (y - radius - 1 >= 0) {
+                int remove = (y - radius - 1) * width;
+                for (int x = 0; x < width; x++) {
+                    column[x] -= row[remove + x];
+                }
+            }
+            int countY = Math.min(height - 1, y + radius) - Math.max(0, y - radius) + 1;
+            int offset = y * width;
+            for (int x = 0; x < width; x++) {
+                int countX = Math.min(width - 1, x + radius) - Math.max(0, x - radius) + 1;
+                dst[offset + x] = column[x] / (FIXED_ONE * countX * countY);
+            }
+        }
+    }
+
+    private static long fixed(double value) {
+        return Math.round(value * FIXED_ONE);
+    }
+}
@@ -0,0 +1,178 @@
+package com.macrostacking;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.prefs.Preferences;
+
+/**
+ * Micro-benchmark of the stacking kernels on synthetic frames across thread counts and
+ * tile heights. The fastest configuration of each algorithm is stored in the user
+ * Preferences of this machine and picked up by every new {@link ImageStacker} of that
+ * algorithm. The tile is stored in bytes, so it keeps its cache footprint at any width.
+ */
+public class HardwareCalibration {
+    private static final int FRAME_WIDTH = 1024;
+    private static final int FRAME_HEIGHT = 768;
+    private static final int FRAME_COUNT = 6;
+    private static final int RUNS = 2;
+    private static final int[] TILE_HEIGHTS = {16, 32, 64, 128, 256};
+    private static final int BYTES_PER_PIXEL = 4;
+    private static final int MIN_TILE_ROWS = 8;
+
+    private static final Preferences prefs = Preferences.userNodeForPackage(HardwareCalibration.class).node("calibration");
+    private static volatile Map<StackingAlgorithm, Result> cached;
+
+    public static class Result {
+        public final StackingAlgorithm algorithm;
+        public final int threadCount;
+        public final long tileBytes;
+        public final long millis;
+
+        Result(StackingAlgorithm algorithm, int threadCount, long tileBytes, long millis) {
+            this.algorithm = algorithm;
+            this.threadCount = threadCount;
+            this.tileBytes = tileBytes;
+            this.millis = millis;
+        }
+
+        /** Rows per tile for a result {@code width} pixels wide. */
+        public int tileRows(int width) {
+            return (int) Math.max(MIN_TILE_ROWS, Math.min(Integer.MAX_VALUE,
+                    tileBytes / ((long) Math.max(1, width) * BYTES_PER_PIXEL)));
+        }
+
+        @Override
+        public String toString() {
+            return algorithm + ": " + threadCount + " threads, tuiles de " + (tileBytes >> 10) + " Ko (" + millis + " ms)";
+        }
+    }
+
+    /**
+     * The saved calibration of {@code algorithm} on this machine, or null if none (or the
+     * CPU count changed since).
+     */
+    public static Result load(StackingAlgorithm algorithm) {
+        Map<StackingAlgorithm, Result> results = cached;
+        if (results == null) {
+            results = new EnumMap<>(StackingAlgorithm.class);
+            if (prefs.getInt("cpus", -1) == Runtime.getRuntime().availableProcessors()) {
+                for (StackingAlgorithm saved : StackingAlgorithm.values()) {
+                    int threads = prefs.getInt(saved.name() + ".threads", -1);
+                    long tileBytes = prefs.getLong(saved.name() + ".tileBytes", -1);
+                    if (threads > 0 && tileBytes > 0) {
+                        results.put(saved, new Result(saved, threads, tileBytes, prefs.getLong(saved.name() + ".millis", 0)));
+                    }
+                }
+            }
+            cached = results;
+        }
+        return results.get(algorithm);
+    }
+
+    /** Benchmarks every configuration of every algorithm, saves the fastest of each and returns them. */
+    public static List<Result> run(ImageStacker.ProgressCallback callback) throws Exception {
+        BufferedImage[] frames = createFrames();
+        List<Integer> threadCounts = candidateThreadCounts();
+        StackingAlgorithm[] algorithms = StackingAlgorithm.values();
+        int total = algorithms.length * threadCounts.size() * TILE_HEIGHTS.length;
+        int done = 0;
+
+        List<Result> results = new ArrayList<>();
+        for (StackingAlgorithm algorithm : algorithms) {
+            // Warm-up so the first configuration is not penalised by JIT compilation
+            benchmark(algorithm, frames, threadCounts.get(threadCounts.size() - 1), 64);
+
+            Result best = null;
+            for (int threads : threadCounts) {
+                for (int tileHeight : TILE_HEIGHTS) {
+                    long millis = Long.MAX_VALUE;
+                    for (int run = 0; run < RUNS; run++) {
+                        millis = Math.min(millis, benchmark(algorithm, frames, threads, tileHeight));
+                    }
+                    System.out.println("Calibration " + algorithm.name() + ": " + threads + " threads, tuiles " +
+                            tileHeight + " -> " + millis + " ms");
+                    if (best == null || millis < best.millis) {
+                        best = new Result(algorithm, threads, (long) tileHeight * FRAME_WIDTH * BYTES_PER_PIXEL, millis);
+                    }
+                    done++;
+                    callback.update(done * 100 / total, "Calibration " + algorithm + " " + done + "/" + total);
+                }
+            }
+            results.add(best);
+        }
+
+        save(results);
+        return results;
+    }
+
+    private static void save(List<Result> results) {
+        Map<StackingAlgorithm, Result> saved = new EnumMap<>(StackingAlgorithm.class);
+        prefs.putInt("cpus", Runtime.getRuntime().availableProcessors());
+        for (Result result : results) {
+            prefs.putInt(result.algorithm.name() + ".threads", result.threadCount);
+            prefs.putLong(result.algorithm.name() + ".tileBytes", result.tileBytes);
+            prefs.putLong(result.algorithm.name() + ".millis", result.millis);
+            saved.put(result.algorithm, result);
+        }
+        // Rows measured at the old fixed width, meaningless at any other
+        prefs.remove("threads");
+        prefs.remove("tileHeight");
+        prefs.remove("millis");
+        cached = saved;
+    }
+
+    private static long benchmark(StackingAlgorithm algorithm, BufferedImage[] frames, int threads, int tileHeight)
+            throws Exception {
+        ImageStacker stacker = new ImageStacker(algorithm);
+        stacker.setAutoAlign(false);
+        stacker.setThreadCount(threads);
+        stacker.setTileHeight(tileHeight);
+
+        long start = System.nanoTime();
+        stacker.stackImages(frames, (p, s) -> {});
+        return (System.nanoTime() - start) / 1_000_000;
+    }
+
+    private static List<Integer> candidateThreadCounts() {
+        int cpus = Runtime.getRuntime().availableProcessors();
+        TreeSet<Integer> counts = new TreeSet<>();
+        for (int n = 1; n < cpus; n *= 2) {
+            counts.add(n);
+        }
+        counts.add(cpus);
+        return new ArrayList<>(counts);
+    }
+
+    /** Textured frames whose sharp band moves down the image, like a real focus series. */
+    private static BufferedImage[] createFrames() {
+        Random random = new Random(42);
+        int[] texture = new int[FRAME_WIDTH * FRAME_HEIGHT];
+        for (int i = 0; i < texture.length; i++) {
+            texture[i] = random.nextInt(256);
+        }
+
+        BufferedImage[] frames = new BufferedImage[FRAME_COUNT];
+        int[] row = new int[FRAME_WIDTH];
+        for (int f = 0; f < FRAME_COUNT; f++) {
+            frames[f] = new BufferedImage(FRAME_WIDTH, FRAME_HEIGHT, BufferedImage.TYPE_INT_RGB);
+            int sharpStart = f * FRAME_HEIGHT / FRAME_COUNT;
+            int sharpEnd = sharpStart + FRAME_HEIGHT / FRAME_COUNT;
+
+            for (int y = 0; y < FRAME_HEIGHT; y++) {
+                boolean sharp = y >= sharpStart && y < sharpEnd;
+                for (int x = 0; x < FRAME_WIDTH; x++) {
+                    int value = texture[y * FRAME_WIDTH + x];
+                    int gray = sharp ? value : 96 + value / 4;
+                    row[x] = (gray << 16) | (gray << 8) | gray;
+                }
+                frames[f].setRGB(0, y, FRAME_WIDTH, 1, row, 0, FRAME_WIDTH);
+            }
+        }
+        return frames;
+    }
+}
@@ -2,43 +2,295 @@
 package com.macrostacking;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Dimension;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.WritableRaster;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.util.Iterator;
 
 public class ImageLoader {
 
     public static BufferedImage loadImage(File file) throws Exception {
-        String filename = file.getName().toLowerCase();
-
-        if (filename.endsWith(".jpg") || filename.endsWith(".jpeg") ||
-                filename.endsWith(".png") || filename.endsWith(".tif") ||
-                filename.endsWith(".tiff")) {
+        if (isStandardImage(file)) {
             return ImageIO.read(file);
         }
 
-        return loadRawImage(file);
+        return loadRawImage(file, null);
+    }
+
+    /**
+     * The part of the image inside {@code region}, clipped to the image. JPEG, PNG and
+     * TIFF readers are given the region as source region, so they stop at its last row
+     * (TIFF reads only the strips or tiles it covers); RAW files the Java decoder handles
+     * are demosaiced over the region only, other RAW files are cropped right after decoding.
+     */
+    public static BufferedImage loadImage(File file, Rectangle region) throws Exception {
+        if (region == null) {
+            return loadImage(file);
+        }
+        if (!isStandardImage(file)) {
+            return loadRawImage(file, region);
+        }
+
+        try (ImageInputStream input = ImageIO.createImageInputStream(file)) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                Rectangle area = region.intersection(new Rectangle(0, 0, reader.getWidth(0), reader.getHeight(0)));
+                if (area.isEmpty()) {
+                    throw new Exception("Zone en dehors de l'image " + file.getName());
+                }
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceRegion(area);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /** A copy of {@code area} of the image, so that the rest of it can be freed. */
+    static BufferedImage crop(BufferedImage image, Rectangle area) {
+        ColorModel colorModel = image.getColorModel();
+        WritableRaster raster = colorModel.createCompatibleWritableRaster(area.width, area.height);
+        raster.setDataElements(0, 0, image.getRaster().createChild(area.x, area.y, area.width, area.height,
+                0, 0, null));
+        return new BufferedImage(colorModel, raster, colorModel.isAlphaPremultiplied(), null);
+    }
+
+    /** The image cropped to {@code region}, or as it is when there is no region. */
+    private static BufferedImage cropToRegion(BufferedImage image, Rectangle region, File file) throws Exception {
+        if (region == null) {
+            return image;
+        }
+        Rectangle area = region.intersection(new Rectangle(0, 0, image.getWidth(), image.getHeight()));
+        if (area.isEmpty()) {
+            throw new Exception("Zone en dehors de l'image " + file.getName());
+        }
+        return crop(image, area);
+    }
+
+    /**
+     * Frame dimensions without decoding pixels: image headers for JPEG/PNG/TIFF, the TIFF
+     * structure for DNG and CR2, dcraw's identify mode for other RAW. Falls back to a full
+     * decode when neither works.
+     */
+    public static Dimension readDimensions(File file) throws Exception {
+        if (isStandardImage(file)) {
+            try (ImageInputStream input = ImageIO.createImageInputStream(file)) {
+                Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+                if (readers.hasNext()) {
+                    ImageReader reader = readers.next();
+                    try {
+                        reader.setInput(input);
+                        return new Dimension(reader.getWidth(0), reader.getHeight(0));
+                    } finally {
+                        reader.dispose();
+                    }
+                }
+            }
+        } else {
+            Dimension raw = null;
+            try {
+                raw = RawDecoder.readDimensions(file);
+            } catch (Exception e) {
+                System.err.println("Java RAW decoder failed: " + e.getMessage());
+            }
+            if (raw == null) {
+                raw = readRawDimensionsWithDcraw(file);
+            }
+            if (raw != null) {
+                return raw;
+            }
+        }
+
+        BufferedImage img = loadImage(file);
+        return new Dimension(img.getWidth(), img.getHeight());
+    }
+
+    /** Output size reported by {@code dcraw -i -v}, without decoding; null if unavailable. */
+    private static Dimension readRawDimensionsWithDcraw(File file) {
+        try {
+            for (String line : identifyWithDcraw(file)) {
+                if (line.startsWith("Output size:")) {
+                    String[] size = line.substring("Output size:".length()).trim().split("\\s*x\\s*");
+                    return new Dimension(Integer.parseInt(size[0]), Integer.parseInt(size[1]));
+                }
+            }
+        } catch (Exception e) {
+            System.err.println("dcraw -i failed: " + e.getMessage());
+        }
+        return null;
+    }
+
+    private static String[] identifyWithDcraw(File file) throws Exception {
+        Process process = new ProcessBuilder("dcraw", "-i", "-v", file.getAbsolutePath())
+                .redirectErrorStream(true).start();
+        String output = new String(process.getInputStream().readAllBytes());
+        process.waitFor();
+        return output.split("\\R");
     }
 
-    private static BufferedImage loadRawImage(File file) throws Exception {
+    /**
+     * Bayer samples of a RAW file, scaled but not demosaiced, for stacking in the mosaic
+     * domain: the Java decoder for DNG and CR2, else dcraw. Neither dcraw nor a CR2 gives a
+     * colour matrix, so those mosaics keep the camera's primaries once developed.
+     */
+    public static RawDecoder.Mosaic loadRawMosaic(File file) throws Exception {
+        try {
+            RawDecoder.Mosaic mosaic = new RawDecoder().readMosaic(file);
+            if (mosaic != null) {
+                return mosaic;
+            }
+        } catch (Exception e) {
+            System.err.println("Java RAW decoder failed: " + e.getMessage());
+        }
+
+        try {
+            return loadMosaicWithDcraw(file);
+        } catch (Exception e) {
+            throw new Exception("Impossible de lire les données Bayer de " + file.getName() +
+                    "\nInstallez dcraw: sudo apt-get install dcraw\n" +
+                    "Erreur: " + e.getMessage());
+        }
+    }
+
+    /** {@code dcraw -d -w -4 -t 0}: black-subtracted, white-balanced 16-bit mosaic, unrotated. */
+    private static RawDecoder.Mosaic loadMosaicWithDcraw(File file) throws Exception {
+        int[] cfa = null;
+        for (String line : identifyWithDcraw(file)) {
+            if (line.startsWith("Filter pattern:")) {
+                cfa = parseFilterPattern(line.substring("Filter pattern:".length()).trim());
+            }
+        }
+        if (cfa == null) {
+            throw new Exception("motif de Bayer 2x2 RGB introuvable");
+        }
+
+        ProcessBuilder pb = new ProcessBuilder(
+                "dcraw",
+                "-c",           // Output to stdout
+                "-d",           // Document mode: no demosaic
+                "-w",           // Use camera white balance
+                "-4",           // 16-bit linear output
+                "-t", "0",      // Keep the sensor orientation, and so the CFA phase
+                file.getAbsolutePath()
+        );
+        pb.redirectError(ProcessBuilder.Redirect.DISCARD);
+        Process process = pb.start();
+
+        short[] data;
+        int width;
+        int height;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(process.getInputStream()))) {
+            if (!"P5".equals(readPnmToken(in))) {
+                throw new Exception("sortie dcraw inattendue");
+            }
+            width = Integer.parseInt(readPnmToken(in));
+            height = Integer.parseInt(readPnmToken(in));
+            int maxValue = Integer.parseInt(readPnmToken(in));
+            data = new short[width * height];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = maxValue > 255 ? in.readShort() : (short) in.readUnsignedByte();
+            }
+        }
+        int exitCode = process.waitFor();
+        if (exitCode != 0) {
+            throw new Exception("dcraw exit code: " + exitCode);
+        }
+
+        System.out.println("dcraw mosaic loaded: " + width + "x" + height);
+        return new RawDecoder.Mosaic(width, height, data, width, 0, cfa, null, FrameScanner.read(file).orientation);
+    }
+
+    /** Colours of the 2x2 cell from dcraw's pattern (two per row, row by row); null if not RGB. */
+    private static int[] parseFilterPattern(String pattern) {
+        pattern = pattern.replace("/", "");
+        if (pattern.length() < 4) {
+            return null;
+        }
+        int[] cfa = new int[4];
+        for (int cell = 0; cell < 4; cell++) {
+            cfa[cell] = "RGB".indexOf(pattern.charAt(cell));
+            if (cfa[cell] < 0) {
+                return null;
+            }
+        }
+        // Up to 8 rows of 2 columns are printed: the pattern must repeat every 2 rows
+        for (int i = 4; i + 4 <= Math.min(16, pattern.length()); i += 4) {
+            if (!pattern.substring(i, i + 4).equals(pattern.substring(0, 4))) {
+                return null;
+            }
+        }
+        return cfa;
+    }
+
+    private static String readPnmToken(DataInputStream in) throws IOException {
+        StringBuilder token = new StringBuilder();
+        int c = in.read();
+        while (c == '#' || Character.isWhitespace(c)) {
+            if (c == '#') {
+                while (c != '\n' && c != -1) {
+                    c = in.read();
+                }
+            }
+            c = in.read();
+        }
+        while (c != -1 && !Character.isWhitespace(c)) {
+            token.append((char) c);
+            c = in.read();
+        }
+        return token.toString();
+    }
+
+    private static boolean isStandardImage(File file) {
+        String filename = file.getName().toLowerCase();
+        return filename.endsWith(".jpg") || filename.endsWith(".jpeg") ||
+                filename.endsWith(".png") || filename.endsWith(".tif") ||
+                filename.endsWith(".tiff");
+    }
+
+    private static BufferedImage loadRawImage(File file, Rectangle region) throws Exception {
         Exception lastException = null;
 
+        // DNG decodes in-process; CR2, other formats and layouts return null
+        try {
+            BufferedImage img = region == null ? RawDecoder.decode(file) : new RawDecoder().read(file, region);
+            if (img != null) {
+                return img;
+            }
+        } catch (Exception e) {
+            System.err.println("Java RAW decoder failed: " + e.getMessage());
+        }
+
         try {
-            return loadRawWithDcraw(file);
+            return cropToRegion(loadRawWithDcraw(file), region, file);
         } catch (Exception e1) {
             lastException = e1;
             System.err.println("dcraw failed: " + e1.getMessage());
 
             try {
-                return loadRawWithImageMagick(file);
+                return cropToRegion(loadRawWithImageMagick(file), region, file);
             } catch (Exception e2) {
                 lastException = e2;
                 System.err.println("ImageMagick failed: " + e2.getMessage());
 
                 try {
-                    return extractEmbeddedJpeg(file);
+                    return cropToRegion(extractEmbeddedJpeg(file), region, file);
                 } catch (Exception e3) {
                     lastException = e3;
                     System.err.println("Embedded JPEG failed: " + e3.getMessage());
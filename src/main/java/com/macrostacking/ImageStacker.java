@@ -3,27 +3,79 @@ package com.macrostacking;
 import java.awt.image.BufferedImage;
 import java.awt.*;
 import java.io.File;
+import java.io.IOException;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class ImageStacker {
+    /** Largest shift the alignment search tries: frames moved that far still cover the region. */
+    public static final int DEFAULT_REGION_MARGIN = 100;
+    static final int DEFAULT_TILE_HEIGHT = 64;
+    static final int DEPTH_MEDIAN_RADIUS = 5;
+    // Guided filter of the depth-map weights: 9x9 windows, eps = (10% of full scale)^2
+    static final int GUIDED_RADIUS = 4;
+    private static final double GUIDED_EPS = 25.5 * 25.5;
+    private static final double MIN_BLEND_WEIGHT = 1e-6;
+
     private final StackingAlgorithm algorithm;
     private boolean autoAlign = true;
+    private boolean compressFrames = false;
+    private boolean offHeapFrames = false;
+    private FrameArena frameArena;
+    private BufferPool bufferPool = BufferPool.NONE;
+    private TileListener tileListener;
+    private double priorityHeight = 0.5;
+    private volatile boolean cancelled;
     private ProgressCallback progressCallback;
     private int finalWidth;
     private int finalHeight;
     private int threadCount;
+    // Rows per tile once set; 0 uses the calibrated tile size at the result's width
+    private int tileHeight;
+    private final HardwareCalibration.Result calibration;
+    private FocusMeasure focusMeasure;
+    private File checkpointDirectory;
+    private StackCheckpoint checkpoint;
+    private boolean retainFrames;
+    private StackFrame[] retainedFrames;
+    private ScoreCache scoreCache;
+    private Rectangle region;
+    private int regionMargin = DEFAULT_REGION_MARGIN;
+    // Area decoded from each file and the region inside it, for the current run
+    private Rectangle loadWindow;
+    private Rectangle regionInWindow;
+    // Shorter side of the whole frame, which sets the alignment search radius and sampling grid; 0 to use the image's own
+    private int alignmentFrameSide;
 
     @FunctionalInterface
     public interface ProgressCallback {
         void update(int progress, String status);
     }
 
+    /** Receives each tile of the result as soon as it is final, on a stacking thread. */
+    @FunctionalInterface
+    public interface TileListener {
+        /** Rows [startY, endY) of {@code result} hold their final pixels. */
+        void tileCompleted(BufferedImage result, int startY, int endY);
+    }
+
     public ImageStacker(StackingAlgorithm algorithm) {
         this.algorithm = algorithm;
         this.threadCount = Runtime.getRuntime().availableProcessors();
+
+        this.calibration = HardwareCalibration.load(algorithm);
+        if (calibration != null) {
+            this.threadCount = calibration.threadCount;
+        }
     }
 
     public void setAutoAlign(boolean autoAlign) {
@@ -34,41 +86,540 @@ public class ImageStacker {
         this.threadCount = Math.max(1, count);
     }
 
+    /**
+     * Keeps aligned frames Deflate-compressed in memory instead of as raw BufferedImages,
+     * trading some CPU for a much deeper stack in the same heap.
+     */
+    public void setCompressFrames(boolean compressFrames) {
+        this.compressFrames = compressFrames;
+    }
+
+    /**
+     * Keeps decoded frames outside the Java heap (see {@link FrameArena}), freed as soon as
+     * the stack finishes. Compression, when enabled, takes precedence.
+     */
+    public void setOffHeapFrames(boolean offHeapFrames) {
+        this.offHeapFrames = offHeapFrames;
+    }
+
+    public void setTileListener(TileListener listener) {
+        this.tileListener = listener;
+    }
+
+    /**
+     * Height (0 = top, 1 = bottom) around which tiles are stacked first, e.g. the user's
+     * point of interest; the centre by default. The result does not depend on it.
+     */
+    public void setPriorityHeight(double fraction) {
+        this.priorityHeight = Math.max(0, Math.min(1, fraction));
+    }
+
+    /**
+     * Stops the running stack from any thread: pending frames and tiles are skipped and
+     * stackImages throws a CancellationException. A checkpointed run can be resumed later.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    private void checkCancelled() {
+        if (cancelled) {
+            throw new CancellationException("Stacking annulé");
+        }
+    }
+
+    /** Pool that work planes and result images are leased from (see {@link StackingSession}). */
+    void setBufferPool(BufferPool bufferPool) {
+        this.bufferPool = bufferPool != null ? bufferPool : BufferPool.NONE;
+    }
+
+    public void setTileHeight(int rows) {
+        this.tileHeight = Math.max(8, rows);
+    }
+
+    /**
+     * Stacks only this rectangle of the frames, null for the whole frame. Files are decoded
+     * over the rectangle plus a margin (see {@link #setRegionMargin}), aligned on that
+     * window and stacked over the rectangle, so time and memory follow its area. The result
+     * is the size of the rectangle clipped to the frames. Such runs are not checkpointed.
+     */
+    public void setRegion(Rectangle region) {
+        this.region = region != null ? new Rectangle(region) : null;
+    }
+
+    /** Pixels decoded around the region for the alignment; none are added without auto-alignment. */
+    public void setRegionMargin(int pixels) {
+        this.regionMargin = Math.max(0, pixels);
+    }
+
+    /** Sharpness measure used to rank or weight frames; null restores the algorithm's own. */
+    public void setFocusMeasure(FocusMeasure focusMeasure) {
+        this.focusMeasure = focusMeasure;
+    }
+
+    FocusMeasure focusMeasure() {
+        return focusMeasure != null ? focusMeasure : FocusMeasures.defaultFor(algorithm);
+    }
+
+    /**
+     * Checkpoints file stacks into this scratch directory (alignment offsets and finished
+     * tiles) and resumes from it when it already holds a checkpoint for the same inputs.
+     * The directory is removed once the stack completes.
+     */
+    public void setCheckpointDirectory(File directory) {
+        this.checkpointDirectory = directory;
+    }
+
+    /**
+     * Keeps the aligned frames of each run so that {@link #createRetoucher} can fix areas
+     * of its result afterwards. They stay in memory until the retoucher is closed.
+     */
+    public void setRetainFrames(boolean retainFrames) {
+        this.retainFrames = retainFrames;
+    }
+
+    /**
+     * Retoucher over the frames of the last run and its result, which it modifies in
+     * place. The frames are handed over: the next run of this stacker does not touch them.
+     */
+    public StackRetoucher createRetoucher(BufferedImage result) throws Exception {
+        if (retainedFrames == null) {
+            throw new Exception("Aucune image conservée pour la retouche");
+        }
+        if (result.getWidth() != finalWidth || result.getHeight() != finalHeight) {
+            throw new Exception("Le résultat ne correspond pas au dernier stacking");
+        }
+        StackRetoucher retoucher = new StackRetoucher(retainedFrames, frameArena, result, threadCount, focusMeasure);
+        retainedFrames = null;
+        frameArena = null;
+        return retoucher;
+    }
+
+    /** Focus scores kept from one run to the next on the same frame objects. */
+    interface ScoreCache {
+        /** Scores of the tile starting at {@code startY}, or null if not known. */
+        double[] get(StackFrame frame, String measureId, int startY);
+
+        void put(StackFrame frame, String measureId, int startY, double[] scores);
+    }
+
+    void setScoreCache(ScoreCache scoreCache) {
+        this.scoreCache = scoreCache;
+    }
+
     public BufferedImage stackImages(List<File> files, ProgressCallback callback) throws Exception {
         if (files.isEmpty()) {
             throw new Exception("Aucune image à traiter");
         }
 
         this.progressCallback = callback;
+        retainedFrames = null;
+
+        // Offsets found on a region's window would not fit a full run of the same files
+        if (checkpointDirectory == null || region != null) {
+            return stackFiles(files);
+        }
+
+        checkpoint = StackCheckpoint.open(checkpointDirectory, files, algorithm);
+        boolean success = false;
+        try {
+            BufferedImage result = stackFiles(files);
+            success = true;
+            return result;
+        } finally {
+            StackCheckpoint finished = checkpoint;
+            checkpoint = null;
+            finished.close(success);
+        }
+    }
+
+    private BufferedImage stackFiles(List<File> files) throws Exception {
+        try {
+            return stackFrames(prepareFileFrames(files));
+        } finally {
+            if (retainedFrames == null) {
+                releaseFrames();
+            }
+        }
+    }
+
+    /** Frees the off-heap frames of the last load, if any. */
+    void releaseFrames() {
+        if (frameArena != null) {
+            frameArena.close();
+            frameArena = null;
+        }
+    }
+
+    /**
+     * Decodes and aligns the files without stacking them, for callers that distribute the
+     * stacking itself (see {@link TileCoordinator}).
+     */
+    StackFrame[] loadFrames(List<File> files, ProgressCallback callback) throws Exception {
+        if (files.isEmpty()) {
+            throw new Exception("Aucune image à traiter");
+        }
+        this.progressCallback = callback;
+        return prepareFileFrames(files);
+    }
+
+    /** Stacks frames that are already aligned on a common grid, e.g. one band sent to a {@link TileWorker}. */
+    BufferedImage stackFrames(StackFrame[] frames, ProgressCallback callback) throws Exception {
+        this.progressCallback = callback;
+        finalWidth = frames[0].getWidth();
+        finalHeight = frames[0].getHeight();
+        return stackFrames(frames);
+    }
+
+    /** Receives the scores of one frame over one tile, NaN outside the frame's valid area. */
+    @FunctionalInterface
+    interface ScoreSink {
+        void accept(int frame, int startY, int endY, double[] scores) throws Exception;
+    }
+
+    /**
+     * Scores frames already aligned on a common grid without assembling anything, for
+     * callers that build the result from other data (see {@link BayerStacker}). Each tile
+     * is handled by one thread, frames in order; scores are indexed from the tile's first row.
+     */
+    void scoreFrames(StackFrame[] frames, ProgressCallback callback, ScoreSink sink) throws Exception {
+        this.progressCallback = callback;
+        finalWidth = frames[0].getWidth();
+        finalHeight = frames[0].getHeight();
+        bufferPool.setGeometry(finalWidth, finalHeight);
+
+        runTiles((startY, endY) -> {
+            TileScorer scorer = new TileScorer(startY, endY);
+            for (int f = 0; f < frames.length; f++) {
+                if (scorer.score(frames[f])) {
+                    sink.accept(f, startY, endY, scorer.scores);
+                }
+            }
+            scorer.release();
+        }, 50, 25, "Netteté");
+    }
+
+    /** Median-smoothed copy of a per-pixel frame index map, as the depth-map algorithm uses it. */
+    int[][] smoothDepthMap(int[][] depthMap, ProgressCallback callback) {
+        this.progressCallback = callback;
+        return medianFilterDepthMapSimple(depthMap, DEPTH_MEDIAN_RADIUS);
+    }
+
+    /** Translation of each image onto the first, found as for a regular stack. */
+    Point[] alignmentOffsets(BufferedImage[] images, ProgressCallback callback) {
+        Point[] referencePoints = detectKeyPoints(images[0]);
+        Point[] offsets = new Point[images.length];
+        offsets[0] = new Point(0, 0);
+        for (int i = 1; i < images.length; i++) {
+            checkCancelled();
+            callback.update(30 + (i * 20 / images.length), "Alignement " + (i + 1) + "/" + images.length);
+            offsets[i] = calculateBestOffset(images[0], images[i], referencePoints, detectKeyPoints(images[i]));
+        }
+        return offsets;
+    }
+
+    private StackFrame[] prepareFileFrames(List<File> files) throws Exception {
+        resolveRegion(files.get(0));
+        StackFrame[] frames;
+        if (compressFrames || offHeapFrames) {
+            frames = loadFramesOneByOne(files);
+        } else {
+            progressCallback.update(0, "Chargement de " + files.size() + " images (" + threadCount + " threads)...");
+            BufferedImage[] images = loadImagesParallel(files);
+
+            List<String> names = new ArrayList<>();
+            for (File file : files) {
+                names.add(file.getName());
+            }
+            frames = prepareFrames(images, names);
+        }
+
+        return cropToRegion(frames);
+    }
+
+    /** Works out the window decoded from each file for the region, clipped to the frames. */
+    private void resolveRegion(File first) throws Exception {
+        loadWindow = null;
+        regionInWindow = null;
+        alignmentFrameSide = 0;
+        if (region == null) {
+            return;
+        }
+
+        Rectangle frame = new Rectangle(ImageLoader.readDimensions(first));
+        Rectangle area = region.intersection(frame);
+        if (area.isEmpty()) {
+            throw new Exception("La zone d'intérêt est en dehors des images");
+        }
+        int margin = autoAlign ? regionMargin : 0;
+        Rectangle window = new Rectangle(area.x - margin, area.y - margin, area.width + 2 * margin,
+                area.height + 2 * margin).intersection(frame);
+        loadWindow = window;
+        regionInWindow = new Rectangle(area.x - window.x, area.y - window.y, area.width, area.height);
+        // Sampled as densely as the whole frame would be, so the alignment also costs the window's share
+        alignmentFrameSide = Math.min(frame.width, frame.height);
+        System.out.println("Region of interest: " + area.width + "x" + area.height + " at (" + area.x + ", " +
+                area.y + "), decoding " + window.width + "x" + window.height + " of " + frame.width + "x" + frame.height);
+    }
+
+    /** Decodes the file, over the region's window only when there is one. */
+    private BufferedImage load(File file) throws Exception {
+        return ImageLoader.loadImage(file, loadWindow);
+    }
+
+    /** Frames aligned on the decoded window, narrowed to the region itself. */
+    private StackFrame[] cropToRegion(StackFrame[] frames) {
+        if (regionInWindow == null) {
+            return frames;
+        }
+        Rectangle area = regionInWindow;
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = new TranslatedFrame(frames[i], -area.x, -area.y, area.width, area.height);
+        }
+        finalWidth = area.width;
+        finalHeight = area.height;
+        return frames;
+    }
+
+    /**
+     * Stacks frames that are already decoded, such as the intermediate results of a
+     * slab stack. Alignment and stacking behave exactly as for files.
+     */
+    public BufferedImage stackImages(BufferedImage[] images, ProgressCallback callback) throws Exception {
+        if (images.length == 0) {
+            throw new Exception("Aucune image à traiter");
+        }
+
+        this.progressCallback = callback;
+        retainedFrames = null;
+
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < images.length; i++) {
+            names.add("image " + (i + 1));
+        }
+        return stackFrames(prepareFrames(images, names));
+    }
+
+    /**
+     * Stacks the files once for several algorithms. Frames are decoded and aligned once;
+     * then, tile by tile, each frame is read once and scored once per distinct focus
+     * measure, and every algorithm folds those scores into its own result. DEPTH_MAP
+     * still needs its own smoothing and assembly pass. Each result is what
+     * {@link #stackImages} gives with that algorithm (and the focus measure set here, if
+     * any); the algorithm given to the constructor is not used. Not checkpointed.
+     */
+    public Map<StackingAlgorithm, BufferedImage> stackAlgorithms(List<File> files,
+                                                                 Collection<StackingAlgorithm> algorithms,
+                                                                 ProgressCallback callback) throws Exception {
+        if (files.isEmpty()) {
+            throw new Exception("Aucune image à traiter");
+        }
+        if (algorithms.isEmpty()) {
+            throw new Exception("Aucun algorithme choisi");
+        }
+
+        this.progressCallback = callback;
+        retainedFrames = null;
+        try {
+            return stackAlgorithms(prepareFileFrames(files), EnumSet.copyOf(algorithms));
+        } finally {
+            releaseFrames();
+        }
+    }
 
-        callback.update(0, "Chargement de " + files.size() + " images (" + threadCount + " threads)...");
-        BufferedImage[] images = loadImagesParallel(files);
+    /**
+     * Folds the files into a running composite one at a time (the next file is decoded
+     * while the current one is folded), so memory holds the reference, two frames and
+     * the accumulators whatever the stack depth. Same result as {@link #stackImages}
+     * except for DEPTH_MAP, which gets no median smoothing in this mode.
+     */
+    public BufferedImage stackStreaming(List<File> files, ProgressCallback callback) throws Exception {
+        if (files.isEmpty()) {
+            throw new Exception("Aucune image à traiter");
+        }
+
+        resolveRegion(files.get(0));
+        ExecutorService decoder = Executors.newSingleThreadExecutor();
+        try {
+            callback.update(0, "Chargement: " + files.get(0).getName());
+            RunningComposite composite = startRunningComposite(loadRequired(files.get(0)), (p, s) -> {});
+            Future<BufferedImage> next = files.size() > 1 ? decoder.submit(() -> loadRequired(files.get(1))) : null;
+
+            for (int i = 1; i < files.size(); i++) {
+                BufferedImage image = next.get();
+                int following = i + 1;
+                next = following < files.size() ? decoder.submit(() -> loadRequired(files.get(following))) : null;
+
+                addToRunningComposite(composite, image, files.get(i).getName());
+                callback.update(i * 95 / files.size(), "Fusionnée: " + files.get(i).getName());
+            }
 
+            BufferedImage result = renderRunningComposite(composite, null);
+            if (regionInWindow != null) {
+                result = ImageLoader.crop(result, regionInWindow);
+            }
+            callback.update(100, "Terminé - " + result.getWidth() + "x" + result.getHeight());
+            return result;
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception cause ? cause : e;
+        } finally {
+            // A frame still decoding after a failure or cancel would hold memory the caller thinks free
+            stopAndWait(decoder);
+        }
+    }
+
+    private BufferedImage loadRequired(File file) throws Exception {
+        BufferedImage image = load(file);
+        if (image == null) {
+            throw new Exception("Format non reconnu: " + file.getName());
+        }
+        return image;
+    }
+
+    /**
+     * Running composite for live stacking: frames are aligned on the reference and folded
+     * in one at a time, so only the accumulators and the reference stay in memory.
+     * DEPTH_MAP folds as a per-pixel sharpest-frame selection (no median smoothing).
+     */
+    static class RunningComposite {
+        final BufferedImage reference;
+        final Point[] referencePoints;
+        final double[] scores;
+        final int[] pixels;
+        final double[][] sums;
+        int frameCount;
+
+        RunningComposite(BufferedImage reference, Point[] referencePoints, boolean weighted) {
+            int size = reference.getWidth() * reference.getHeight();
+            this.reference = reference;
+            this.referencePoints = referencePoints;
+            this.scores = weighted ? null : new double[size];
+            this.pixels = weighted ? null : new int[size];
+            this.sums = weighted ? new double[4][size] : null;
+            if (scores != null) {
+                Arrays.fill(scores, -1);
+            }
+        }
+    }
+
+    RunningComposite startRunningComposite(BufferedImage reference, ProgressCallback callback) throws Exception {
+        this.progressCallback = callback;
+        finalWidth = reference.getWidth();
+        finalHeight = reference.getHeight();
+
+        Point[] referencePoints = autoAlign ? detectKeyPoints(reference) : null;
+        RunningComposite composite = new RunningComposite(reference, referencePoints,
+                algorithm == StackingAlgorithm.WEIGHTED_AVERAGE);
+        foldFrame(composite, new BufferedStackFrame(reference));
+        return composite;
+    }
+
+    void addToRunningComposite(RunningComposite composite, BufferedImage image, String name) throws Exception {
+        StackFrame frame;
+        if (autoAlign) {
+            Point offset = calculateBestOffset(composite.reference, image, composite.referencePoints,
+                    detectKeyPoints(image));
+            frame = new TranslatedFrame(new BufferedStackFrame(image), offset.x, offset.y, finalWidth, finalHeight);
+        } else {
+            frame = wrapFrame(image, name);
+        }
+        foldFrame(composite, frame);
+    }
+
+    private void foldFrame(RunningComposite composite, StackFrame frame) throws Exception {
+        runTiles((startY, endY) -> {
+            TileScorer scorer = new TileScorer(startY, endY);
+            if (!scorer.score(frame)) {
+                scorer.release();
+                return;
+            }
+
+            int offset = startY * finalWidth;
+            for (int i = 0; i < scorer.scores.length; i++) {
+                double score = scorer.scores[i];
+                if (Double.isNaN(score)) continue;
+                int rgb = scorer.pixel(i);
+
+                if (composite.sums != null) {
+                    double weight = Math.pow(score + 1, 2);
+                    composite.sums[0][offset + i] += ((rgb >> 16) & 0xFF) * weight;
+                    composite.sums[1][offset + i] += ((rgb >> 8) & 0xFF) * weight;
+                    composite.sums[2][offset + i] += (rgb & 0xFF) * weight;
+                    composite.sums[3][offset + i] += weight;
+                } else if (score > composite.scores[offset + i]) {
+                    composite.scores[offset + i] = score;
+                    composite.pixels[offset + i] = rgb;
+                }
+            }
+            scorer.release();
+        }, 0, 100, "Fusion");
+        composite.frameCount++;
+    }
+
+    /** Renders the current state of the running composite into target (created if null). */
+    BufferedImage renderRunningComposite(RunningComposite composite, BufferedImage target) {
+        if (target == null) {
+            target = new BufferedImage(finalWidth, finalHeight, BufferedImage.TYPE_INT_RGB);
+        }
+
+        if (composite.sums != null) {
+            int[] row = new int[finalWidth];
+            for (int y = 0; y < finalHeight; y++) {
+                int offset = y * finalWidth;
+                for (int x = 0; x < finalWidth; x++) {
+                    row[x] = weightedAverage(composite.sums[0][offset + x], composite.sums[1][offset + x],
+                            composite.sums[2][offset + x], composite.sums[3][offset + x]);
+                }
+                target.setRGB(0, y, finalWidth, 1, row, 0, finalWidth);
+            }
+        } else {
+            target.setRGB(0, 0, finalWidth, finalHeight, composite.pixels, 0, finalWidth);
+        }
+        return target;
+    }
+
+    private StackFrame[] prepareFrames(BufferedImage[] images, List<String> names) throws Exception {
         finalWidth = images[0].getWidth();
         finalHeight = images[0].getHeight();
-        callback.update(30, "Résolution: " + finalWidth + "x" + finalHeight);
+        progressCallback.update(30, "Résolution: " + finalWidth + "x" + finalHeight);
 
         if (autoAlign && images.length > 1) {
-            callback.update(30, "Alignement automatique...");
-            images = alignImages(images);
-            callback.update(50, "Alignement terminé");
+            progressCallback.update(30, "Alignement automatique...");
+            StackFrame[] frames = alignImages(images);
+            progressCallback.update(50, "Alignement terminé");
+            return frames;
         }
 
-        callback.update(50, "Stacking multi-threadé (" + threadCount + " threads)...");
+        StackFrame[] frames = new StackFrame[images.length];
+        for (int i = 0; i < images.length; i++) {
+            frames[i] = wrapFrame(images[i], names.get(i));
+        }
+        return frames;
+    }
+
+    private BufferedImage stackFrames(StackFrame[] frames) throws Exception {
+        bufferPool.setGeometry(finalWidth, finalHeight);
+        if (checkpoint != null) {
+            // Tiles are keyed by their first row, so a resumed run keeps the original tile height
+            tileHeight = checkpoint.bindGeometry(finalWidth, finalHeight, tileRows(), focusMeasure().getId());
+        }
+
+        progressCallback.update(50, "Stacking multi-threadé (" + threadCount + " threads)...");
         BufferedImage result = switch (algorithm) {
-            case WEIGHTED_AVERAGE -> stackWeightedAverageParallel(images);
-            case DEPTH_MAP -> stackDepthMapParallel(images);
-            case PYRAMID -> stackPyramidParallel(images);
-            case MAX_CONTRAST -> stackMaxContrastParallel(images);
-            case LAPLACIAN -> stackLaplacianParallel(images);
+            case WEIGHTED_AVERAGE -> stackWeightedAverageParallel(frames);
+            case DEPTH_MAP -> stackDepthMapParallel(frames);
+            case PYRAMID -> stackPyramidParallel(frames);
+            case MAX_CONTRAST -> stackMaxContrastParallel(frames);
+            case LAPLACIAN -> stackLaplacianParallel(frames);
         };
 
         if (result.getWidth() != finalWidth || result.getHeight() != finalHeight) {
-            callback.update(95, "Redimensionnement final...");
+            progressCallback.update(95, "Redimensionnement final...");
             result = resizeToExact(result, finalWidth, finalHeight);
         }
 
-        callback.update(100, "Terminé - " + result.getWidth() + "x" + result.getHeight());
+        progressCallback.update(100, "Terminé - " + result.getWidth() + "x" + result.getHeight());
+        retainedFrames = retainFrames ? frames : null;
         return result;
     }
 
@@ -83,7 +634,8 @@ public class ImageStacker {
 
             futures.add(executor.submit(() -> {
                 try {
-                    BufferedImage img = ImageLoader.loadImage(file);
+                    checkCancelled();
+                    BufferedImage img = load(file);
                     return new ImageLoadResult(index, img, null);
                 } catch (Exception e) {
                     return new ImageLoadResult(index, null, e);
@@ -94,7 +646,7 @@ public class ImageStacker {
         for (Future<ImageLoadResult> future : futures) {
             ImageLoadResult result = future.get();
             if (result.error != null) {
-                executor.shutdown();
+                stopAndWait(executor);
                 throw result.error;
             }
             images[result.index] = result.image;
@@ -102,10 +654,109 @@ public class ImageStacker {
                     "Chargée: " + files.get(result.index).getName());
         }
 
-        executor.shutdown();
+        stopAndWait(executor);
         return images;
     }
 
+    private StackFrame wrapFrame(BufferedImage image, String name) throws Exception {
+        if (image.getWidth() != finalWidth || image.getHeight() != finalHeight) {
+            throw new Exception("Dimensions différentes pour " + name + ": " +
+                    image.getWidth() + "x" + image.getHeight() + " au lieu de " + finalWidth + "x" + finalHeight);
+        }
+        return new BufferedStackFrame(image);
+    }
+
+    /**
+     * Loads, aligns and stores frames one by one, compressed or off-heap, so that at most
+     * one decoded frame per thread (plus the reference) is on the heap at any time.
+     */
+    private StackFrame[] loadFramesOneByOne(List<File> files) throws Exception {
+        progressCallback.update(0, (compressFrames ? "Chargement compressé de " : "Chargement hors tas de ") +
+                files.size() + " images (" + threadCount + " threads)...");
+
+        BufferedImage reference = load(files.get(0));
+        finalWidth = reference.getWidth();
+        finalHeight = reference.getHeight();
+        progressCallback.update(1, "Résolution: " + finalWidth + "x" + finalHeight);
+
+        StackFrame[] frames = new StackFrame[files.size()];
+        CompressedFrameStore store;
+        FrameSink sink;
+        if (compressFrames) {
+            // Every frame is read band by band: keep the bands in flight decoded in all of them
+            int bandRows = tileRows() + 2 * Math.max(focusMeasure().getHalo(), 2 * GUIDED_RADIUS);
+            store = new CompressedFrameStore(files.size(), finalWidth, finalHeight,
+                    CompressedFrameStore.bandCacheBytes(files.size(), finalWidth, bandRows, threadCount));
+            sink = (index, frame) -> {
+                store.put(index, frame);
+                frames[index] = store.frame(index);
+            };
+        } else {
+            store = null;
+            releaseFrames();
+            FrameArena arena = new FrameArena();
+            frameArena = arena;
+            sink = (index, frame) -> frames[index] = arena.copyOf(frame);
+        }
+        sink.put(0, new BufferedStackFrame(reference));
+
+        boolean align = autoAlign && files.size() > 1;
+        Point[] referencePoints = align ? detectKeyPoints(reference) : null;
+
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        List<Future<?>> futures = new ArrayList<>();
+        AtomicInteger loaded = new AtomicInteger(1);
+
+        for (int i = 1; i < files.size(); i++) {
+            final int index = i;
+            final File file = files.get(i);
+
+            futures.add(executor.submit(() -> {
+                checkCancelled();
+                BufferedImage img = load(file);
+                if (align) {
+                    Point offset = alignmentOffset(index, reference, referencePoints, img);
+                    sink.put(index, new TranslatedFrame(new BufferedStackFrame(img), offset.x, offset.y,
+                            finalWidth, finalHeight));
+                } else {
+                    sink.put(index, wrapFrame(img, file.getName()));
+                }
+
+                int done = loaded.incrementAndGet();
+                progressCallback.update(done * 50 / files.size(), (compressFrames ? "Compressée: " : "Chargée: ") + file.getName());
+                return null;
+            }));
+        }
+
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception cause ? cause : e;
+        } finally {
+            // The frames may be freed as soon as this returns: no task may still touch them
+            stopAndWait(executor);
+        }
+        if (checkpoint != null) {
+            checkpoint.flush();
+        }
+
+        if (store != null) {
+            System.out.println("Images compressées: " + (store.getCompressedBytes() >> 20) + " Mo au lieu de " +
+                    (store.getRawBytes() >> 20) + " Mo");
+        } else {
+            System.out.println("Images hors tas: " + (frameArena.getAllocatedBytes() >> 20) + " Mo");
+        }
+        return frames;
+    }
+
+    /** Destination of the frames loaded one by one. */
+    @FunctionalInterface
+    private interface FrameSink {
+        void put(int index, StackFrame frame);
+    }
+
     private static class ImageLoadResult {
         int index;
         BufferedImage image;
@@ -128,22 +779,119 @@ public class ImageStacker {
         }
     }
 
-    private List<WorkBand> createWorkBands(int totalHeight, int numBands) {
+    /** The tile height set, else the calibrated tile size at the result's width, else the default. */
+    private int tileRows() {
+        if (tileHeight > 0) {
+            return tileHeight;
+        }
+        return calibration != null ? calibration.tileRows(finalWidth) : DEFAULT_TILE_HEIGHT;
+    }
+
+    private List<WorkBand> createWorkBands(int totalHeight, int bandHeight) {
         List<WorkBand> bands = new ArrayList<>();
-        int linesPerBand = (int) Math.ceil((double) totalHeight / numBands);
 
-        for (int i = 0; i < numBands; i++) {
-            int startY = i * linesPerBand;
-            int endY = Math.min(startY + linesPerBand, totalHeight);
+        for (int startY = 0; startY < totalHeight; startY += bandHeight) {
+            bands.add(new WorkBand(startY, Math.min(startY + bandHeight, totalHeight)));
+        }
+
+        System.out.println(bands.size() + " tuiles de " + bandHeight + " lignes sur " + threadCount + " threads");
+        return bands;
+    }
+
+    @FunctionalInterface
+    private interface TileTask {
+        void process(int startY, int endY) throws Exception;
+    }
+
+    /**
+     * Runs the task over horizontal tiles of {@link #tileRows} rows on a fixed pool,
+     * nearest to the priority height first, reporting progress in
+     * [progressStart, progressStart + progressSpan].
+     */
+    private void runTiles(TileTask task, int progressStart, int progressSpan, String label) throws Exception {
+        List<WorkBand> bands = createWorkBands(finalHeight, tileRows());
+        double priorityRow = priorityHeight * finalHeight;
+        bands.sort(Comparator.comparingDouble(band -> Math.abs((band.startY + band.endY) / 2.0 - priorityRow)));
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        List<Future<?>> futures = new ArrayList<>();
+
+        AtomicInteger processedLines = new AtomicInteger(0);
+
+        for (WorkBand band : bands) {
+            futures.add(executor.submit(() -> {
+                checkCancelled();
+                task.process(band.startY, band.endY);
 
-            if (startY < totalHeight) {
-                bands.add(new WorkBand(startY, endY));
-                System.out.println("Thread " + i + ": lignes " + startY + " à " + (endY - 1) +
-                        " (" + (endY - startY) + " lignes)");
+                int completed = processedLines.addAndGet(band.endY - band.startY);
+                progressCallback.update(progressStart + (int) ((long) completed * progressSpan / finalHeight),
+                        label + ": " + (completed * 100L / finalHeight) + "%");
+                return null;
+            }));
+        }
+
+        try {
+            for (Future<?> future : futures) {
+                future.get();
             }
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception cause ? cause : e;
+        } finally {
+            // The frames may be freed as soon as this returns: no task may still touch them
+            stopAndWait(executor);
         }
+    }
 
-        return bands;
+    /**
+     * Drops the queued tasks and waits for the running ones to end. A cancel or a failed
+     * task leaves the others running, and they would otherwise read or fill frames the
+     * caller frees right after.
+     */
+    static void stopAndWait(ExecutorService executor) {
+        executor.shutdownNow();
+        boolean interrupted = false;
+        while (true) {
+            try {
+                if (executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                    break;
+                }
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void publishTile(BufferedImage result, int startY, int endY) {
+        if (tileListener != null) {
+            tileListener.tileCompleted(result, startY, endY);
+        }
+    }
+
+    /** Rows [startY - halo, endY + halo) of one frame, clamped to the image. */
+    private class FrameRows {
+        final int startY;
+        final int endY;
+        final int[] pixels;
+
+        FrameRows(int tileStartY, int tileEndY, int halo) {
+            this.startY = Math.max(0, tileStartY - halo);
+            this.endY = Math.min(finalHeight, tileEndY + halo);
+            this.pixels = bufferPool.leaseInts((endY - startY) * finalWidth);
+        }
+
+        void read(StackFrame frame) {
+            frame.readRows(startY, endY, pixels);
+        }
+
+        void release() {
+            bufferPool.release(pixels);
+        }
+
+        int index(int x, int y) {
+            return (y - startY) * finalWidth + x;
+        }
     }
 
     private BufferedImage resizeToExact(BufferedImage img, int width, int height) {
@@ -161,23 +909,52 @@ public class ImageStacker {
         return result;
     }
 
-    private BufferedImage[] alignImages(BufferedImage[] images) {
+    private StackFrame[] alignImages(BufferedImage[] images) {
         BufferedImage reference = images[0];
-        BufferedImage[] aligned = new BufferedImage[images.length];
-        aligned[0] = reference;
+        StackFrame[] aligned = new StackFrame[images.length];
+        aligned[0] = new BufferedStackFrame(reference);
 
         Point[] referencePoints = detectKeyPoints(reference);
 
         for (int i = 1; i < images.length; i++) {
+            checkCancelled();
             progressCallback.update(30 + (i * 20 / images.length), "Alignement " + (i+1) + "/" + images.length);
-            Point[] currentPoints = detectKeyPoints(images[i]);
-            Point offset = calculateBestOffset(reference, images[i], referencePoints, currentPoints);
-            aligned[i] = translateImage(images[i], offset.x, offset.y, finalWidth, finalHeight);
+            Point offset = alignmentOffset(i, reference, referencePoints, images[i]);
+            aligned[i] = new TranslatedFrame(new BufferedStackFrame(images[i]), offset.x, offset.y,
+                    finalWidth, finalHeight);
+        }
+        if (checkpoint != null) {
+            checkpoint.flush();
         }
 
         return aligned;
     }
 
+    /** Offset of frame {@code index} against the reference, reused from the checkpoint when known. */
+    private Point alignmentOffset(int index, BufferedImage reference, Point[] referencePoints, BufferedImage image) {
+        Point offset = checkpoint != null ? checkpoint.getOffset(index) : null;
+        if (offset == null) {
+            offset = calculateBestOffset(reference, image, referencePoints, detectKeyPoints(image));
+            if (checkpoint != null) {
+                checkpoint.setOffset(index, offset);
+            }
+        }
+        return offset;
+    }
+
+    /** A tile finished by an earlier, interrupted run, or null if it must be computed. */
+    private StackCheckpoint.TileData restoreTile(String phase, int startY) throws IOException {
+        return checkpoint != null && checkpoint.hasTile(phase, startY) ? checkpoint.loadTile(phase, startY) : null;
+    }
+
+    private void saveTile(String phase, int startY, int[] ints, double[] doubles) {
+        if (checkpoint != null) {
+            // Written asynchronously, while the caller hands its (pooled) planes back
+            checkpoint.saveTile(phase, startY, ints != null ? ints.clone() : null,
+                    doubles != null ? doubles.clone() : null);
+        }
+    }
+
     private Point[] detectKeyPoints(BufferedImage img) {
         List<Point> points = new ArrayList<>();
         int width = img.getWidth();
@@ -196,8 +973,11 @@ public class ImageStacker {
         return points.toArray(new Point[0]);
     }
 
+    /** Translation that moves {@code img} onto {@code ref}: img(x, y) lands on ref(x + dx, y + dy). */
     private Point calculateBestOffset(BufferedImage ref, BufferedImage img, Point[] refPoints, Point[] imgPoints) {
-        int maxSearchRadius = Math.min(100, Math.min(ref.getWidth(), ref.getHeight()) / 10);
+        // Sized from the whole frame so a region run searches as far as a full one
+        int side = alignmentFrameSide > 0 ? alignmentFrameSide : Math.min(ref.getWidth(), ref.getHeight());
+        int maxSearchRadius = Math.min(100, side / 10);
         double bestScore = Double.MAX_VALUE;
         Point bestOffset = new Point(0, 0);
 
@@ -221,7 +1001,8 @@ public class ImageStacker {
             }
         }
 
-        return bestOffset;
+        // The score compares ref(x, y) with img(x + dx, y + dy), so the frame moves the other way
+        return new Point(-bestOffset.x, -bestOffset.y);
     }
 
     private double calculateAlignmentScore(BufferedImage ref, BufferedImage img, int offsetX, int offsetY) {
@@ -229,7 +1010,8 @@ public class ImageStacker {
         int height = ref.getHeight();
         double totalDiff = 0;
         int samples = 0;
-        int step = Math.max(10, Math.min(width, height) / 80);
+        int side = alignmentFrameSide > 0 ? alignmentFrameSide : Math.min(width, height);
+        int step = Math.max(10, side / 80);
 
         for (int y = Math.max(0, -offsetY); y < Math.min(height, height - offsetY); y += step) {
             for (int x = Math.max(0, -offsetX); x < Math.min(width, width - offsetX); x += step) {
@@ -248,199 +1030,265 @@ public class ImageStacker {
         return samples > 0 ? totalDiff / samples : Double.MAX_VALUE;
     }
 
-    private BufferedImage translateImage(BufferedImage src, int dx, int dy, int targetWidth, int targetHeight) {
-        BufferedImage result = new BufferedImage(targetWidth, targetHeight, BufferedImage.TYPE_INT_RGB);
-        Graphics2D g2d = result.createGraphics();
-        g2d.setColor(Color.BLACK);
-        g2d.fillRect(0, 0, targetWidth, targetHeight);
-        g2d.drawImage(src, dx, dy, null);
-        g2d.dispose();
-        return result;
-    }
-
-    private BufferedImage stackWeightedAverageParallel(BufferedImage[] images) throws Exception {
-        BufferedImage result = new BufferedImage(finalWidth, finalHeight, BufferedImage.TYPE_INT_RGB);
-
-        List<WorkBand> bands = createWorkBands(finalHeight, threadCount);
-        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
-        List<Future<?>> futures = new ArrayList<>();
+    private Map<StackingAlgorithm, BufferedImage> stackAlgorithms(StackFrame[] frames, Set<StackingAlgorithm> algorithms)
+            throws Exception {
+        bufferPool.setGeometry(finalWidth, finalHeight);
+
+        // One scorer per distinct measure, all reading the widest halo so they share the rows
+        List<FocusMeasure> measures = new ArrayList<>();
+        Map<StackingAlgorithm, Integer> measureIndex = new EnumMap<>(StackingAlgorithm.class);
+        int halo = 0;
+        for (StackingAlgorithm algorithm : algorithms) {
+            FocusMeasure measure = focusMeasure != null ? focusMeasure : FocusMeasures.defaultFor(algorithm);
+            int index = 0;
+            while (index < measures.size() && !measures.get(index).getId().equals(measure.getId())) {
+                index++;
+            }
+            if (index == measures.size()) {
+                measures.add(measure);
+                halo = Math.max(halo, measure.getHalo());
+            }
+            measureIndex.put(algorithm, index);
+        }
+        int rowHalo = halo;
+
+        // PYRAMID picks pixels exactly as MAX_CONTRAST does: with the same measure it is a copy
+        Set<StackingAlgorithm> folded = EnumSet.copyOf(algorithms);
+        boolean pyramidCopied = folded.contains(StackingAlgorithm.PYRAMID) &&
+                folded.contains(StackingAlgorithm.MAX_CONTRAST) &&
+                measureIndex.get(StackingAlgorithm.PYRAMID).equals(measureIndex.get(StackingAlgorithm.MAX_CONTRAST));
+        if (pyramidCopied) {
+            folded.remove(StackingAlgorithm.PYRAMID);
+        }
 
-        AtomicInteger processedLines = new AtomicInteger(0);
+        Map<StackingAlgorithm, BufferedImage> results = new EnumMap<>(StackingAlgorithm.class);
+        for (StackingAlgorithm algorithm : folded) {
+            results.put(algorithm, bufferPool.leaseImage(finalWidth, finalHeight));
+        }
+        boolean depth = folded.contains(StackingAlgorithm.DEPTH_MAP);
+        int[][] bestImage = depth ? bufferPool.leaseIntRows(finalHeight, finalWidth) : null;
+        double[][] sharpnessValues = depth ? bufferPool.leaseDoubleRows(finalHeight, finalWidth) : null;
+
+        progressCallback.update(50, "Stacking de " + algorithms.size() + " algorithmes, " + measures.size() +
+                " mesure(s) de netteté (" + threadCount + " threads)...");
+        runTiles((startY, endY) -> {
+            TileScorer[] scorers = new TileScorer[measures.size()];
+            for (int m = 0; m < scorers.length; m++) {
+                scorers[m] = new TileScorer(measures.get(m), rowHalo, startY, endY);
+            }
+            int tilePixels = scorers[0].scores.length;
+            Map<StackingAlgorithm, TileFold> folds = new EnumMap<>(StackingAlgorithm.class);
+            for (StackingAlgorithm algorithm : folded) {
+                folds.put(algorithm, switch (algorithm) {
+                    case WEIGHTED_AVERAGE -> new WeightedFold(tilePixels);
+                    case DEPTH_MAP -> new DepthFold(bestImage, sharpnessValues, startY, endY);
+                    case PYRAMID, MAX_CONTRAST, LAPLACIAN -> new BestScoreFold(tilePixels);
+                });
+            }
 
-        for (WorkBand band : bands) {
-            futures.add(executor.submit(() -> {
-                for (int y = band.startY; y < band.endY; y++) {
-                    for (int x = 0; x < finalWidth; x++) {
-                        double totalR = 0, totalG = 0, totalB = 0;
-                        double totalWeight = 0;
-
-                        for (BufferedImage img : images) {
-                            int rgb = img.getRGB(x, y);
-                            if (rgb == 0xFF000000 || rgb == 0) continue;
-
-                            int r = (rgb >> 16) & 0xFF;
-                            int g = (rgb >> 8) & 0xFF;
-                            int b = rgb & 0xFF;
-
-                            double contrast = calculateLocalContrast(img, x, y, 5);
-                            double weight = Math.pow(contrast + 1, 2);
-
-                            totalR += r * weight;
-                            totalG += g * weight;
-                            totalB += b * weight;
-                            totalWeight += weight;
-                        }
-
-                        if (totalWeight > 0) {
-                            int avgR = Math.min(255, (int) (totalR / totalWeight));
-                            int avgG = Math.min(255, (int) (totalG / totalWeight));
-                            int avgB = Math.min(255, (int) (totalB / totalWeight));
-                            result.setRGB(x, y, (avgR << 16) | (avgG << 8) | avgB);
-                        }
+            boolean[] scored = new boolean[scorers.length];
+            for (int f = 0; f < frames.length; f++) {
+                for (int m = 0; m < scorers.length; m++) {
+                    scored[m] = scorers[m].score(frames[f], m > 0 && scored[0] ? scorers[0] : null);
+                }
+                for (Map.Entry<StackingAlgorithm, TileFold> entry : folds.entrySet()) {
+                    int m = measureIndex.get(entry.getKey());
+                    if (scored[m]) {
+                        entry.getValue().add(f, scorers[m]);
                     }
+                }
+            }
 
-                    int completed = processedLines.incrementAndGet();
-                    if (completed % 100 == 0) {
-                        int progress = 50 + (completed * 50 / finalHeight);
-                        progressCallback.update(progress, "Stacking: " + (completed * 100 / finalHeight) + "%");
-                    }
+            for (Map.Entry<StackingAlgorithm, TileFold> entry : folds.entrySet()) {
+                int[] out = entry.getValue().finish();
+                if (out != null) {
+                    results.get(entry.getKey()).setRGB(0, startY, finalWidth, endY - startY, out, 0, finalWidth);
+                    bufferPool.release(out);
                 }
-            }));
-        }
+            }
+            for (TileScorer scorer : scorers) {
+                scorer.release();
+            }
+        }, 50, depth ? 25 : 45, "Netteté partagée");
 
-        for (Future<?> future : futures) {
-            future.get();
+        if (depth) {
+            assembleDepthMap(frames, bestImage, sharpnessValues, results.get(StackingAlgorithm.DEPTH_MAP));
+        }
+        if (pyramidCopied) {
+            BufferedImage copy = bufferPool.leaseImage(finalWidth, finalHeight);
+            copy.setData(results.get(StackingAlgorithm.MAX_CONTRAST).getRaster());
+            results.put(StackingAlgorithm.PYRAMID, copy);
         }
 
-        executor.shutdown();
+        progressCallback.update(100, "Terminé - " + results.size() + " résultats " + finalWidth + "x" + finalHeight);
+        return results;
+    }
+
+    private BufferedImage stackWeightedAverageParallel(StackFrame[] frames) throws Exception {
+        BufferedImage result = bufferPool.leaseImage(finalWidth, finalHeight);
+
+        runTiles((startY, endY) -> {
+            StackCheckpoint.TileData saved = restoreTile("stack", startY);
+            if (saved != null) {
+                result.setRGB(0, startY, finalWidth, endY - startY, saved.ints, 0, finalWidth);
+                publishTile(result, startY, endY);
+                return;
+            }
+
+            TileScorer scorer = new TileScorer(startY, endY);
+            WeightedFold fold = new WeightedFold(scorer.scores.length);
+            for (int f = 0; f < frames.length; f++) {
+                if (scorer.score(frames[f])) {
+                    fold.add(f, scorer);
+                }
+            }
+
+            int[] out = fold.finish();
+            result.setRGB(0, startY, finalWidth, endY - startY, out, 0, finalWidth);
+            saveTile("stack", startY, out, null);
+            publishTile(result, startY, endY);
+
+            scorer.release();
+            bufferPool.release(out);
+        }, 50, 50, "Stacking");
+
         return result;
     }
 
-    private BufferedImage stackDepthMapParallel(BufferedImage[] images) throws Exception {
-        BufferedImage result = new BufferedImage(finalWidth, finalHeight, BufferedImage.TYPE_INT_RGB);
+    private static int weightedAverage(double totalR, double totalG, double totalB, double totalWeight) {
+        if (totalWeight <= 0) {
+            return 0;
+        }
+        int avgR = Math.min(255, (int) (totalR / totalWeight));
+        int avgG = Math.min(255, (int) (totalG / totalWeight));
+        int avgB = Math.min(255, (int) (totalB / totalWeight));
+        return (avgR << 16) | (avgG << 8) | avgB;
+    }
 
-        progressCallback.update(50, "Calcul carte de profondeur optimisée...");
-        int[][] bestImage = new int[finalHeight][finalWidth];
-        double[][] sharpnessValues = new double[finalHeight][finalWidth];
+    private BufferedImage stackDepthMapParallel(StackFrame[] frames) throws Exception {
+        BufferedImage result = bufferPool.leaseImage(finalWidth, finalHeight);
 
-        List<WorkBand> bands = createWorkBands(finalHeight, threadCount);
-        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
-        List<Future<?>> futures = new ArrayList<>();
+        progressCallback.update(50, "Calcul carte de profondeur optimisée...");
+        int[][] bestImage = bufferPool.leaseIntRows(finalHeight, finalWidth);
+        double[][] sharpnessValues = bufferPool.leaseDoubleRows(finalHeight, finalWidth);
+
+        runTiles((startY, endY) -> {
+            StackCheckpoint.TileData saved = restoreTile("depth", startY);
+            if (saved != null) {
+                for (int y = startY; y < endY; y++) {
+                    int offset = (y - startY) * finalWidth;
+                    System.arraycopy(saved.ints, offset, bestImage[y], 0, finalWidth);
+                    System.arraycopy(saved.doubles, offset, sharpnessValues[y], 0, finalWidth);
+                }
+                return;
+            }
 
-        AtomicInteger processedLines = new AtomicInteger(0);
+            TileScorer scorer = new TileScorer(startY, endY);
+            DepthFold fold = new DepthFold(bestImage, sharpnessValues, startY, endY);
+            for (int f = 0; f < frames.length; f++) {
+                if (scorer.score(frames[f])) {
+                    fold.add(f, scorer);
+                }
+            }
 
-        for (WorkBand band : bands) {
-            futures.add(executor.submit(() -> {
-                try {
-                    for (int y = band.startY; y < band.endY; y++) {
-                        for (int x = 0; x < finalWidth; x++) {
-                            double maxSharpness = -1;
-                            int bestIdx = 0;
-
-                            for (int i = 0; i < images.length; i++) {
-                                int rgb = images[i].getRGB(x, y);
-                                if (rgb == 0xFF000000 || rgb == 0) continue;
-
-                                double contrast3 = calculateLocalContrast(images[i], x, y, 3);
-                                double contrast7 = calculateLocalContrast(images[i], x, y, 7);
-                                double laplacian = Math.abs(calculateLaplacian(images[i], x, y));
-
-                                double sharpness = contrast3 * 0.5 + contrast7 * 0.3 + laplacian * 2.0;
-
-                                if (sharpness > maxSharpness) {
-                                    maxSharpness = sharpness;
-                                    bestIdx = i;
-                                }
-                            }
-
-                            bestImage[y][x] = bestIdx;
-                            sharpnessValues[y][x] = maxSharpness;
-                        }
-
-                        int completed = processedLines.incrementAndGet();
-                        if (completed % 50 == 0) {
-                            int progress = 50 + (completed * 25 / finalHeight);
-                            progressCallback.update(progress, "Profondeur: " + (completed * 100 / finalHeight) + "%");
-                        }
-                    }
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    throw new RuntimeException(e);
+            if (checkpoint != null) {
+                int[] labels = new int[scorer.scores.length];
+                double[] scores = new double[scorer.scores.length];
+                for (int y = startY; y < endY; y++) {
+                    int offset = (y - startY) * finalWidth;
+                    System.arraycopy(bestImage[y], 0, labels, offset, finalWidth);
+                    System.arraycopy(sharpnessValues[y], 0, scores, offset, finalWidth);
                 }
-            }));
-        }
+                saveTile("depth", startY, labels, scores);
+            }
+            scorer.release();
+        }, 50, 25, "Profondeur");
 
-        for (Future<?> future : futures) {
-            future.get();
-        }
+        assembleDepthMap(frames, bestImage, sharpnessValues, result);
+        return result;
+    }
 
+    /**
+     * Second half of DEPTH_MAP once the sharpest frame of every pixel is known: median
+     * smoothing of the labels, then the guided assembly into {@code result}.
+     */
+    private void assembleDepthMap(StackFrame[] frames, int[][] bestImage, double[][] sharpnessValues,
+                                  BufferedImage result) throws Exception {
         progressCallback.update(75, "Lissage médian...");
-        int[][] smoothed = medianFilterDepthMapSimple(bestImage, 5);
+        int[][] smoothed = restoreDepthMap("median");
+        if (smoothed == null) {
+            smoothed = medianFilterDepthMapSimple(bestImage, DEPTH_MEDIAN_RADIUS);
+            saveDepthMap("median", smoothed);
+        }
+        int[][] depthMap = smoothed;
+        bufferPool.release(bestImage);
+        bufferPool.release(sharpnessValues);
 
         progressCallback.update(85, "Assemblage final...");
-        futures.clear();
-        processedLines.set(0);
+        runTiles((startY, endY) -> {
+            StackCheckpoint.TileData saved = restoreTile("assemble", startY);
+            if (saved != null) {
+                result.setRGB(0, startY, finalWidth, endY - startY, saved.ints, 0, finalWidth);
+                publishTile(result, startY, endY);
+                return;
+            }
 
-        for (WorkBand band : bands) {
-            futures.add(executor.submit(() -> {
-                try {
-                    for (int y = band.startY; y < band.endY; y++) {
-                        for (int x = 0; x < finalWidth; x++) {
-                            int selectedImage = smoothed[y][x];
-
-                            if (isEdgePixel(smoothed, x, y)) {
-                                result.setRGB(x, y, blendEdgePixelSimple(images, smoothed, x, y));
-                            } else {
-                                int rgb = images[selectedImage].getRGB(x, y);
-                                if (rgb != 0xFF000000 && rgb != 0) {
-                                    result.setRGB(x, y, rgb);
-                                }
-                            }
-                        }
-
-                        int completed = processedLines.incrementAndGet();
-                        if (completed % 50 == 0) {
-                            int progress = 85 + (completed * 15 / finalHeight);
-                            progressCallback.update(progress, "Assemblage: " + (completed * 100 / finalHeight) + "%");
-                        }
-                    }
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    throw new RuntimeException(e);
-                }
-            }));
-        }
+            int[] out = assembleGuided(frames, depthMap, startY, endY);
+            result.setRGB(0, startY, finalWidth, endY - startY, out, 0, finalWidth);
+            saveTile("assemble", startY, out, null);
+            publishTile(result, startY, endY);
+            bufferPool.release(out);
+        }, 85, 15, "Assemblage");
 
-        for (Future<?> future : futures) {
-            future.get();
+        bufferPool.release(depthMap);
+    }
+
+    private int[][] restoreDepthMap(String phase) throws IOException {
+        StackCheckpoint.TileData saved = restoreTile(phase, 0);
+        if (saved == null) {
+            return null;
+        }
+        int[][] map = bufferPool.leaseIntRows(finalHeight, finalWidth);
+        for (int y = 0; y < finalHeight; y++) {
+            System.arraycopy(saved.ints, y * finalWidth, map[y], 0, finalWidth);
         }
+        return map;
+    }
 
-        executor.shutdown();
-        return result;
+    private void saveDepthMap(String phase, int[][] map) {
+        if (checkpoint == null) {
+            return;
+        }
+        int[] flat = new int[finalWidth * finalHeight];
+        for (int y = 0; y < finalHeight; y++) {
+            System.arraycopy(map[y], 0, flat, y * finalWidth, finalWidth);
+        }
+        saveTile(phase, 0, flat, null);
     }
 
     private int[][] medianFilterDepthMapSimple(int[][] depthMap, int radius) {
         int height = depthMap.length;
         int width = depthMap[0].length;
-        int[][] result = new int[height][width];
+        int[][] result = bufferPool.leaseIntRows(height, width);
+        int[] values = new int[(2 * radius + 1) * (2 * radius + 1)];
 
         for (int y = 0; y < height; y++) {
             for (int x = 0; x < width; x++) {
-                List<Integer> values = new ArrayList<>();
-
+                int count = 0;
                 for (int dy = -radius; dy <= radius; dy++) {
                     for (int dx = -radius; dx <= radius; dx++) {
                         int ny = Math.max(0, Math.min(height - 1, y + dy));
                         int nx = Math.max(0, Math.min(width - 1, x + dx));
-                        values.add(depthMap[ny][nx]);
+                        values[count++] = depthMap[ny][nx];
                     }
                 }
 
-                values.sort(Integer::compareTo);
-                result[y][x] = values.get(values.size() / 2);
+                Arrays.sort(values);
+                result[y][x] = values[values.length / 2];
             }
 
             if (y % 100 == 0) {
+                checkCancelled();
                 progressCallback.update(75 + (y * 10 / height), "Lissage: " + (y * 100 / height) + "%");
             }
         }
@@ -448,165 +1296,315 @@ public class ImageStacker {
         return result;
     }
 
-    private boolean isEdgePixel(int[][] depthMap, int x, int y) {
-        int height = depthMap.length;
-        int width = depthMap[0].length;
+    /**
+     * Soft depth-map assembly: each frame's hard label mask is refined into a weight map by
+     * a guided filter using the frame itself as guide, so seams follow image edges instead
+     * of the label boundaries. Only frames labelled somewhere within reach of the tile are
+     * read. Pixels outside a frame's valid area get no weight from it.
+     */
+    private int[] assembleGuided(StackFrame[] frames, int[][] depthMap, int startY, int endY) {
+        int tilePixels = (endY - startY) * finalWidth;
+        FrameRows rows = new FrameRows(startY, endY, 2 * GUIDED_RADIUS);
+        int regionPixels = rows.pixels.length;
+        GuidedFilter filter = new GuidedFilter(finalWidth, rows.endY - rows.startY, GUIDED_RADIUS, GUIDED_EPS, bufferPool);
+        double[] guide = bufferPool.leaseDoubles(regionPixels);
+        double[] mask = bufferPool.leaseDoubles(regionPixels);
+        double[] weight = bufferPool.leaseDoubles(regionPixels);
+
+        double[] sumR = bufferPool.leaseDoubles(tilePixels);
+        double[] sumG = bufferPool.leaseDoubles(tilePixels);
+        double[] sumB = bufferPool.leaseDoubles(tilePixels);
+        double[] sumWeight = bufferPool.leaseDoubles(tilePixels);
+        int[] fallback = bufferPool.leaseInts(tilePixels);
+
+        boolean[] used = new boolean[frames.length];
+        for (int y = rows.startY; y < rows.endY; y++) {
+            for (int x = 0; x < finalWidth; x++) {
+                used[depthMap[y][x]] = true;
+            }
+        }
+
+        for (int f = 0; f < frames.length; f++) {
+            if (!used[f]) continue;
+            Rectangle valid = frames[f].getValidBounds();
+            rows.read(frames[f]);
+
+            for (int y = rows.startY; y < rows.endY; y++) {
+                for (int x = 0; x < finalWidth; x++) {
+                    int i = rows.index(x, y);
+                    int rgb = rows.pixels[i];
+                    guide[i] = (((rgb >> 16) & 0xFF) + ((rgb >> 8) & 0xFF) + (rgb & 0xFF)) / 3;
+                    mask[i] = depthMap[y][x] == f && valid.contains(x, y) ? 1 : 0;
+                }
+            }
+            filter.filter(guide, mask, weight);
+
+            for (int y = Math.max(startY, valid.y); y < Math.min(endY, valid.y + valid.height); y++) {
+                for (int x = valid.x; x < valid.x + valid.width; x++) {
+                    int i = rows.index(x, y);
+                    int t = (y - startY) * finalWidth + x;
+                    int rgb = rows.pixels[i];
+                    if (depthMap[y][x] == f) {
+                        fallback[t] = rgb;
+                    }
 
-        if (x == 0 || y == 0 || x >= width - 1 || y >= height - 1) {
-            return false;
+                    double w = weight[i];
+                    if (w <= 0) continue;
+                    sumR[t] += ((rgb >> 16) & 0xFF) * w;
+                    sumG[t] += ((rgb >> 8) & 0xFF) * w;
+                    sumB[t] += (rgb & 0xFF) * w;
+                    sumWeight[t] += w;
+                }
+            }
         }
 
-        int center = depthMap[y][x];
+        int[] out = bufferPool.leaseInts(tilePixels);
+        for (int t = 0; t < tilePixels; t++) {
+            if (sumWeight[t] > MIN_BLEND_WEIGHT) {
+                // Rounded, so that areas owned by a single frame keep its exact pixels
+                int r = (int) Math.min(255, Math.round(sumR[t] / sumWeight[t]));
+                int g = (int) Math.min(255, Math.round(sumG[t] / sumWeight[t]));
+                int b = (int) Math.min(255, Math.round(sumB[t] / sumWeight[t]));
+                out[t] = (r << 16) | (g << 8) | b;
+            } else {
+                out[t] = fallback[t] & 0xFFFFFF;
+            }
+        }
 
-        return depthMap[y-1][x] != center ||
-                depthMap[y+1][x] != center ||
-                depthMap[y][x-1] != center ||
-                depthMap[y][x+1] != center;
+        rows.release();
+        filter.release();
+        for (double[] plane : new double[][]{guide, mask, weight, sumR, sumG, sumB, sumWeight}) {
+            bufferPool.release(plane);
+        }
+        bufferPool.release(fallback);
+        return out;
     }
 
-    private int blendEdgePixelSimple(BufferedImage[] images, int[][] depthMap, int x, int y) {
-        int height = depthMap.length;
-        int width = depthMap[0].length;
+    private BufferedImage stackPyramidParallel(StackFrame[] frames) throws Exception {
+        progressCallback.update(50, "Pyramide parallèle...");
+        return stackMaxContrastParallel(frames);
+    }
 
-        int[] counts = new int[images.length];
+    private BufferedImage stackMaxContrastParallel(StackFrame[] frames) throws Exception {
+        return stackBestScoreParallel(frames, "Contraste");
+    }
 
-        for (int dy = -1; dy <= 1; dy++) {
-            for (int dx = -1; dx <= 1; dx++) {
-                int ny = Math.max(0, Math.min(height - 1, y + dy));
-                int nx = Math.max(0, Math.min(width - 1, x + dx));
-                counts[depthMap[ny][nx]]++;
+    private BufferedImage stackLaplacianParallel(StackFrame[] frames) throws Exception {
+        return stackBestScoreParallel(frames, "Laplacien");
+    }
+
+    /** Picks, for every pixel, the frame with the highest score (contrast or Laplacian). */
+    private BufferedImage stackBestScoreParallel(StackFrame[] frames, String label) throws Exception {
+        BufferedImage result = bufferPool.leaseImage(finalWidth, finalHeight);
+
+        runTiles((startY, endY) -> {
+            StackCheckpoint.TileData saved = restoreTile("stack", startY);
+            if (saved != null) {
+                result.setRGB(0, startY, finalWidth, endY - startY, saved.ints, 0, finalWidth);
+                publishTile(result, startY, endY);
+                return;
+            }
+
+            TileScorer scorer = new TileScorer(startY, endY);
+            BestScoreFold fold = new BestScoreFold(scorer.scores.length);
+            for (int f = 0; f < frames.length; f++) {
+                if (scorer.score(frames[f])) {
+                    fold.add(f, scorer);
+                }
             }
+
+            int[] bestRgb = fold.finish();
+            result.setRGB(0, startY, finalWidth, endY - startY, bestRgb, 0, finalWidth);
+            saveTile("stack", startY, bestRgb, null);
+            publishTile(result, startY, endY);
+
+            scorer.release();
+            bufferPool.release(bestRgb);
+        }, 50, 50, label);
+
+        return result;
+    }
+
+    /**
+     * Per-pixel score of one frame over one tile with the stacker's {@link FocusMeasure}.
+     * Pixels outside the frame's valid area score NaN.
+     */
+    private class TileScorer {
+        final FocusMeasure measure;
+        final FocusMeasure.Tile tile;
+        final double[] scores;
+
+        TileScorer(int startY, int endY) {
+            this(focusMeasure(), focusMeasure().getHalo(), startY, endY);
         }
 
-        int first = 0, second = 0;
-        int firstCount = 0, secondCount = 0;
+        /** Scorer reading {@code halo} rows around the tile, which must cover the measure's own. */
+        TileScorer(FocusMeasure measure, int halo, int startY, int endY) {
+            this.measure = measure;
+            this.tile = new FocusMeasure.Tile(finalWidth, finalHeight, startY, endY,
+                    Math.max(0, startY - halo), Math.min(finalHeight, endY + halo), bufferPool);
+            this.scores = tile.scores;
+        }
 
-        for (int i = 0; i < counts.length; i++) {
-            if (counts[i] > firstCount) {
-                second = first;
-                secondCount = firstCount;
-                first = i;
-                firstCount = counts[i];
-            } else if (counts[i] > secondCount) {
-                second = i;
-                secondCount = counts[i];
-            }
+        /** Returns false (and reads nothing) when the frame has no valid pixel in this tile. */
+        boolean score(StackFrame frame) {
+            return score(frame, null);
         }
 
-        int rgb1 = images[first].getRGB(x, y);
-        int rgb2 = images[second].getRGB(x, y);
+        /**
+         * As {@link #score(StackFrame)}, copying the rows from {@code readBy}, a scorer of the
+         * same rows that has just read this frame, when given.
+         */
+        boolean score(StackFrame frame, TileScorer readBy) {
+            Arrays.fill(scores, Double.NaN);
+            if (!tile.setValid(frame.getValidBounds())) {
+                return false;
+            }
 
-        if (rgb1 == 0xFF000000 || rgb1 == 0) return rgb2;
-        if (rgb2 == 0xFF000000 || rgb2 == 0) return rgb1;
+            if (readBy != null) {
+                System.arraycopy(readBy.tile.pixels, 0, tile.pixels, 0, tile.pixels.length);
+            } else {
+                frame.readRows(tile.rowStartY, tile.rowEndY, tile.pixels);
+            }
+            String measureId = measure.getId();
+            double[] cached = scoreCache != null ? scoreCache.get(frame, measureId, tile.startY) : null;
+            if (cached != null) {
+                System.arraycopy(cached, 0, scores, 0, scores.length);
+            } else {
+                measure.score(tile);
+                if (scoreCache != null) {
+                    scoreCache.put(frame, measureId, tile.startY, scores.clone());
+                }
+            }
+            return true;
+        }
 
-        int r = ((rgb1 >> 16) & 0xFF + (rgb2 >> 16) & 0xFF) / 2;
-        int g = ((rgb1 >> 8) & 0xFF + (rgb2 >> 8) & 0xFF) / 2;
-        int b = ((rgb1 & 0xFF) + (rgb2 & 0xFF)) / 2;
+        int pixel(int tileIndex) {
+            return tile.pixels[(tile.startY - tile.rowStartY) * finalWidth + tileIndex];
+        }
 
-        return (r << 16) | (g << 8) | b;
+        void release() {
+            tile.release();
+        }
     }
 
-    private BufferedImage stackPyramidParallel(BufferedImage[] images) throws Exception {
-        progressCallback.update(50, "Pyramide parallèle...");
-        return stackMaxContrastParallel(images);
+    /**
+     * One algorithm's reduction of the scored frames of a tile, fed in frame order. Kept
+     * apart from the scoring so that several algorithms can share it (see {@link #stackAlgorithms}).
+     */
+    private interface TileFold {
+        void add(int frame, TileScorer scorer);
+
+        /** The tile's pixels, leased from the pool, or null when the result needs another pass. */
+        int[] finish();
     }
 
-    private BufferedImage stackMaxContrastParallel(BufferedImage[] images) throws Exception {
-        BufferedImage result = new BufferedImage(finalWidth, finalHeight, BufferedImage.TYPE_INT_RGB);
+    /** WEIGHTED_AVERAGE: frames weighted by (score + 1)^2. */
+    private class WeightedFold implements TileFold {
+        final double[] totalR;
+        final double[] totalG;
+        final double[] totalB;
+        final double[] totalWeight;
+
+        WeightedFold(int tilePixels) {
+            totalR = bufferPool.leaseDoubles(tilePixels);
+            totalG = bufferPool.leaseDoubles(tilePixels);
+            totalB = bufferPool.leaseDoubles(tilePixels);
+            totalWeight = bufferPool.leaseDoubles(tilePixels);
+        }
 
-        List<WorkBand> bands = createWorkBands(finalHeight, threadCount);
-        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
-        List<Future<?>> futures = new ArrayList<>();
+        @Override
+        public void add(int frame, TileScorer scorer) {
+            for (int i = 0; i < totalWeight.length; i++) {
+                double contrast = scorer.scores[i];
+                if (Double.isNaN(contrast)) continue;
 
-        AtomicInteger processedLines = new AtomicInteger(0);
+                int rgb = scorer.pixel(i);
+                double weight = Math.pow(contrast + 1, 2);
 
-        for (WorkBand band : bands) {
-            futures.add(executor.submit(() -> {
-                for (int y = band.startY; y < band.endY; y++) {
-                    for (int x = 0; x < finalWidth; x++) {
-                        double maxContrast = -1;
-                        int bestRgb = images[0].getRGB(x, y);
-
-                        for (BufferedImage img : images) {
-                            int rgb = img.getRGB(x, y);
-                            if (rgb == 0xFF000000 || rgb == 0) continue;
-
-                            double contrast = calculateLocalContrast(img, x, y, 5);
-                            if (contrast > maxContrast) {
-                                maxContrast = contrast;
-                                bestRgb = rgb;
-                            }
-                        }
-
-                        if (bestRgb != 0xFF000000 && bestRgb != 0) {
-                            result.setRGB(x, y, bestRgb);
-                        }
-                    }
+                totalR[i] += ((rgb >> 16) & 0xFF) * weight;
+                totalG[i] += ((rgb >> 8) & 0xFF) * weight;
+                totalB[i] += (rgb & 0xFF) * weight;
+                totalWeight[i] += weight;
+            }
+        }
 
-                    int completed = processedLines.incrementAndGet();
-                    if (completed % 100 == 0) {
-                        progressCallback.update(50 + (completed * 50 / finalHeight),
-                                "Contraste: " + (completed * 100 / finalHeight) + "%");
-                    }
-                }
-            }));
+        @Override
+        public int[] finish() {
+            int[] out = bufferPool.leaseInts(totalWeight.length);
+            for (int i = 0; i < out.length; i++) {
+                out[i] = weightedAverage(totalR[i], totalG[i], totalB[i], totalWeight[i]);
+            }
+            bufferPool.release(totalR);
+            bufferPool.release(totalG);
+            bufferPool.release(totalB);
+            bufferPool.release(totalWeight);
+            return out;
         }
+    }
+
+    /** PYRAMID, MAX_CONTRAST and LAPLACIAN: the pixel of the best-scoring frame. */
+    private class BestScoreFold implements TileFold {
+        final double[] bestScore;
+        final int[] bestRgb;
 
-        for (Future<?> future : futures) {
-            future.get();
+        BestScoreFold(int tilePixels) {
+            bestScore = bufferPool.leaseDoubles(tilePixels);
+            bestRgb = bufferPool.leaseInts(tilePixels);
+            Arrays.fill(bestScore, -1);
         }
 
-        executor.shutdown();
-        return result;
-    }
+        @Override
+        public void add(int frame, TileScorer scorer) {
+            for (int i = 0; i < bestRgb.length; i++) {
+                double score = scorer.scores[i];
+                if (score > bestScore[i]) {
+                    bestScore[i] = score;
+                    bestRgb[i] = scorer.pixel(i);
+                }
+            }
+        }
 
-    private BufferedImage stackLaplacianParallel(BufferedImage[] images) throws Exception {
-        BufferedImage result = new BufferedImage(finalWidth, finalHeight, BufferedImage.TYPE_INT_RGB);
+        @Override
+        public int[] finish() {
+            bufferPool.release(bestScore);
+            return bestRgb;
+        }
+    }
 
-        List<WorkBand> bands = createWorkBands(finalHeight, threadCount);
-        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
-        List<Future<?>> futures = new ArrayList<>();
+    /** DEPTH_MAP, first pass: index and score of the sharpest frame, into whole-image rows. */
+    private class DepthFold implements TileFold {
+        final int[][] bestImage;
+        final double[][] sharpnessValues;
+        final int startY;
 
-        AtomicInteger processedLines = new AtomicInteger(0);
+        DepthFold(int[][] bestImage, double[][] sharpnessValues, int startY, int endY) {
+            this.bestImage = bestImage;
+            this.sharpnessValues = sharpnessValues;
+            this.startY = startY;
+            for (int y = startY; y < endY; y++) {
+                Arrays.fill(sharpnessValues[y], -1);
+            }
+        }
 
-        for (WorkBand band : bands) {
-            futures.add(executor.submit(() -> {
-                for (int y = band.startY; y < band.endY; y++) {
-                    for (int x = 0; x < finalWidth; x++) {
-                        double maxLaplacian = -1;
-                        int bestRgb = images[0].getRGB(x, y);
-
-                        for (BufferedImage img : images) {
-                            int rgb = img.getRGB(x, y);
-                            if (rgb == 0xFF000000 || rgb == 0) continue;
-
-                            double laplacian = Math.abs(calculateLaplacian(img, x, y));
-                            if (laplacian > maxLaplacian) {
-                                maxLaplacian = laplacian;
-                                bestRgb = rgb;
-                            }
-                        }
-
-                        if (bestRgb != 0xFF000000 && bestRgb != 0) {
-                            result.setRGB(x, y, bestRgb);
-                        }
-                    }
+        @Override
+        public void add(int frame, TileScorer scorer) {
+            for (int i = 0; i < scorer.scores.length; i++) {
+                double sharpness = scorer.scores[i];
+                int y = startY + i / finalWidth;
+                int x = i % finalWidth;
 
-                    int completed = processedLines.incrementAndGet();
-                    if (completed % 100 == 0) {
-                        progressCallback.update(50 + (completed * 50 / finalHeight),
-                                "Laplacien: " + (completed * 100 / finalHeight) + "%");
-                    }
+                if (sharpness > sharpnessValues[y][x]) {
+                    sharpnessValues[y][x] = sharpness;
+                    bestImage[y][x] = frame;
                 }
-            }));
+            }
         }
 
-        for (Future<?> future : futures) {
-            future.get();
+        @Override
+        public int[] finish() {
+            return null;
         }
-
-        executor.shutdown();
-        return result;
     }
 
     private double calculateLocalContrast(BufferedImage img, int x, int y, int radius) {
@@ -638,23 +1636,6 @@ public class ImageStacker {
         return calculateLocalContrast(img, x, y, radius);
     }
 
-    private double calculateLaplacian(BufferedImage img, int x, int y) {
-        int width = img.getWidth();
-        int height = img.getHeight();
-
-        if (x == 0 || x == width - 1 || y == 0 || y == height - 1) {
-            return 0;
-        }
-
-        int center = getGray(img, x, y);
-        int top = getGray(img, x, y - 1);
-        int bottom = getGray(img, x, y + 1);
-        int left = getGray(img, x - 1, y);
-        int right = getGray(img, x + 1, y);
-
-        return 4 * center - top - bottom - left - right;
-    }
-
     private int getGray(BufferedImage img, int x, int y) {
         int rgb = img.getRGB(x, y);
         if (rgb == 0xFF000000 || rgb == 0) return 0;
@@ -663,4 +1644,4 @@ public class ImageStacker {
         int b = rgb & 0xFF;
         return (r + g + b) / 3;
     }
-}
\ No newline at end of file
+}
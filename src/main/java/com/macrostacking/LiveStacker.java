@@ -0,0 +1,170 @@
+package com.macrostacking;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Tethered shooting mode: watches a directory and folds every new frame into a running
+ * composite as soon as it has been written, so the result is ready right after the last shot.
+ */
+public class LiveStacker {
+    private static final long STABLE_DELAY_MS = 300;
+    private static final int MAX_DECODE_ATTEMPTS = 10;
+
+    public interface Listener {
+        void frameAdded(BufferedImage composite, int frameCount, String status);
+
+        void frameFailed(File file, Exception error);
+    }
+
+    private final ImageStacker stacker;
+    private final Set<Path> processed = new HashSet<>();
+    private ImageStacker.RunningComposite composite;
+    // Render target reused from frame to frame; never handed out, callers get copies
+    private BufferedImage rendered;
+    private WatchService watchService;
+    private Thread watchThread;
+
+    public LiveStacker(StackingAlgorithm algorithm) {
+        this.stacker = new ImageStacker(algorithm);
+    }
+
+    public void setAutoAlign(boolean autoAlign) {
+        stacker.setAutoAlign(autoAlign);
+    }
+
+    public void setThreadCount(int count) {
+        stacker.setThreadCount(count);
+    }
+
+    public void setFocusMeasure(FocusMeasure focusMeasure) {
+        stacker.setFocusMeasure(focusMeasure);
+    }
+
+    /**
+     * Decodes, aligns and folds one frame, then returns a snapshot of the refreshed
+     * composite that later frames leave untouched, so it can be shown while they fold in.
+     */
+    public synchronized BufferedImage addFrame(File file) throws Exception {
+        BufferedImage image = ImageLoader.loadImage(file);
+        if (image == null) {
+            throw new Exception("Format non reconnu: " + file.getName());
+        }
+
+        if (composite == null) {
+            composite = stacker.startRunningComposite(image, (p, s) -> {});
+        } else {
+            stacker.addToRunningComposite(composite, image, file.getName());
+        }
+
+        rendered = stacker.renderRunningComposite(composite, rendered);
+        return snapshot();
+    }
+
+    public synchronized BufferedImage getComposite() {
+        return rendered != null ? snapshot() : null;
+    }
+
+    private BufferedImage snapshot() {
+        return new BufferedImage(rendered.getColorModel(), rendered.copyData(null),
+                rendered.isAlphaPremultiplied(), null);
+    }
+
+    public synchronized int getFrameCount() {
+        return composite == null ? 0 : composite.frameCount;
+    }
+
+    /**
+     * Starts watching the directory on a background thread. Images already present are
+     * stacked first (in name order), then new files are picked up as they appear.
+     */
+    public void start(File directory, Listener listener) throws IOException {
+        watchService = FileSystems.getDefault().newWatchService();
+        Path dir = directory.toPath();
+        dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+
+        watchThread = new Thread(() -> {
+            File[] existing = directory.listFiles(f -> f.isFile() && new RawImageFileFilter().accept(f));
+            if (existing != null) {
+                Arrays.sort(existing);
+                for (File file : existing) {
+                    process(file.toPath(), listener);
+                }
+            }
+
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    WatchKey key = watchService.take();
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) continue;
+                        Path path = dir.resolve((Path) event.context());
+                        if (Files.isRegularFile(path) && new RawImageFileFilter().accept(path.toFile())) {
+                            process(path, listener);
+                        }
+                    }
+                    if (!key.reset()) {
+                        break;
+                    }
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                // stop() was called
+            }
+        }, "live-stacker");
+        watchThread.setDaemon(true);
+        watchThread.start();
+    }
+
+    public void stop() {
+        if (watchThread != null) {
+            watchThread.interrupt();
+        }
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void process(Path path, Listener listener) {
+        if (!processed.add(path)) {
+            return;
+        }
+
+        File file = path.toFile();
+        Exception lastError = null;
+        // The camera software may still be writing: wait for a stable size, retry failed decodes
+        for (int attempt = 0; attempt < MAX_DECODE_ATTEMPTS; attempt++) {
+            try {
+                waitForStableSize(file);
+                BufferedImage result = addFrame(file);
+                listener.frameAdded(result, getFrameCount(), "Live: " + getFrameCount() + " images (" + file.getName() + ")");
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                lastError = e;
+            }
+        }
+        listener.frameFailed(file, lastError);
+    }
+
+    private void waitForStableSize(File file) throws InterruptedException {
+        long size = file.length();
+        for (int i = 0; i < MAX_DECODE_ATTEMPTS; i++) {
+            Thread.sleep(STABLE_DELAY_MS);
+            long current = file.length();
+            if (current == size && current > 0) {
+                return;
+            }
+            size = current;
+        }
+    }
+}
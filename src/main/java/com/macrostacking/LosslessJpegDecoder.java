@@ -0,0 +1,356 @@
+package com.macrostacking;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decoder for the lossless JPEG streams (ITU T.81 process 14, SOF3) that hold the sensor
+ * data of DNG tiles and Canon CR2 files. Rows are decoded one at a time, components
+ * interleaved, which is how both formats lay out their Bayer samples. Only unit sampling
+ * factors are handled (not Canon's sRAW).
+ */
+final class LosslessJpegDecoder {
+    private static final int LOOKUP_BITS = 9;
+
+    private final ByteBuffer data;
+    private final int end;
+    private int pos;
+    private long bitBuffer;
+    private int bitCount;
+    private boolean markerReached;
+
+    private int precision;
+    private int width;
+    private int height;
+    private int components;
+    private int predictor = 1;
+    private int pointTransform;
+    private int restartInterval;
+    private final HuffmanTable[] tables = new HuffmanTable[4];
+    private HuffmanTable[] componentTables;
+
+    private int[] previous;
+    private int[] current;
+    private int row;
+    private int mcusToRestart;
+    private int firstLineMcus;
+
+    /** Reads the headers of the stream at {@code offset}; decoding starts at its scan. */
+    LosslessJpegDecoder(ByteBuffer data, int offset, int length) throws Exception {
+        this.data = data;
+        this.pos = offset;
+        this.end = Math.min(data.limit(), offset + length);
+        readHeaders();
+        previous = new int[width * components];
+        current = new int[width * components];
+        mcusToRestart = restartInterval;
+        firstLineMcus = width;
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    int getComponents() {
+        return components;
+    }
+
+    int getPrecision() {
+        return precision;
+    }
+
+    /** True when the stream at {@code offset} is a lossless JPEG (SOF3 before the scan). */
+    static boolean isLossless(ByteBuffer data, int offset, int length) {
+        int end = Math.min(data.limit(), offset + length);
+        if (offset + 4 > end || (data.get(offset) & 0xFF) != 0xFF || (data.get(offset + 1) & 0xFF) != 0xD8) {
+            return false;
+        }
+        int p = offset + 2;
+        while (p + 4 <= end) {
+            if ((data.get(p) & 0xFF) != 0xFF) {
+                return false;
+            }
+            int marker = data.get(p + 1) & 0xFF;
+            if (marker == 0xC3) {
+                return true;
+            }
+            if ((marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC) || marker == 0xDA) {
+                return false;
+            }
+            p += 2 + (((data.get(p + 2) & 0xFF) << 8) | (data.get(p + 3) & 0xFF));
+        }
+        return false;
+    }
+
+    /**
+     * Decodes the next row into {@code out}: {@code width * components} samples, the
+     * components of each column side by side.
+     */
+    void decodeRow(int[] out) throws Exception {
+        if (row >= height) {
+            throw new Exception("JPEG sans perte: lecture au-delà de la dernière ligne");
+        }
+        int initial = 1 << (precision - pointTransform - 1);
+
+        for (int col = 0; col < width; col++) {
+            boolean reset = row == 0 && col == 0;
+            if (restartInterval > 0) {
+                if (mcusToRestart == 0) {
+                    readRestartMarker();
+                    mcusToRestart = restartInterval;
+                    firstLineMcus = width;
+                    reset = true;
+                }
+                mcusToRestart--;
+            }
+
+            for (int c = 0; c < components; c++) {
+                int i = col * components + c;
+                int diff = decodeDifference(componentTables[c]);
+                int pred;
+                if (reset) {
+                    pred = initial;
+                } else if (col == 0) {
+                    pred = previous[i];
+                } else if (firstLineMcus > 0) {
+                    pred = current[i - components];
+                } else {
+                    int ra = current[i - components];
+                    int rb = previous[i];
+                    int rc = previous[i - components];
+                    pred = switch (predictor) {
+                        case 1 -> ra;
+                        case 2 -> rb;
+                        case 3 -> rc;
+                        case 4 -> ra + rb - rc;
+                        case 5 -> ra + ((rb - rc) >> 1);
+                        case 6 -> rb + ((ra - rc) >> 1);
+                        case 7 -> (ra + rb) >> 1;
+                        default -> 0;
+                    };
+                }
+                current[i] = (pred + diff) & 0xFFFF;
+                out[i] = current[i] << pointTransform;
+            }
+            if (firstLineMcus > 0) {
+                firstLineMcus--;
+            }
+        }
+
+        int[] swap = previous;
+        previous = current;
+        current = swap;
+        row++;
+    }
+
+    private void readHeaders() throws Exception {
+        if (readByte() != 0xFF || readByte() != 0xD8) {
+            throw new Exception("JPEG sans perte: marqueur SOI absent");
+        }
+        boolean frameRead = false;
+        while (true) {
+            int marker = nextMarker();
+            int length = readShort() - 2;
+            int segmentEnd = pos + length;
+            switch (marker) {
+                case 0xC4 -> {
+                    while (pos < segmentEnd) {
+                        int id = readByte() & 0x0F;
+                        int[] counts = new int[17];
+                        int total = 0;
+                        for (int bits = 1; bits <= 16; bits++) {
+                            counts[bits] = readByte();
+                            total += counts[bits];
+                        }
+                        int[] symbols = new int[total];
+                        for (int k = 0; k < total; k++) {
+                            symbols[k] = readByte();
+                        }
+                        if (id > 3) {
+                            throw new Exception("JPEG sans perte: table de Huffman invalide");
+                        }
+                        tables[id] = new HuffmanTable(counts, symbols);
+                    }
+                }
+                case 0xC3 -> {
+                    precision = readByte();
+                    height = readShort();
+                    width = readShort();
+                    components = readByte();
+                    for (int c = 0; c < components; c++) {
+                        readByte();
+                        int sampling = readByte();
+                        readByte();
+                        if (sampling != 0x11) {
+                            throw new Exception("JPEG sans perte: sous-échantillonnage non pris en charge");
+                        }
+                    }
+                    if (precision < 2 || precision > 16 || width <= 0 || height <= 0 || components < 1) {
+                        throw new Exception("JPEG sans perte: en-tête SOF3 invalide");
+                    }
+                    frameRead = true;
+                }
+                case 0xDD -> restartInterval = readShort();
+                case 0xDA -> {
+                    if (!frameRead) {
+                        throw new Exception("JPEG sans perte: SOF3 absent");
+                    }
+                    int scanComponents = readByte();
+                    if (scanComponents != components) {
+                        throw new Exception("JPEG sans perte: balayage partiel non pris en charge");
+                    }
+                    componentTables = new HuffmanTable[components];
+                    for (int c = 0; c < components; c++) {
+                        readByte();
+                        HuffmanTable table = tables[(readByte() >> 4) & 0x03];
+                        if (table == null) {
+                            throw new Exception("JPEG sans perte: table de Huffman manquante");
+                        }
+                        componentTables[c] = table;
+                    }
+                    predictor = readByte();
+                    readByte();
+                    pointTransform = readByte() & 0x0F;
+                    pos = segmentEnd;
+                    return;
+                }
+                default -> {
+                    if (marker >= 0xC0 && marker <= 0xCF && marker != 0xC8 && marker != 0xCC) {
+                        throw new Exception("JPEG sans perte: compression non prise en charge (SOF" + (marker - 0xC0) + ")");
+                    }
+                }
+            }
+            pos = segmentEnd;
+        }
+    }
+
+    private int nextMarker() throws Exception {
+        if (readByte() != 0xFF) {
+            throw new Exception("JPEG sans perte: marqueur attendu");
+        }
+        int marker = readByte();
+        while (marker == 0xFF) {
+            marker = readByte();
+        }
+        return marker;
+    }
+
+    private int readByte() throws Exception {
+        if (pos >= end) {
+            throw new Exception("JPEG sans perte: fin de flux inattendue");
+        }
+        return data.get(pos++) & 0xFF;
+    }
+
+    private int readShort() throws Exception {
+        return (readByte() << 8) | readByte();
+    }
+
+    /** Drops the bits left in the interval and skips its RSTn marker. */
+    private void readRestartMarker() throws Exception {
+        bitBuffer = 0;
+        bitCount = 0;
+        markerReached = false;
+        while (pos + 1 < end && (data.get(pos) & 0xFF) == 0xFF && (data.get(pos + 1) & 0xFF) == 0xFF) {
+            pos++;
+        }
+        if (pos + 1 >= end || (data.get(pos) & 0xFF) != 0xFF || ((data.get(pos + 1) & 0xFF) & 0xF8) != 0xD0) {
+            throw new Exception("JPEG sans perte: marqueur RST attendu");
+        }
+        pos += 2;
+    }
+
+    /** Keeps at least 32 bits buffered; past a marker or the end, zeros are fed. */
+    private void fill() {
+        while (bitCount <= 56) {
+            int b = 0;
+            if (!markerReached && pos < end) {
+                b = data.get(pos) & 0xFF;
+                if (b == 0xFF) {
+                    int next = pos + 1 < end ? data.get(pos + 1) & 0xFF : 0xD9;
+                    if (next == 0x00) {
+                        pos += 2;
+                    } else {
+                        markerReached = true;
+                        b = 0;
+                    }
+                } else {
+                    pos++;
+                }
+            }
+            bitBuffer = (bitBuffer << 8) | b;
+            bitCount += 8;
+        }
+    }
+
+    private int decodeDifference(HuffmanTable table) throws Exception {
+        if (bitCount < 32) {
+            fill();
+        }
+        int length = table.decode((int) (bitBuffer >>> (bitCount - 16)) & 0xFFFF);
+        if (length == 0) {
+            throw new Exception("JPEG sans perte: code de Huffman invalide");
+        }
+        bitCount -= length >> 8;
+        int size = length & 0xFF;
+        if (size == 0) {
+            return 0;
+        }
+        if (size == 16) {
+            return 32768;
+        }
+        if (bitCount < 16) {
+            fill();
+        }
+        int bits = (int) (bitBuffer >>> (bitCount - size)) & ((1 << size) - 1);
+        bitCount -= size;
+        return bits < (1 << (size - 1)) ? bits - (1 << size) + 1 : bits;
+    }
+
+    /** Canonical Huffman decoding: a table for short codes, the code ranges for the rest. */
+    private static final class HuffmanTable {
+        // code length << 8 | symbol, 0 when the prefix needs more than LOOKUP_BITS bits
+        private final int[] lookup = new int[1 << LOOKUP_BITS];
+        private final int[] maxCode = new int[18];
+        private final int[] valueOffset = new int[17];
+        private final int[] symbols;
+
+        HuffmanTable(int[] counts, int[] symbols) {
+            this.symbols = symbols;
+            int code = 0;
+            int k = 0;
+            for (int bits = 1; bits <= 16; bits++) {
+                valueOffset[bits] = k - code;
+                for (int n = 0; n < counts[bits]; n++, k++, code++) {
+                    if (bits <= LOOKUP_BITS) {
+                        int shift = LOOKUP_BITS - bits;
+                        for (int fill = 0; fill < (1 << shift); fill++) {
+                            lookup[(code << shift) | fill] = (bits << 8) | symbols[k];
+                        }
+                    }
+                }
+                maxCode[bits] = counts[bits] > 0 ? code - 1 : -1;
+                code <<= 1;
+            }
+            maxCode[17] = Integer.MAX_VALUE;
+        }
+
+        /** Length and symbol of the code at the top of the 16 given bits, 0 if none. */
+        int decode(int bits16) {
+            int entry = lookup[bits16 >>> (16 - LOOKUP_BITS)];
+            if (entry != 0) {
+                return entry;
+            }
+            for (int bits = LOOKUP_BITS + 1; bits <= 16; bits++) {
+                int code = bits16 >>> (16 - bits);
+                if (code <= maxCode[bits]) {
+                    return (bits << 8) | symbols[valueOffset[bits] + code];
+                }
+            }
+            return 0;
+        }
+    }
+}
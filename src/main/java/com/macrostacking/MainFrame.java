@@ -6,23 +6,76 @@ import javax.swing.border.EmptyBorder;
 import java.awt.*;
 import java.awt.datatransfer.DataFlavor;
 import java.awt.dnd.*;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
 import java.awt.image.BufferedImage;
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
 import java.util.prefs.Preferences;
 
 public class MainFrame extends JFrame {
     private final Preferences prefs = Preferences.userNodeForPackage(MainFrame.class);
     private final DefaultListModel<File> imageListModel = new DefaultListModel<>();
     private final JList<File> imageList = new JList<>(imageListModel);
-    private final JLabel previewLabel = new JLabel("", SwingConstants.CENTER);
+    private final ZoomableImageView preview = new ZoomableImageView() {
+        @Override
+        protected void paintComponent(Graphics g) {
+            super.paintComponent(g);
+            paintSelection(g);
+        }
+    };
     private final JComboBox<StackingAlgorithm> algorithmCombo = new JComboBox<>(StackingAlgorithm.values());
+    private final JComboBox<Object> focusMeasureCombo = new JComboBox<>();
     private final JComboBox<OutputFormat> formatCombo = new JComboBox<>(OutputFormat.values());
     private final JCheckBox autoAlignCheck = new JCheckBox("Alignement automatique", true);
+    private final JCheckBox compressFramesCheck = new JCheckBox("Compression mémoire des images", false);
+    private final JCheckBox offHeapCheck = new JCheckBox("Images hors du tas Java", false);
+    private final JCheckBox bayerCheck = new JCheckBox("Stacking Bayer (RAW)", false);
+    private final JCheckBox autoPlanCheck = new JCheckBox("Stratégie automatique (mémoire)", true);
+    private final JCheckBox checkpointCheck = new JCheckBox("Points de reprise", true);
+    private final JCheckBox retouchCheck = new JCheckBox("Garder les images pour retouche", true);
+    private final JCheckBox allAlgorithmsCheck = new JCheckBox("Tous les algorithmes (une passe)", false);
     private final JSpinner threadSpinner;
+    private final JCheckBox slabCheck = new JCheckBox("Sous-stacks (slabs)", false);
+    private final JSpinner slabSizeSpinner = new JSpinner(new SpinnerNumberModel(20, 2, 500, 1));
+    private final JSpinner workerSpinner = new JSpinner(new SpinnerNumberModel(0, 0, 32, 1));
     private final JProgressBar progressBar = new JProgressBar();
     private final JButton stackButton = new JButton("Stacker les images");
+    private final JButton cancelButton = new JButton("Annuler");
+    private final JButton calibrateButton = new JButton("Calibrer");
+    private final JButton liveButton = new JButton("Surveiller un dossier (live)");
+    private final JButton retouchButton = new JButton("Retoucher une zone");
+    private final JButton stackRegionButton = new JButton("Zone d'intérêt (ROI)");
+    private final JSpinner regionMarginSpinner = new JSpinner(
+            new SpinnerNumberModel(ImageStacker.DEFAULT_REGION_MARGIN, 0, 2000, 10));
+    private LiveStacker liveStacker;
+    // Work planes and result images are reused when the same frames are stacked again
+    private final StackingSession session = new StackingSession();
+    // Result being stacked, shown as its tiles finish; tiles near the point of interest come first
+    private BufferedImage previewedResult;
+    // Session results still on screen, handed back to the session once the preview moves on
+    private final List<BufferedImage> recycleWhenReplaced = new ArrayList<>();
+    private double interestHeight = 0.5;
+    private volatile Runnable cancelAction;
+    private FrameScanner.Result lastScan;
+    // Frames of the last stack, kept to fix areas of its result, and where that result was saved
+    private StackRetoucher retoucher;
+    private List<File> retouchFiles;
+    private File retouchOutput;
+    private OutputFormat retouchFormat;
+    private boolean selectingRegion;
+    // Only this rectangle of the frames is stacked when set; it is drawn on a source frame
+    private Rectangle stackRegion;
+    private boolean selectingStackRegion;
+    private File previewedFile;
+    private Point selectionStart;
+    private Rectangle selection;
     private final JLabel statusLabel = new JLabel("Prêt");
 
     public MainFrame() {
@@ -32,7 +85,9 @@ public class MainFrame extends JFrame {
         setLocationRelativeTo(null);
 
         int cpuCount = Runtime.getRuntime().availableProcessors();
-        threadSpinner = new JSpinner(new SpinnerNumberModel(cpuCount, 1, cpuCount * 2, 1));
+        HardwareCalibration.Result calibration = HardwareCalibration.load((StackingAlgorithm) algorithmCombo.getSelectedItem());
+        int defaultThreads = calibration != null ? Math.min(calibration.threadCount, cpuCount * 2) : cpuCount;
+        threadSpinner = new JSpinner(new SpinnerNumberModel(defaultThreads, 1, cpuCount * 2, 1));
 
         initComponents();
         setupDragAndDrop();
@@ -69,9 +124,57 @@ public class MainFrame extends JFrame {
         leftPanel.add(scrollPane, BorderLayout.CENTER);
 
         JPanel centerPanel = new JPanel(new BorderLayout());
-        previewLabel.setPreferredSize(new Dimension(600, 600));
-        previewLabel.setBorder(BorderFactory.createLineBorder(Color.GRAY));
-        centerPanel.add(new JScrollPane(previewLabel), BorderLayout.CENTER);
+        preview.setPreferredSize(new Dimension(600, 600));
+        preview.setBorder(BorderFactory.createLineBorder(Color.GRAY));
+        centerPanel.add(preview, BorderLayout.CENTER);
+        preview.setToolTipText("Molette: zoom, glisser: déplacer, double-clic: 100 % / ajuster. " +
+                "Cliquez pour choisir la zone stackée en premier");
+        MouseAdapter previewMouse = new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                if (!selectingRegion) {
+                    setInterestPoint(e.getPoint());
+                }
+            }
+
+            @Override
+            public void mousePressed(MouseEvent e) {
+                if (selectingRegion) {
+                    selectionStart = e.getPoint();
+                    selection = new Rectangle(selectionStart);
+                }
+            }
+
+            @Override
+            public void mouseDragged(MouseEvent e) {
+                if (selectingRegion && selectionStart != null) {
+                    selection = new Rectangle(selectionStart);
+                    selection.add(e.getPoint());
+                    preview.repaint();
+                }
+            }
+
+            @Override
+            public void mouseReleased(MouseEvent e) {
+                if (selectingRegion && selection != null && selection.width > 2 && selection.height > 2) {
+                    boolean forStack = selectingStackRegion;
+                    Rectangle region = forStack ? selectedFrameRegion() : selectedImageRegion();
+                    selectingRegion = false;
+                    selectingStackRegion = false;
+                    preview.setPanEnabled(true);
+                    selectionStart = null;
+                    if (region != null && forStack) {
+                        setStackRegion(region);
+                    } else if (region != null) {
+                        showRetouchDialog(region);
+                    }
+                    selection = null;
+                    preview.repaint();
+                }
+            }
+        };
+        preview.addMouseListener(previewMouse);
+        preview.addMouseMotionListener(previewMouse);
 
         JPanel rightPanel = new JPanel();
         rightPanel.setLayout(new BoxLayout(rightPanel, BoxLayout.Y_AXIS));
@@ -81,6 +184,15 @@ public class MainFrame extends JFrame {
         rightPanel.add(new JLabel("Algorithme de stacking:"));
         rightPanel.add(Box.createVerticalStrut(5));
         rightPanel.add(algorithmCombo);
+        rightPanel.add(Box.createVerticalStrut(10));
+
+        rightPanel.add(new JLabel("Mesure de netteté:"));
+        rightPanel.add(Box.createVerticalStrut(5));
+        focusMeasureCombo.addItem("Selon l'algorithme");
+        for (FocusMeasure measure : FocusMeasures.all()) {
+            focusMeasureCombo.addItem(measure);
+        }
+        rightPanel.add(focusMeasureCombo);
         rightPanel.add(Box.createVerticalStrut(20));
 
         rightPanel.add(new JLabel("Format de sortie:"));
@@ -91,14 +203,92 @@ public class MainFrame extends JFrame {
         rightPanel.add(autoAlignCheck);
         rightPanel.add(Box.createVerticalStrut(10));
 
+        compressFramesCheck.setToolTipText("Permet d'empiler beaucoup plus d'images dans la même mémoire");
+        rightPanel.add(compressFramesCheck);
+        rightPanel.add(Box.createVerticalStrut(10));
+
+        offHeapCheck.setToolTipText("Garde les images chargées en mémoire native, libérée dès la fin du stacking");
+        rightPanel.add(offHeapCheck);
+        rightPanel.add(Box.createVerticalStrut(10));
+
+        bayerCheck.setToolTipText("Empile les données RAW avant dématriçage et ne dématrice que le résultat");
+        rightPanel.add(bayerCheck);
+        rightPanel.add(Box.createVerticalStrut(10));
+
+        autoPlanCheck.setToolTipText("Estime la mémoire nécessaire avant de charger et choisit compression, flux ou sous-stacks");
+        rightPanel.add(autoPlanCheck);
+        rightPanel.add(Box.createVerticalStrut(10));
+
+        checkpointCheck.setToolTipText("Sauvegarde l'avancement sur disque pour reprendre un stacking interrompu");
+        rightPanel.add(checkpointCheck);
+        rightPanel.add(Box.createVerticalStrut(10));
+
+        retouchCheck.setToolTipText("Conserve les images alignées après le stacking pour corriger une zone sans tout refaire");
+        rightPanel.add(retouchCheck);
+        rightPanel.add(Box.createVerticalStrut(10));
+
+        allAlgorithmsCheck.setToolTipText("Produit le résultat de chaque algorithme en un seul chargement, alignement et calcul de netteté");
+        rightPanel.add(allAlgorithmsCheck);
+        rightPanel.add(Box.createVerticalStrut(10));
+
         JPanel threadPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
         threadPanel.add(new JLabel("Threads CPU:"));
         threadPanel.add(threadSpinner);
+        calibrateButton.setToolTipText("Mesure le nombre de threads et la taille de tuile les plus rapides sur cette machine");
+        calibrateButton.addActionListener(e -> runCalibration());
+        threadPanel.add(calibrateButton);
         rightPanel.add(threadPanel);
+        rightPanel.add(Box.createVerticalStrut(10));
+
+        JPanel slabPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        slabCheck.setToolTipText("Empile par groupes d'images puis empile les résultats (piles très profondes)");
+        slabPanel.add(slabCheck);
+        slabPanel.add(slabSizeSpinner);
+        rightPanel.add(slabPanel);
+        rightPanel.add(Box.createVerticalStrut(10));
+
+        JPanel workerPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        workerPanel.add(new JLabel("Processus workers:"));
+        workerSpinner.setToolTipText("Répartit le stacking sur plusieurs JVM (0 = dans ce processus)");
+        workerPanel.add(workerSpinner);
+        rightPanel.add(workerPanel);
         rightPanel.add(Box.createVerticalStrut(20));
 
         stackButton.addActionListener(e -> startStacking());
         rightPanel.add(stackButton);
+        rightPanel.add(Box.createVerticalStrut(10));
+
+        cancelButton.setEnabled(false);
+        cancelButton.addActionListener(e -> {
+            Runnable action = cancelAction;
+            if (action != null) {
+                action.run();
+                cancelButton.setEnabled(false);
+                statusLabel.setText("Annulation...");
+            }
+        });
+        rightPanel.add(cancelButton);
+        rightPanel.add(Box.createVerticalStrut(10));
+
+        liveButton.setToolTipText("Empile chaque nouvelle image dès qu'elle apparaît dans le dossier (prise de vue connectée)");
+        liveButton.addActionListener(e -> toggleLiveStacking());
+        rightPanel.add(liveButton);
+        rightPanel.add(Box.createVerticalStrut(10));
+
+        retouchButton.setEnabled(false);
+        retouchButton.setToolTipText("Tracez un rectangle sur le résultat, puis forcez une image source ou restackez la zone");
+        retouchButton.addActionListener(e -> startRegionSelection());
+        rightPanel.add(retouchButton);
+        rightPanel.add(Box.createVerticalStrut(10));
+
+        JPanel regionPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        stackRegionButton.setToolTipText("Tracez un rectangle sur une image source: seule cette zone est chargée et stackée");
+        stackRegionButton.addActionListener(e -> toggleStackRegion());
+        regionPanel.add(stackRegionButton);
+        regionMarginSpinner.setToolTipText("Marge chargée autour de la zone pour l'alignement (pixels)");
+        regionPanel.add(new JLabel("Marge:"));
+        regionPanel.add(regionMarginSpinner);
+        rightPanel.add(regionPanel);
         rightPanel.add(Box.createVerticalStrut(20));
 
         rightPanel.add(progressBar);
@@ -140,9 +330,11 @@ public class MainFrame extends JFrame {
                     List<File> droppedFiles = (List<File>) dtde.getTransferable()
                             .getTransferData(DataFlavor.javaFileListFlavor);
 
+                    boolean folderDropped = false;
                     for (File file : droppedFiles) {
                         if (file.isDirectory()) {
                             addFilesFromDirectory(file);
+                            folderDropped = true;
                         } else if (isImageFile(file)) {
                             if (!imageListModel.contains(file)) {
                                 imageListModel.addElement(file);
@@ -152,6 +344,9 @@ public class MainFrame extends JFrame {
 
                     dtde.dropComplete(true);
                     statusLabel.setText(imageListModel.size() + " image(s) chargée(s)");
+                    if (folderDropped) {
+                        scanFrames();
+                    }
                 } catch (Exception ex) {
                     ex.printStackTrace();
                     dtde.dropComplete(false);
@@ -161,16 +356,7 @@ public class MainFrame extends JFrame {
     }
 
     private void addFilesFromDirectory(File dir) {
-        File[] files = dir.listFiles((d, name) -> {
-            String lower = name.toLowerCase();
-            return lower.endsWith(".arw") || lower.endsWith(".cr2") ||
-                    lower.endsWith(".cr3") || lower.endsWith(".nef") ||
-                    lower.endsWith(".raw") || lower.endsWith(".dng") ||
-                    lower.endsWith(".orf") || lower.endsWith(".raf") ||
-                    lower.endsWith(".jpg") || lower.endsWith(".jpeg") ||
-                    lower.endsWith(".png") || lower.endsWith(".tif") ||
-                    lower.endsWith(".tiff");
-        });
+        File[] files = dir.listFiles(this::isImageFile);
 
         if (files != null) {
             for (File file : files) {
@@ -182,14 +368,93 @@ public class MainFrame extends JFrame {
     }
 
     private boolean isImageFile(File file) {
-        String name = file.getName().toLowerCase();
-        return name.endsWith(".arw") || name.endsWith(".cr2") ||
-                name.endsWith(".cr3") || name.endsWith(".nef") ||
-                name.endsWith(".raw") || name.endsWith(".dng") ||
-                name.endsWith(".orf") || name.endsWith(".raf") ||
-                name.endsWith(".jpg") || name.endsWith(".jpeg") ||
-                name.endsWith(".png") || name.endsWith(".tif") ||
-                name.endsWith(".tiff");
+        return file.isFile() && FrameScanner.isImageFile(file);
+    }
+
+    /**
+     * Reads the metadata of every listed frame in the background, puts the list in focus
+     * order and offers to drop frames whose size differs from the series.
+     */
+    private void scanFrames() {
+        List<File> files = listedFiles();
+        if (files.isEmpty()) {
+            return;
+        }
+
+        SwingWorker<FrameScanner.Result, String> worker = new SwingWorker<>() {
+            @Override
+            protected FrameScanner.Result doInBackground() throws Exception {
+                return new FrameScanner().scan(files, (progress, status) -> {
+                    publish(status);
+                    setProgress(progress);
+                });
+            }
+
+            @Override
+            protected void process(List<String> chunks) {
+                statusLabel.setText(chunks.get(chunks.size() - 1));
+            }
+
+            @Override
+            protected void done() {
+                progressBar.setValue(0);
+                FrameScanner.Result result;
+                try {
+                    result = get();
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                    statusLabel.setText(imageListModel.size() + " image(s) chargée(s)");
+                    return;
+                }
+                // The list changed during the scan: a later scan will order it
+                if (!listedFiles().equals(files)) {
+                    return;
+                }
+
+                lastScan = result;
+                imageListModel.clear();
+                for (File file : result.getFiles()) {
+                    imageListModel.addElement(file);
+                }
+                statusLabel.setText(result.describe());
+
+                if (!result.mismatched.isEmpty()) {
+                    StringBuilder message = new StringBuilder("Dimensions de la série: " +
+                            result.size.width + "x" + result.size.height + "\n");
+                    int shown = Math.min(10, result.mismatched.size());
+                    for (FrameScanner.FrameInfo frame : result.mismatched.subList(0, shown)) {
+                        message.append("\n").append(frame.file.getName()).append(": ")
+                                .append(frame.width).append("x").append(frame.height);
+                    }
+                    if (shown < result.mismatched.size()) {
+                        message.append("\n... et ").append(result.mismatched.size() - shown).append(" autre(s)");
+                    }
+                    message.append("\n\nRetirer ces images de la liste ?");
+                    int choice = JOptionPane.showConfirmDialog(MainFrame.this, message.toString(),
+                            "Dimensions différentes", JOptionPane.YES_NO_OPTION, JOptionPane.WARNING_MESSAGE);
+                    if (choice == JOptionPane.YES_OPTION) {
+                        for (FrameScanner.FrameInfo frame : result.mismatched) {
+                            imageListModel.removeElement(frame.file);
+                        }
+                        statusLabel.setText(imageListModel.size() + " image(s) chargée(s)");
+                    }
+                }
+            }
+        };
+        worker.addPropertyChangeListener(evt -> {
+            if ("progress".equals(evt.getPropertyName())) {
+                progressBar.setValue((Integer) evt.getNewValue());
+            }
+        });
+        worker.execute();
+    }
+
+    private List<File> listedFiles() {
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i < imageListModel.size(); i++) {
+            files.add(imageListModel.getElementAt(i));
+        }
+        return files;
     }
 
     private void addFiles() {
@@ -220,21 +485,18 @@ public class MainFrame extends JFrame {
             addFilesFromDirectory(folder);
             prefs.put("lastDirectory", folder.getAbsolutePath());
             statusLabel.setText(imageListModel.size() + " image(s) chargée(s)");
+            scanFrames();
         }
     }
 
     private void updatePreview() {
         if (imageList.getSelectedValue() != null) {
             File file = imageList.getSelectedValue();
-            SwingWorker<ImageIcon, Void> worker = new SwingWorker<>() {
+            SwingWorker<BufferedImage, Void> worker = new SwingWorker<>() {
                 @Override
-                protected ImageIcon doInBackground() {
+                protected BufferedImage doInBackground() {
                     try {
-                        BufferedImage img = ImageLoader.loadImage(file);
-                        if (img != null) {
-                            BufferedImage scaled = scaleImage(img, 600, 600);
-                            return new ImageIcon(scaled);
-                        }
+                        return ImageLoader.loadImage(file);
                     } catch (Exception ex) {
                         ex.printStackTrace();
                     }
@@ -244,13 +506,18 @@ public class MainFrame extends JFrame {
                 @Override
                 protected void done() {
                     try {
-                        ImageIcon icon = get();
-                        if (icon != null) {
-                            previewLabel.setIcon(icon);
-                            previewLabel.setText("");
+                        BufferedImage img = get();
+                        if (img != null) {
+                            // Frames of a series share their size: the zoom and position are kept
+                            showImage(img);
+                            previewedFile = file;
+                        } else {
+                            preview.setMessage("Erreur de chargement");
+                            recycleReplaced();
                         }
                     } catch (Exception ex) {
-                        previewLabel.setText("Erreur de chargement");
+                        preview.setMessage("Erreur de chargement");
+                        recycleReplaced();
                     }
                 }
             };
@@ -258,21 +525,404 @@ public class MainFrame extends JFrame {
         }
     }
 
-    private BufferedImage scaleImage(BufferedImage img, int maxWidth, int maxHeight) {
-        int width = img.getWidth();
-        int height = img.getHeight();
+    /** Maps a click on the preview to a height in the image, stacked first by the next run. */
+    private void setInterestPoint(Point point) {
+        BufferedImage image = preview.getImage();
+        if (image == null) {
+            return;
+        }
+        interestHeight = Math.max(0, Math.min(1, preview.toImage(point).y / image.getHeight()));
+        statusLabel.setText("Point d'intérêt: " + Math.round(interestHeight * 100) + "% de la hauteur");
+    }
+
+    /** Shows rows of the running stack's result as they finish, or rows a retouch changed. */
+    private void paintResultTile(BufferedImage result, int startY, int endY) {
+        if (previewedResult != result || preview.getImage() != result) {
+            previewedResult = result;
+            previewedFile = null;
+            showImage(result);
+        } else {
+            preview.invalidateRows(startY, endY);
+        }
+    }
+
+    /** Shows an image in the preview, then recycles the session results it replaced. */
+    private void showImage(BufferedImage image) {
+        preview.setImage(image);
+        recycleReplaced();
+    }
+
+    /** Hands a result back to the session now, or once the preview no longer shows it. */
+    private void recycleResult(BufferedImage result) {
+        recycleWhenReplaced.add(result);
+        recycleReplaced();
+    }
+
+    private void recycleReplaced() {
+        BufferedImage shown = preview.getImage();
+        recycleWhenReplaced.removeIf(image -> {
+            if (image == shown) {
+                return false;
+            }
+            session.recycle(image);
+            return true;
+        });
+    }
+
+    /** Frame size from the last scan, if that scan covered exactly these files. */
+    private Dimension scannedSize(List<File> files) {
+        if (lastScan == null || lastScan.size == null || !lastScan.mismatched.isEmpty() ||
+                !new HashSet<>(lastScan.getFiles()).equals(new HashSet<>(files))) {
+            return null;
+        }
+        return lastScan.size;
+    }
+
+    /**
+     * Size the planner works with: the scanned frame size, or the window decoded for the
+     * region. Null lets the planner read it from the files.
+     */
+    private Dimension plannedSize(List<File> files, Rectangle region, int margin) throws Exception {
+        Dimension size = scannedSize(files);
+        if (region == null) {
+            return size;
+        }
+        if (size == null) {
+            size = ImageLoader.readDimensions(files.get(0));
+        }
+        Rectangle window = new Rectangle(region.x - margin, region.y - margin, region.width + 2 * margin,
+                region.height + 2 * margin).intersection(new Rectangle(size));
+        if (window.isEmpty()) {
+            throw new Exception("La zone d'intérêt est en dehors des images");
+        }
+        return window.getSize();
+    }
+
+    /** Output of one algorithm in all-algorithms mode: "name_depth_map.tif" for "name.tif". */
+    private static File algorithmOutput(File outputFile, OutputFormat format, StackingAlgorithm algorithm) {
+        String name = outputFile.getName();
+        if (name.toLowerCase().endsWith(format.getExtension())) {
+            name = name.substring(0, name.length() - format.getExtension().length());
+        }
+        return new File(outputFile.getParentFile(), name + "_" + algorithm.name().toLowerCase() + format.getExtension());
+    }
+
+    private void keepRetoucher(StackRetoucher kept, List<File> files, File outputFile, OutputFormat format) {
+        closeRetoucher();
+        retoucher = kept;
+        retouchFiles = files;
+        retouchOutput = outputFile;
+        retouchFormat = format;
+        retouchButton.setEnabled(true);
+    }
+
+    /** Frees the frames kept for retouching and hands the result back to the session. */
+    private void closeRetoucher() {
+        if (retoucher != null) {
+            BufferedImage result = retoucher.getResult();
+            retoucher.close();
+            recycleResult(result);
+            retoucher = null;
+            retouchFiles = null;
+        }
+        retouchButton.setEnabled(false);
+        selectingRegion = false;
+        selectingStackRegion = false;
+        preview.setPanEnabled(true);
+        selection = null;
+    }
+
+    private void startRegionSelection() {
+        if (retoucher == null) {
+            return;
+        }
+        BufferedImage result = retoucher.getResult();
+        if (preview.getImage() != result) {
+            paintResultTile(result, 0, result.getHeight());
+        }
+        selectingRegion = true;
+        selectingStackRegion = false;
+        preview.setPanEnabled(false);
+        statusLabel.setText("Tracez la zone à retoucher sur l'aperçu");
+    }
+
+    private void paintSelection(Graphics g) {
+        if (stackRegion != null && previewedFile != null) {
+            Point from = preview.toView(stackRegion.x, stackRegion.y);
+            Point to = preview.toView(stackRegion.x + stackRegion.width, stackRegion.y + stackRegion.height);
+            g.setColor(Color.CYAN);
+            g.drawRect(from.x, from.y, to.x - from.x, to.y - from.y);
+        }
+        if (selection != null) {
+            g.setColor(Color.YELLOW);
+            g.drawRect(selection.x, selection.y, selection.width, selection.height);
+        }
+    }
+
+    /** The rectangle drawn on the preview, in result pixels; null if it misses the image. */
+    private Rectangle selectedImageRegion() {
+        if (retoucher == null || preview.getImage() != retoucher.getResult()) {
+            return null;
+        }
+        return selectedRegion(retoucher.getResult());
+    }
+
+    /** The rectangle drawn on a source frame, in frame pixels; null if no frame is shown. */
+    private Rectangle selectedFrameRegion() {
+        return previewedFile != null && preview.getImage() != null ? selectedRegion(preview.getImage()) : null;
+    }
+
+    private Rectangle selectedRegion(BufferedImage image) {
+        Point.Double from = preview.toImage(selection.getLocation());
+        Point.Double to = preview.toImage(new Point(selection.x + selection.width, selection.y + selection.height));
+
+        int x0 = (int) Math.floor(from.x);
+        int y0 = (int) Math.floor(from.y);
+        int x1 = (int) Math.ceil(to.x);
+        int y1 = (int) Math.ceil(to.y);
+        Rectangle region = new Rectangle(x0, y0, x1 - x0, y1 - y0)
+                .intersection(new Rectangle(0, 0, image.getWidth(), image.getHeight()));
+        return region.isEmpty() ? null : region;
+    }
+
+    /** Starts drawing the stacked area on the frame shown, or drops the one set. */
+    private void toggleStackRegion() {
+        if (stackRegion != null) {
+            setStackRegion(null);
+            return;
+        }
+        if (previewedFile == null) {
+            statusLabel.setText("Affichez une image source pour y tracer la zone");
+            return;
+        }
+        selectingRegion = true;
+        selectingStackRegion = true;
+        preview.setPanEnabled(false);
+        statusLabel.setText("Tracez la zone à stacker sur l'aperçu");
+    }
+
+    private void setStackRegion(Rectangle region) {
+        stackRegion = region;
+        stackRegionButton.setText(region != null ? "Effacer la zone d'intérêt" : "Zone d'intérêt (ROI)");
+        statusLabel.setText(region != null
+                ? "Zone d'intérêt: " + region.width + "x" + region.height + " en (" + region.x + ", " + region.y + ")"
+                : "Stacking de l'image entière");
+        preview.repaint();
+    }
+
+    private void showRetouchDialog(Rectangle region) {
+        JRadioButton restackOption = new JRadioButton("Restacker la zone avec:", true);
+        JRadioButton forceOption = new JRadioButton("Prendre la zone de l'image:");
+        ButtonGroup group = new ButtonGroup();
+        group.add(restackOption);
+        group.add(forceOption);
+
+        JComboBox<StackingAlgorithm> algorithmChoice = new JComboBox<>(StackingAlgorithm.values());
+        algorithmChoice.setSelectedItem(algorithmCombo.getSelectedItem());
+        JComboBox<String> frameChoice = new JComboBox<>();
+        for (int i = 0; i < retoucher.getFrameCount(); i++) {
+            frameChoice.addItem((i + 1) + " - " + retouchFiles.get(i).getName());
+        }
+
+        JPanel panel = new JPanel(new GridLayout(5, 1, 5, 5));
+        panel.add(new JLabel("Zone " + region.width + "x" + region.height + " en (" + region.x + ", " + region.y + ")"));
+        panel.add(restackOption);
+        panel.add(algorithmChoice);
+        panel.add(forceOption);
+        panel.add(frameChoice);
+        if (JOptionPane.showConfirmDialog(this, panel, "Retouche", JOptionPane.OK_CANCEL_OPTION,
+                JOptionPane.PLAIN_MESSAGE) != JOptionPane.OK_OPTION) {
+            statusLabel.setText("Retouche annulée");
+            return;
+        }
+
+        StackRetoucher target = retoucher;
+        File outputFile = retouchOutput;
+        OutputFormat format = retouchFormat;
+        boolean restack = restackOption.isSelected();
+        StackingAlgorithm algorithm = (StackingAlgorithm) algorithmChoice.getSelectedItem();
+        int frameIndex = frameChoice.getSelectedIndex();
+        target.setThreadCount((Integer) threadSpinner.getValue());
+        retouchButton.setEnabled(false);
+        stackButton.setEnabled(false);
+
+        SwingWorker<Rectangle, String> worker = new SwingWorker<>() {
+            @Override
+            protected Rectangle doInBackground() throws Exception {
+                Rectangle changed = restack
+                        ? target.restack(region, algorithm, (progress, status) -> {
+                            publish(status);
+                            setProgress(progress);
+                        })
+                        : target.forceFrame(region, frameIndex);
+                publish("Sauvegarde...");
+                ImageSaver.saveImage(target.getResult(), outputFile, format);
+                return changed;
+            }
+
+            @Override
+            protected void process(List<String> chunks) {
+                statusLabel.setText(chunks.get(chunks.size() - 1));
+            }
+
+            @Override
+            protected void done() {
+                stackButton.setEnabled(true);
+                retouchButton.setEnabled(retoucher != null);
+                progressBar.setValue(0);
+                try {
+                    Rectangle changed = get();
+                    paintResultTile(target.getResult(), changed.y, changed.y + changed.height);
+                    statusLabel.setText("Zone retouchée, résultat enregistré");
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                    Throwable cause = ex.getCause() != null ? ex.getCause() : ex;
+                    statusLabel.setText("Prêt");
+                    JOptionPane.showMessageDialog(MainFrame.this, "Erreur: " + cause.getMessage(), "Erreur",
+                            JOptionPane.ERROR_MESSAGE);
+                }
+            }
+        };
+        worker.addPropertyChangeListener(evt -> {
+            if ("progress".equals(evt.getPropertyName())) {
+                progressBar.setValue((Integer) evt.getNewValue());
+            }
+        });
+        worker.execute();
+    }
+
+    private FocusMeasure selectedFocusMeasure() {
+        return focusMeasureCombo.getSelectedItem() instanceof FocusMeasure measure ? measure : null;
+    }
+
+    private void runCalibration() {
+        calibrateButton.setEnabled(false);
+        stackButton.setEnabled(false);
 
-        double scale = Math.min((double) maxWidth / width, (double) maxHeight / height);
-        int newWidth = (int) (width * scale);
-        int newHeight = (int) (height * scale);
+        SwingWorker<List<HardwareCalibration.Result>, String> worker = new SwingWorker<>() {
+            @Override
+            protected List<HardwareCalibration.Result> doInBackground() throws Exception {
+                return HardwareCalibration.run((progress, status) -> {
+                    publish(status);
+                    setProgress(progress);
+                });
+            }
 
-        BufferedImage scaled = new BufferedImage(newWidth, newHeight, BufferedImage.TYPE_INT_RGB);
-        Graphics2D g2d = scaled.createGraphics();
-        g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
-        g2d.drawImage(img, 0, 0, newWidth, newHeight, null);
-        g2d.dispose();
+            @Override
+            protected void process(List<String> chunks) {
+                statusLabel.setText(chunks.get(chunks.size() - 1));
+            }
 
-        return scaled;
+            @Override
+            protected void done() {
+                calibrateButton.setEnabled(true);
+                stackButton.setEnabled(true);
+                progressBar.setValue(0);
+                try {
+                    List<HardwareCalibration.Result> results = get();
+                    StringBuilder message = new StringBuilder("Configurations retenues:");
+                    for (HardwareCalibration.Result result : results) {
+                        message.append("\n").append(result);
+                        if (result.algorithm == algorithmCombo.getSelectedItem()) {
+                            threadSpinner.setValue(Math.min(result.threadCount, (Integer) ((SpinnerNumberModel) threadSpinner.getModel()).getMaximum()));
+                            statusLabel.setText("Calibration: " + result);
+                        }
+                    }
+                    JOptionPane.showMessageDialog(MainFrame.this, message.toString(),
+                            "Calibration", JOptionPane.INFORMATION_MESSAGE);
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                    statusLabel.setText("Prêt");
+                    JOptionPane.showMessageDialog(MainFrame.this, "Erreur: " + ex.getMessage(), "Erreur",
+                            JOptionPane.ERROR_MESSAGE);
+                }
+            }
+        };
+        worker.addPropertyChangeListener(evt -> {
+            if ("progress".equals(evt.getPropertyName())) {
+                progressBar.setValue((Integer) evt.getNewValue());
+            }
+        });
+        worker.execute();
+    }
+
+    private void toggleLiveStacking() {
+        if (liveStacker != null) {
+            stopLiveStacking();
+            return;
+        }
+
+        String lastDir = prefs.get("lastDirectory", System.getProperty("user.home"));
+        JFileChooser chooser = new JFileChooser(lastDir);
+        chooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+        chooser.setDialogTitle("Dossier à surveiller");
+        if (chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+
+        File folder = chooser.getSelectedFile();
+        prefs.put("lastDirectory", folder.getAbsolutePath());
+
+        LiveStacker stacker = new LiveStacker((StackingAlgorithm) algorithmCombo.getSelectedItem());
+        stacker.setAutoAlign(autoAlignCheck.isSelected());
+        stacker.setThreadCount((Integer) threadSpinner.getValue());
+        stacker.setFocusMeasure(selectedFocusMeasure());
+
+        try {
+            stacker.start(folder, new LiveStacker.Listener() {
+                @Override
+                public void frameAdded(BufferedImage composite, int frameCount, String status) {
+                    SwingUtilities.invokeLater(() -> {
+                        showImage(composite);
+                        previewedFile = null;
+                        statusLabel.setText(status);
+                    });
+                }
+
+                @Override
+                public void frameFailed(File file, Exception error) {
+                    error.printStackTrace();
+                    SwingUtilities.invokeLater(() -> statusLabel.setText("Échec: " + file.getName()));
+                }
+            });
+        } catch (Exception ex) {
+            JOptionPane.showMessageDialog(this, "Erreur: " + ex.getMessage(), "Erreur", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+
+        liveStacker = stacker;
+        liveButton.setText("Arrêter la surveillance");
+        stackButton.setEnabled(false);
+        statusLabel.setText("Surveillance de " + folder.getName() + "...");
+    }
+
+    private void stopLiveStacking() {
+        liveStacker.stop();
+        BufferedImage result = liveStacker.getComposite();
+        int frameCount = liveStacker.getFrameCount();
+        liveStacker = null;
+        liveButton.setText("Surveiller un dossier (live)");
+        stackButton.setEnabled(true);
+
+        if (result == null) {
+            statusLabel.setText("Prêt");
+            return;
+        }
+
+        String lastDir = prefs.get("lastDirectory", System.getProperty("user.home"));
+        JFileChooser chooser = new JFileChooser(lastDir);
+        chooser.setDialogTitle("Enregistrer le résultat live (" + frameCount + " images)");
+        if (chooser.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
+            File outputFile = chooser.getSelectedFile();
+            OutputFormat format = (OutputFormat) formatCombo.getSelectedItem();
+            try {
+                ImageSaver.saveImage(result, outputFile, format);
+                statusLabel.setText("Résultat live enregistré");
+            } catch (Exception ex) {
+                ex.printStackTrace();
+                JOptionPane.showMessageDialog(this, "Erreur: " + ex.getMessage(), "Erreur", JOptionPane.ERROR_MESSAGE);
+            }
+        }
     }
 
     private void startStacking() {
@@ -288,9 +938,90 @@ public class MainFrame extends JFrame {
         }
 
         StackingAlgorithm algorithm = (StackingAlgorithm) algorithmCombo.getSelectedItem();
+        FocusMeasure focusMeasure = selectedFocusMeasure();
         OutputFormat format = (OutputFormat) formatCombo.getSelectedItem();
         boolean autoAlign = autoAlignCheck.isSelected();
         int threadCount = (Integer) threadSpinner.getValue();
+        int workerCount = (Integer) workerSpinner.getValue();
+        boolean compressSelected = compressFramesCheck.isSelected();
+        boolean offHeapFrames = offHeapCheck.isSelected();
+        boolean bayer = bayerCheck.isSelected();
+        boolean keepForRetouch = retouchCheck.isSelected();
+        boolean slabsSelected = slabCheck.isSelected();
+        int slabSizeSelected = (Integer) slabSizeSpinner.getValue();
+        boolean streamingPlanned = false;
+        Rectangle region = stackRegion;
+        int regionMargin = (Integer) regionMarginSpinner.getValue();
+        if (region != null && bayer) {
+            JOptionPane.showMessageDialog(this, "La zone d'intérêt n'est pas disponible en stacking Bayer",
+                    "Erreur", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+
+        // The plan only escalates: options ticked by hand are kept
+        // A Bayer stack keeps 2 bytes per pixel and frame, far below what the planner assumes
+        if (autoPlanCheck.isSelected() && workerCount == 0 && !bayer) {
+            MemoryPlanner planner = new MemoryPlanner(algorithm);
+            planner.setThreadCount(threadCount);
+            MemoryPlanner.Plan plan;
+            try {
+                plan = planner.plan(files, plannedSize(files, region, autoAlign ? regionMargin : 0));
+            } catch (Exception ex) {
+                JOptionPane.showMessageDialog(this, "Erreur: " + ex.getMessage(), "Erreur", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+
+            int choice = JOptionPane.showConfirmDialog(this, plan.describe() + "\n\nContinuer ?",
+                    "Plan d'exécution", JOptionPane.OK_CANCEL_OPTION, JOptionPane.INFORMATION_MESSAGE);
+            if (choice != JOptionPane.OK_OPTION) {
+                return;
+            }
+
+            switch (plan.strategy) {
+                case COMPRESSED -> compressSelected = true;
+                case STREAMING -> streamingPlanned = !slabsSelected;
+                case SLABS -> {
+                    compressSelected = true;
+                    if (!slabsSelected || slabSizeSelected > plan.slabSize) {
+                        slabSizeSelected = plan.slabSize;
+                    }
+                    slabsSelected = true;
+                }
+                default -> {
+                }
+            }
+        }
+        boolean compressFrames = compressSelected;
+        boolean useSlabs = slabsSelected;
+        int slabSize = slabSizeSelected;
+        boolean streaming = streamingPlanned;
+        boolean allAlgorithms = allAlgorithmsCheck.isSelected();
+        if (allAlgorithms && (bayer || useSlabs || streaming || workerCount > 0)) {
+            JOptionPane.showMessageDialog(this, "Le mode tous les algorithmes ne fonctionne qu'avec les images en mémoire " +
+                    "(sans stacking Bayer, sous-stacks, flux ni workers)", "Erreur", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+
+        File checkpointDir = null;
+        if (checkpointCheck.isSelected() && !bayer && !useSlabs && !streaming && workerCount == 0 && !allAlgorithms) {
+            checkpointDir = StackCheckpoint.defaultDirectory(files, algorithm);
+            if (StackCheckpoint.exists(checkpointDir, files, algorithm)) {
+                int choice = JOptionPane.showConfirmDialog(this,
+                        "Un stacking interrompu de ces images a été trouvé. Le reprendre ?",
+                        "Reprise", JOptionPane.YES_NO_CANCEL_OPTION);
+                if (choice == JOptionPane.CANCEL_OPTION || choice == JOptionPane.CLOSED_OPTION) {
+                    return;
+                }
+                if (choice == JOptionPane.NO_OPTION) {
+                    try {
+                        StackCheckpoint.discard(checkpointDir);
+                    } catch (IOException ex) {
+                        ex.printStackTrace();
+                    }
+                }
+            }
+        }
+        File checkpointDirectory = checkpointDir;
 
         String lastDir = prefs.get("lastDirectory", System.getProperty("user.home"));
         JFileChooser chooser = new JFileChooser(lastDir);
@@ -299,26 +1030,127 @@ public class MainFrame extends JFrame {
         if (chooser.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
             File outputFile = chooser.getSelectedFile();
 
+            closeRetoucher();
             stackButton.setEnabled(false);
+            cancelButton.setEnabled(!useSlabs && !bayer);
             progressBar.setIndeterminate(true);
+            previewedResult = null;
+            double priorityHeight = interestHeight;
             long startTime = System.currentTimeMillis();
 
             SwingWorker<Void, String> worker = new SwingWorker<>() {
+                private boolean cancelled;
+
                 @Override
                 protected Void doInBackground() {
                     try {
-                        ImageStacker stacker = new ImageStacker(algorithm);
-                        stacker.setAutoAlign(autoAlign);
-                        stacker.setThreadCount(threadCount);
-
-                        BufferedImage result = stacker.stackImages(files, (progress, status) -> {
+                        ImageStacker.ProgressCallback callback = (progress, status) -> {
                             publish(status);
                             setProgress(progress);
-                        });
+                        };
+                        ImageStacker.TileListener tileListener = (image, startY, endY) ->
+                                SwingUtilities.invokeLater(() -> paintResultTile(image, startY, endY));
+
+                        BufferedImage result;
+                        ImageStacker retaining = null;
+                        if (bayer) {
+                            BayerStacker stacker = new BayerStacker(algorithm);
+                            stacker.setAutoAlign(autoAlign);
+                            stacker.setThreadCount(threadCount);
+                            stacker.setFocusMeasure(focusMeasure);
+                            result = stacker.stackImages(files, callback);
+                        } else if (useSlabs) {
+                            SlabStacker stacker = new SlabStacker(algorithm);
+                            stacker.setAutoAlign(autoAlign);
+                            stacker.setCompressFrames(compressFrames);
+                            stacker.setOffHeapFrames(offHeapFrames);
+                            stacker.setThreadCount(threadCount);
+                            stacker.setSlabSize(slabSize);
+                            stacker.setFocusMeasure(focusMeasure);
+                            stacker.setRegion(region);
+                            stacker.setRegionMargin(regionMargin);
+                            result = stacker.stackImages(files, callback);
+                        } else if (workerCount > 0) {
+                            TileCoordinator coordinator = new TileCoordinator(algorithm);
+                            coordinator.setAutoAlign(autoAlign);
+                            coordinator.setCompressFrames(compressFrames);
+                            coordinator.setOffHeapFrames(offHeapFrames);
+                            coordinator.setThreadCount(threadCount);
+                            coordinator.setLocalWorkers(workerCount);
+                            coordinator.setFocusMeasure(focusMeasure);
+                            coordinator.setRegion(region);
+                            coordinator.setRegionMargin(regionMargin);
+                            coordinator.setTileListener(tileListener);
+                            coordinator.setPriorityHeight(priorityHeight);
+                            cancelAction = coordinator::cancel;
+                            result = coordinator.stackImages(files, callback);
+                        } else if (streaming) {
+                            ImageStacker stacker = new ImageStacker(algorithm);
+                            stacker.setAutoAlign(autoAlign);
+                            stacker.setThreadCount(threadCount);
+                            stacker.setFocusMeasure(focusMeasure);
+                            stacker.setRegion(region);
+                            stacker.setRegionMargin(regionMargin);
+                            cancelAction = stacker::cancel;
+                            result = stacker.stackStreaming(files, callback);
+                        } else if (allAlgorithms) {
+                            ImageStacker stacker = session.createStacker(algorithm);
+                            stacker.setAutoAlign(autoAlign);
+                            stacker.setCompressFrames(compressFrames);
+                            stacker.setOffHeapFrames(offHeapFrames);
+                            stacker.setThreadCount(threadCount);
+                            stacker.setFocusMeasure(focusMeasure);
+                            stacker.setRegion(region);
+                            stacker.setRegionMargin(regionMargin);
+                            stacker.setPriorityHeight(priorityHeight);
+                            cancelAction = stacker::cancel;
+                            Map<StackingAlgorithm, BufferedImage> results = stacker.stackAlgorithms(files,
+                                    EnumSet.allOf(StackingAlgorithm.class), callback);
+                            for (Map.Entry<StackingAlgorithm, BufferedImage> entry : results.entrySet()) {
+                                publish("Sauvegarde: " + entry.getKey() + "...");
+                                ImageSaver.saveImage(entry.getValue(), algorithmOutput(outputFile, format, entry.getKey()),
+                                        format);
+                                if (entry.getKey() != algorithm) {
+                                    session.recycle(entry.getValue());
+                                }
+                            }
+                            BufferedImage shown = results.get(algorithm);
+                            SwingUtilities.invokeLater(() -> {
+                                paintResultTile(shown, 0, shown.getHeight());
+                                recycleResult(shown);
+                            });
+                            return null;
+                        } else {
+                            ImageStacker stacker = session.createStacker(algorithm);
+                            stacker.setAutoAlign(autoAlign);
+                            stacker.setCompressFrames(compressFrames);
+                            stacker.setOffHeapFrames(offHeapFrames);
+                            stacker.setThreadCount(threadCount);
+                            stacker.setCheckpointDirectory(checkpointDirectory);
+                            stacker.setFocusMeasure(focusMeasure);
+                            stacker.setRegion(region);
+                            stacker.setRegionMargin(regionMargin);
+                            stacker.setTileListener(tileListener);
+                            stacker.setPriorityHeight(priorityHeight);
+                            stacker.setRetainFrames(keepForRetouch);
+                            cancelAction = stacker::cancel;
+                            result = stacker.stackImages(files, callback);
+                            retaining = keepForRetouch ? stacker : null;
+                        }
 
                         publish("Sauvegarde (" + result.getWidth() + "x" + result.getHeight() + ")...");
                         ImageSaver.saveImage(result, outputFile, format);
+                        if (retaining != null) {
+                            StackRetoucher kept = retaining.createRetoucher(result);
+                            SwingUtilities.invokeLater(() -> keepRetoucher(kept, files, outputFile, format));
+                        } else {
+                            // Tiles may still be on screen: recycled once the preview moves on
+                            BufferedImage finished = result;
+                            SwingUtilities.invokeLater(() -> recycleResult(finished));
+                        }
 
+                    } catch (CancellationException ex) {
+                        cancelled = true;
                     } catch (Exception ex) {
                         ex.printStackTrace();
                         SwingUtilities.invokeLater(() ->
@@ -338,8 +1170,15 @@ public class MainFrame extends JFrame {
                 @Override
                 protected void done() {
                     stackButton.setEnabled(true);
-                    progressBar.setValue(100);
+                    cancelButton.setEnabled(false);
+                    cancelAction = null;
                     progressBar.setIndeterminate(false);
+                    if (cancelled) {
+                        progressBar.setValue(0);
+                        statusLabel.setText("Stacking annulé");
+                        return;
+                    }
+                    progressBar.setValue(100);
 
                     long elapsed = System.currentTimeMillis() - startTime;
                     double seconds = elapsed / 1000.0;
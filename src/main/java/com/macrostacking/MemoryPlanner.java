@@ -0,0 +1,168 @@
+package com.macrostacking;
+
+import java.awt.Dimension;
+import java.io.File;
+import java.util.List;
+
+/**
+ * Chooses how a stack will be executed before anything is decoded: frame dimensions come
+ * from a metadata scan ({@link FrameScanner}) or the first file's header, the peak heap of each strategy is estimated for the
+ * selected algorithm, and the first strategy that fits the budget is kept, from the
+ * fastest (everything in memory) to the leanest (slabs of a few frames).
+ */
+public class MemoryPlanner {
+    // Decoded frame (up to 16-bit RGB) and its aligned view
+    private static final int FRAME_BYTES = 8;
+    // Compressed aligned frame, typically 2-3x smaller than 8-bit RGB
+    private static final int COMPRESSED_FRAME_BYTES = 2;
+    // int label + double score + smoothed int label
+    private static final int DEPTH_MAP_BYTES = 16;
+    private static final int RESULT_BYTES = 4;
+    // Running composite: best score + pixel, or four weighted sums
+    private static final int STREAM_SELECTION_BYTES = 12;
+    private static final int STREAM_WEIGHTED_BYTES = 32;
+
+    public enum Strategy {
+        IN_MEMORY("En mémoire"),
+        COMPRESSED("Images compressées en mémoire"),
+        STREAMING("Flux, une image à la fois"),
+        SLABS("Sous-stacks (slabs)");
+
+        private final String displayName;
+
+        Strategy(String displayName) {
+            this.displayName = displayName;
+        }
+
+        @Override
+        public String toString() {
+            return displayName;
+        }
+    }
+
+    public static class Plan {
+        public final Strategy strategy;
+        public final int width;
+        public final int height;
+        public final int frameCount;
+        public final long estimatedBytes;
+        public final long budgetBytes;
+        public final int slabSize;
+
+        Plan(Strategy strategy, Dimension size, int frameCount, long estimatedBytes, long budgetBytes, int slabSize) {
+            this.strategy = strategy;
+            this.width = size.width;
+            this.height = size.height;
+            this.frameCount = frameCount;
+            this.estimatedBytes = estimatedBytes;
+            this.budgetBytes = budgetBytes;
+            this.slabSize = slabSize;
+        }
+
+        public String describe() {
+            String text = frameCount + " images " + width + "x" + height + "\n" +
+                    "Stratégie: " + strategy + "\n" +
+                    "Mémoire estimée: " + (estimatedBytes >> 20) + " Mo sur " + (budgetBytes >> 20) + " Mo disponibles";
+            if (strategy == Strategy.SLABS) {
+                text += "\nSous-stacks de " + slabSize + " images";
+            }
+            return text;
+        }
+    }
+
+    private final StackingAlgorithm algorithm;
+    private long budgetBytes;
+    private int threadCount;
+
+    public MemoryPlanner(StackingAlgorithm algorithm) {
+        this.algorithm = algorithm;
+        this.budgetBytes = (long) (Runtime.getRuntime().maxMemory() * 0.8);
+        this.threadCount = Runtime.getRuntime().availableProcessors();
+    }
+
+    public void setBudgetBytes(long bytes) {
+        this.budgetBytes = bytes;
+    }
+
+    /** Threads that decode in parallel, each holding one frame during loading. */
+    public void setThreadCount(int count) {
+        this.threadCount = Math.max(1, count);
+    }
+
+    public Plan plan(List<File> files) throws Exception {
+        return plan(files, null);
+    }
+
+    /** Plans with a frame size already known from a scan; null reads the first file's header. */
+    public Plan plan(List<File> files, Dimension frameSize) throws Exception {
+        if (files.isEmpty()) {
+            throw new Exception("Aucune image à traiter");
+        }
+
+        Dimension size = frameSize != null ? frameSize : ImageLoader.readDimensions(files.get(0));
+        long pixels = (long) size.width * size.height;
+        int frames = files.size();
+
+        long inMemory = estimateInMemory(pixels, frames);
+        if (inMemory <= budgetBytes) {
+            return new Plan(Strategy.IN_MEMORY, size, frames, inMemory, budgetBytes, 0);
+        }
+
+        long compressed = estimateCompressed(size, frames);
+        if (compressed <= budgetBytes) {
+            return new Plan(Strategy.COMPRESSED, size, frames, compressed, budgetBytes, 0);
+        }
+
+        // The streaming fold skips the depth-map median, so it only stands in for exact algorithms
+        if (algorithm != StackingAlgorithm.DEPTH_MAP) {
+            long streaming = pixels * (3 * FRAME_BYTES + RESULT_BYTES +
+                    (algorithm == StackingAlgorithm.WEIGHTED_AVERAGE ? STREAM_WEIGHTED_BYTES : STREAM_SELECTION_BYTES));
+            if (streaming <= budgetBytes) {
+                return new Plan(Strategy.STREAMING, size, frames, streaming, budgetBytes, 0);
+            }
+        }
+
+        // Smaller slabs need less each but leave more results behind: the smallest is not always the leanest
+        long leanest = Long.MAX_VALUE;
+        for (int slabSize = Math.min(frames - 1, 50); slabSize >= 2; slabSize--) {
+            long slab = estimateCompressed(size, slabSize) + estimateSlabResults(pixels, frames, slabSize);
+            if (slab <= budgetBytes) {
+                return new Plan(Strategy.SLABS, size, frames, slab, budgetBytes, slabSize);
+            }
+            leanest = Math.min(leanest, slab);
+        }
+
+        throw new Exception("Mémoire insuffisante pour " + size.width + "x" + size.height + ": " +
+                (Math.min(leanest, compressed) >> 20) + " Mo nécessaires au minimum, " + (budgetBytes >> 20) +
+                " Mo disponibles (augmentez -Xmx)");
+    }
+
+    private long estimateInMemory(long pixels, int frames) {
+        return pixels * ((long) frames * FRAME_BYTES + workBytes());
+    }
+
+    private long estimateCompressed(Dimension size, int frames) {
+        // Compressed frames plus the reference and one decoded frame per loading thread
+        long pixels = (long) size.width * size.height;
+        int decoded = 1 + Math.min(threadCount, frames);
+        return pixels * ((long) frames * COMPRESSED_FRAME_BYTES + (long) decoded * FRAME_BYTES + workBytes()) +
+                bandCacheBytes(size, frames);
+    }
+
+    /** Decoded-tile cache of the store: each stacking thread's band, with its halo, in every frame. */
+    private long bandCacheBytes(Dimension size, int frames) {
+        int bandRows = Math.min(size.height, ImageStacker.DEFAULT_TILE_HEIGHT + 4 * ImageStacker.GUIDED_RADIUS);
+        long cache = CompressedFrameStore.bandCacheBytes(frames, size.width, bandRows, threadCount);
+        return Math.min(cache, (long) frames * size.width * size.height * RESULT_BYTES);
+    }
+
+    /** Full-size slab results held between levels, with the default overlap. */
+    private long estimateSlabResults(long pixels, int frames, int slabSize) {
+        int overlap = Math.min(SlabStacker.DEFAULT_OVERLAP, slabSize - 1);
+        return pixels * RESULT_BYTES * SlabStacker.retainedResults(frames, slabSize, overlap);
+    }
+
+    private int workBytes() {
+        return RESULT_BYTES + (algorithm == StackingAlgorithm.DEPTH_MAP ? DEPTH_MAP_BYTES : 0);
+    }
+}
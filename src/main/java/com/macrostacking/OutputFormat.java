@@ -2,9 +2,11 @@ package com.macrostacking;
 
 public enum OutputFormat {
     FITS("FITS", ".fits"),
+    FITS_16("FITS 16 bits", ".fits"),
     PNG("PNG", ".png"),
     JPEG("JPEG", ".jpg"),
     TIFF("TIFF", ".tif"),
+    TIFF_PYRAMID("TIFF pyramidal (tuiles)", ".tif"),
     CR2("Canon RAW (CR2)", ".cr2");
     
     private final String displayName;
@@ -0,0 +1,673 @@
+package com.macrostacking;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+public class ParallelImageEncoder {
+    private static final int DEFAULT_STRIP_ROWS = 64;
+    private static final int DEFAULT_TILE_SIZE = 256;
+    // Classic TIFF stores offsets and byte counts as 32-bit LONGs
+    private static final long MAX_TIFF_OFFSET = 0xFFFFFFFFL;
+    private static final int TIFF_IFD_ENTRIES = 11;
+
+    private final int threadCount;
+    private int stripRows = DEFAULT_STRIP_ROWS;
+    private int tileSize = DEFAULT_TILE_SIZE;
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+    @FunctionalInterface
+    private interface StripEncoder {
+        byte[] encode(int strip) throws Exception;
+    }
+
+    @FunctionalInterface
+    private interface StripSink {
+        void write(int strip, byte[] data) throws IOException;
+    }
+
+    public ParallelImageEncoder(int threadCount) {
+        this.threadCount = Math.max(1, threadCount);
+    }
+
+    public void setStripRows(int rows) {
+        this.stripRows = Math.max(1, rows);
+    }
+
+    /** Tile side of pyramidal TIFFs, rounded up to a multiple of 16 as TIFF requires. */
+    public void setTileSize(int size) {
+        this.tileSize = Math.max(16, (size + 15) / 16 * 16);
+    }
+
+    public void setCompressionLevel(int level) {
+        this.compressionLevel = level;
+    }
+
+    /**
+     * Writes a striped, Deflate-compressed RGB TIFF.
+     * Strips are compressed in parallel and appended to the file in order as they complete;
+     * the IFD is written last and its offset patched into the header.
+     */
+    public void writeTiff(BufferedImage image, File file) throws Exception {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int bytesPerSample = is16Bit(image) ? 2 : 1;
+        int stripCount = (height + stripRows - 1) / stripRows;
+        long[] stripOffsets = new long[stripCount];
+        long[] stripByteCounts = new long[stripCount];
+
+        try (FileChannel channel = openForWrite(file)) {
+            ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+            header.put((byte) 'I').put((byte) 'I').putShort((short) 42).putInt(0);
+            writeFully(channel, header.flip());
+
+            encodeStrips(stripCount, strip -> {
+                int startY = strip * stripRows;
+                int endY = Math.min(startY + stripRows, height);
+                byte[] raw = new byte[(endY - startY) * width * 3 * bytesPerSample];
+                int[] rgbRow = new int[width];
+                int[] samples = new int[width * 3];
+                int rowBytes = width * 3 * bytesPerSample;
+
+                for (int y = startY; y < endY; y++) {
+                    readRow(image, y, bytesPerSample, rgbRow, samples);
+                    if (bytesPerSample == 1) {
+                        applyHorizontalPredictor(samples);
+                    }
+                    int offset = (y - startY) * rowBytes;
+                    for (int i = 0; i < samples.length; i++) {
+                        if (bytesPerSample == 2) {
+                            raw[offset + i * 2] = (byte) samples[i];
+                            raw[offset + i * 2 + 1] = (byte) (samples[i] >> 8);
+                        } else {
+                            raw[offset + i] = (byte) samples[i];
+                        }
+                    }
+                }
+                return deflate(raw, false, false);
+            }, (strip, data) -> {
+                stripOffsets[strip] = channel.position();
+                stripByteCounts[strip] = data.length;
+                checkTiffOffset(stripOffsets[strip] + data.length);
+                writeFully(channel, ByteBuffer.wrap(data));
+            });
+
+            long ifdOffset = channel.position();
+            if ((ifdOffset & 1) != 0) {
+                writeFully(channel, ByteBuffer.allocate(1));
+                ifdOffset++;
+            }
+            checkTiffOffset(ifdOffset + tiffIfdSize(stripCount));
+            writeFully(channel, buildTiffIfd(ifdOffset, width, height, bytesPerSample * 8,
+                    stripOffsets, stripByteCounts));
+
+            ByteBuffer patch = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt((int) ifdOffset);
+            channel.write(patch.flip(), 4);
+        }
+    }
+
+    /** Fails before anything is written past the 4 GB a classic TIFF can address. */
+    private static void checkTiffOffset(long end) throws IOException {
+        if (end > MAX_TIFF_OFFSET) {
+            throw new IOException("Image trop grande pour un TIFF (plus de 4 Go compressés)");
+        }
+    }
+
+    /** The striped IFD with its bits-per-sample, offsets and byte-count arrays. */
+    private static long tiffIfdSize(int stripCount) {
+        return 2 + TIFF_IFD_ENTRIES * 12 + 4 + 6 + 8L * stripCount;
+    }
+
+    private ByteBuffer buildTiffIfd(long ifdOffset, int width, int height, int bitsPerSample,
+                                    long[] stripOffsets, long[] stripByteCounts) {
+        int entryCount = TIFF_IFD_ENTRIES;
+        int ifdSize = 2 + entryCount * 12 + 4;
+        int stripCount = stripOffsets.length;
+
+        long bitsOffset = ifdOffset + ifdSize;
+        long offsetsOffset = bitsOffset + 6;
+        long countsOffset = offsetsOffset + 4L * stripCount;
+
+        ByteBuffer ifd = ByteBuffer.allocate((int) tiffIfdSize(stripCount)).order(ByteOrder.LITTLE_ENDIAN);
+        ifd.putShort((short) entryCount);
+        putTiffEntry(ifd, 256, 4, 1, width);
+        putTiffEntry(ifd, 257, 4, 1, height);
+        putTiffEntry(ifd, 258, 3, 3, bitsOffset);
+        putTiffEntry(ifd, 259, 3, 1, 8);                    // Adobe Deflate
+        putTiffEntry(ifd, 262, 3, 1, 2);                    // RGB
+        putTiffEntry(ifd, 273, 4, stripCount, stripCount == 1 ? stripOffsets[0] : offsetsOffset);
+        putTiffEntry(ifd, 277, 3, 1, 3);
+        putTiffEntry(ifd, 278, 4, 1, stripRows);
+        putTiffEntry(ifd, 279, 4, stripCount, stripCount == 1 ? stripByteCounts[0] : countsOffset);
+        putTiffEntry(ifd, 284, 3, 1, 1);                    // Chunky
+        // Horizontal differencing for 8-bit only: several readers (ImageIO included) reject it on 16-bit data
+        putTiffEntry(ifd, 317, 3, 1, bitsPerSample == 8 ? 2 : 1);
+        ifd.putInt(0);
+
+        for (int i = 0; i < 3; i++) {
+            ifd.putShort((short) bitsPerSample);
+        }
+        for (long offset : stripOffsets) {
+            ifd.putInt((int) offset);
+        }
+        for (long count : stripByteCounts) {
+            ifd.putInt((int) count);
+        }
+        return ifd.flip();
+    }
+
+    private void putTiffEntry(ByteBuffer ifd, int tag, int type, int count, long value) {
+        ifd.putShort((short) tag);
+        ifd.putShort((short) type);
+        ifd.putInt(count);
+        if (type == 3 && count == 1) {
+            ifd.putShort((short) value);
+            ifd.putShort((short) 0);
+        } else {
+            ifd.putInt((int) value);
+        }
+    }
+
+    /**
+     * Writes a tiled, Deflate-compressed RGB TIFF with its reduced resolutions: the full
+     * image in the first IFD, each half-size level down to a single tile in a SubIFD, as
+     * pyramid-aware viewers expect. Every task reads one row of tiles, compresses them and
+     * box-filters the same rows into the next level, so levels are built in parallel while
+     * the one above streams to the file. IFDs are written last.
+     */
+    public void writePyramidTiff(BufferedImage image, File file) throws Exception {
+        int bytesPerSample = is16Bit(image) ? 2 : 1;
+        // Only the sizes of written levels are kept: each level is dropped once the next is encoded
+        List<int[]> levels = new ArrayList<>();
+        List<long[]> offsets = new ArrayList<>();
+        List<long[]> byteCounts = new ArrayList<>();
+
+        try (FileChannel channel = openForWrite(file)) {
+            ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+            header.put((byte) 'I').put((byte) 'I').putShort((short) 42).putInt(0);
+            writeFully(channel, header.flip());
+
+            BufferedImage level = image;
+            while (level != null) {
+                BufferedImage next = level.getWidth() > tileSize || level.getHeight() > tileSize
+                        ? createLevel(level, bytesPerSample) : null;
+                int tileCount = tilesAlong(level.getWidth()) * tilesAlong(level.getHeight());
+                long[] tileOffsets = new long[tileCount];
+                long[] tileByteCounts = new long[tileCount];
+                writeTileLevel(channel, level, next, bytesPerSample, tileOffsets, tileByteCounts);
+
+                levels.add(new int[]{level.getWidth(), level.getHeight()});
+                offsets.add(tileOffsets);
+                byteCounts.add(tileByteCounts);
+                level = next;
+            }
+
+            long ifdOffset = channel.position();
+            if ((ifdOffset & 1) != 0) {
+                writeFully(channel, ByteBuffer.allocate(1));
+                ifdOffset++;
+            }
+            // IFD sizes are even, so the SubIFDs that follow the first one stay word-aligned
+            long[] subIfdOffsets = new long[levels.size() - 1];
+            long position = ifdOffset + tiledIfdSize(offsets.get(0).length, subIfdOffsets.length);
+            for (int i = 1; i < levels.size(); i++) {
+                subIfdOffsets[i - 1] = position;
+                position += tiledIfdSize(offsets.get(i).length, 0);
+            }
+            checkTiffOffset(position);
+
+            for (int i = 0; i < levels.size(); i++) {
+                long offset = i == 0 ? ifdOffset : subIfdOffsets[i - 1];
+                writeFully(channel, buildTiledIfd(offset, levels.get(i), bytesPerSample * 8, i > 0,
+                        offsets.get(i), byteCounts.get(i), i == 0 ? subIfdOffsets : new long[0]));
+            }
+
+            ByteBuffer patch = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt((int) ifdOffset);
+            channel.write(patch.flip(), 4);
+        }
+    }
+
+    /**
+     * Compresses one level tile row by tile row. When {@code next} is given, each row pair
+     * is averaged into it; tile rows hold an even number of rows, so tasks never share an
+     * output row.
+     */
+    private void writeTileLevel(FileChannel channel, BufferedImage level, BufferedImage next, int bytesPerSample,
+                                long[] tileOffsets, long[] tileByteCounts) throws Exception {
+        int width = level.getWidth();
+        int height = level.getHeight();
+        int tilesAcross = tilesAlong(width);
+        int tileRowBytes = tileSize * 3 * bytesPerSample;
+
+        encodeStrips(tilesAlong(height), band -> {
+            int startY = band * tileSize;
+            int endY = Math.min(startY + tileSize, height);
+            // Full tiles: the padding past the image edge stays zero
+            byte[][] tiles = new byte[tilesAcross][tileSize * tileRowBytes];
+            int[] rgbRow = new int[width];
+            int[] samples = new int[width * 3];
+            int[] upper = next != null ? new int[width * 3] : null;
+            int[] reduced = next != null ? new int[next.getWidth() * 3] : null;
+            int[] reducedRow = next != null ? new int[next.getWidth()] : null;
+
+            for (int y = startY; y < endY; y++) {
+                readRow(level, y, bytesPerSample, rgbRow, samples);
+
+                for (int tile = 0; tile < tilesAcross; tile++) {
+                    int start = tile * tileSize * 3;
+                    int end = Math.min(start + tileSize * 3, samples.length);
+                    int offset = (y - startY) * tileRowBytes;
+                    for (int i = start; i < end; i++) {
+                        int value = samples[i];
+                        if (bytesPerSample == 2) {
+                            tiles[tile][offset++] = (byte) value;
+                            tiles[tile][offset++] = (byte) (value >> 8);
+                        } else {
+                            // Horizontal predictor, restarted at each tile's left edge
+                            tiles[tile][offset++] = (byte) (i - start >= 3 ? value - samples[i - 3] : value);
+                        }
+                    }
+                }
+
+                if (next != null) {
+                    if (((y - startY) & 1) == 0) {
+                        System.arraycopy(samples, 0, upper, 0, samples.length);
+                    }
+                    // An odd last row is averaged with itself
+                    if (((y - startY) & 1) == 1 || y == height - 1) {
+                        downsampleRows(upper, samples, width, reduced);
+                        writeRow(next, y / 2, bytesPerSample, reduced, reducedRow);
+                    }
+                }
+            }
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            for (int tile = 0; tile < tilesAcross; tile++) {
+                byte[] data = deflate(tiles[tile], false, false);
+                tileByteCounts[band * tilesAcross + tile] = data.length;
+                out.write(data);
+            }
+            return out.toByteArray();
+        }, (band, data) -> {
+            long position = channel.position();
+            for (int tile = 0; tile < tilesAcross; tile++) {
+                int index = band * tilesAcross + tile;
+                tileOffsets[index] = position;
+                position += tileByteCounts[index];
+            }
+            checkTiffOffset(position);
+            writeFully(channel, ByteBuffer.wrap(data));
+        });
+    }
+
+    private int tilesAlong(int length) {
+        return (length + tileSize - 1) / tileSize;
+    }
+
+    private static int tiledIfdSize(int tileCount, int subIfdCount) {
+        int entryCount = subIfdCount > 0 ? 14 : 13;
+        return 2 + entryCount * 12 + 4 + 6 + (tileCount > 1 ? 8 * tileCount : 0)
+                + (subIfdCount > 1 ? 4 * subIfdCount : 0);
+    }
+
+    private ByteBuffer buildTiledIfd(long ifdOffset, int[] size, int bitsPerSample, boolean reduced,
+                                     long[] tileOffsets, long[] tileByteCounts, long[] subIfdOffsets) {
+        int tileCount = tileOffsets.length;
+        int subIfdCount = subIfdOffsets.length;
+        int entryCount = subIfdCount > 0 ? 14 : 13;
+
+        long bitsOffset = ifdOffset + 2 + entryCount * 12 + 4;
+        long offsetsOffset = bitsOffset + 6;
+        long countsOffset = offsetsOffset + (tileCount > 1 ? 4L * tileCount : 0);
+        long subIfdsOffset = countsOffset + (tileCount > 1 ? 4L * tileCount : 0);
+
+        ByteBuffer ifd = ByteBuffer.allocate(tiledIfdSize(tileCount, subIfdCount)).order(ByteOrder.LITTLE_ENDIAN);
+        ifd.putShort((short) entryCount);
+        putTiffEntry(ifd, 254, 4, 1, reduced ? 1 : 0);     // Reduced-resolution image
+        putTiffEntry(ifd, 256, 4, 1, size[0]);
+        putTiffEntry(ifd, 257, 4, 1, size[1]);
+        putTiffEntry(ifd, 258, 3, 3, bitsOffset);
+        putTiffEntry(ifd, 259, 3, 1, 8);                    // Adobe Deflate
+        putTiffEntry(ifd, 262, 3, 1, 2);                    // RGB
+        putTiffEntry(ifd, 277, 3, 1, 3);
+        putTiffEntry(ifd, 284, 3, 1, 1);                    // Chunky
+        putTiffEntry(ifd, 317, 3, 1, bitsPerSample == 8 ? 2 : 1);
+        putTiffEntry(ifd, 322, 4, 1, tileSize);
+        putTiffEntry(ifd, 323, 4, 1, tileSize);
+        putTiffEntry(ifd, 324, 4, tileCount, tileCount == 1 ? tileOffsets[0] : offsetsOffset);
+        putTiffEntry(ifd, 325, 4, tileCount, tileCount == 1 ? tileByteCounts[0] : countsOffset);
+        if (subIfdCount > 0) {
+            putTiffEntry(ifd, 330, 4, subIfdCount, subIfdCount == 1 ? subIfdOffsets[0] : subIfdsOffset);
+        }
+        ifd.putInt(0);
+
+        for (int i = 0; i < 3; i++) {
+            ifd.putShort((short) bitsPerSample);
+        }
+        if (tileCount > 1) {
+            for (long offset : tileOffsets) {
+                ifd.putInt((int) offset);
+            }
+            for (long count : tileByteCounts) {
+                ifd.putInt((int) count);
+            }
+        }
+        if (subIfdCount > 1) {
+            for (long offset : subIfdOffsets) {
+                ifd.putInt((int) offset);
+            }
+        }
+        return ifd.flip();
+    }
+
+    /** Half-size level with the image's sample layout (8-bit levels are plain RGB). */
+    private static BufferedImage createLevel(BufferedImage image, int bytesPerSample) {
+        int width = (image.getWidth() + 1) / 2;
+        int height = (image.getHeight() + 1) / 2;
+        if (bytesPerSample == 2) {
+            return new BufferedImage(image.getColorModel(), image.getRaster().createCompatibleWritableRaster(width, height),
+                    image.isAlphaPremultiplied(), null);
+        }
+        return new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    }
+
+    /** 2x2 box filter over two interleaved RGB rows; an odd last column is averaged with itself. */
+    private static void downsampleRows(int[] upper, int[] lower, int width, int[] out) {
+        int outWidth = out.length / 3;
+        for (int x = 0; x < outWidth; x++) {
+            int left = 2 * x * 3;
+            int right = Math.min(2 * x + 1, width - 1) * 3;
+            for (int c = 0; c < 3; c++) {
+                out[x * 3 + c] = (upper[left + c] + upper[right + c] + lower[left + c] + lower[right + c] + 2) >> 2;
+            }
+        }
+    }
+
+    /** Inverse of {@link #readRow}. */
+    private static void writeRow(BufferedImage image, int y, int bytesPerSample, int[] samples, int[] rgbRow) {
+        int width = image.getWidth();
+        if (bytesPerSample == 2) {
+            WritableRaster raster = image.getRaster();
+            for (int band = 0; band < 3; band++) {
+                for (int x = 0; x < width; x++) {
+                    rgbRow[x] = samples[x * 3 + band];
+                }
+                raster.setSamples(0, y, width, 1, band, rgbRow);
+            }
+            return;
+        }
+
+        for (int x = 0; x < width; x++) {
+            rgbRow[x] = (samples[x * 3] << 16) | (samples[x * 3 + 1] << 8) | samples[x * 3 + 2];
+        }
+        image.setRGB(0, y, width, 1, rgbRow, 0, width);
+    }
+
+    /**
+     * Writes an RGB PNG whose IDAT stream is built from independently compressed strips
+     * (raw Deflate blocks terminated by a sync flush), one IDAT chunk per strip.
+     */
+    public void writePng(BufferedImage image, File file) throws Exception {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int bytesPerSample = is16Bit(image) ? 2 : 1;
+        int bytesPerPixel = 3 * bytesPerSample;
+        int stripCount = (height + stripRows - 1) / stripRows;
+        long[] adlers = new long[stripCount];
+        long[] lengths = new long[stripCount];
+
+        try (FileChannel channel = openForWrite(file)) {
+            writeFully(channel, ByteBuffer.wrap(new byte[]{
+                    (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'}));
+
+            ByteBuffer ihdr = ByteBuffer.allocate(13);
+            ihdr.putInt(width).putInt(height);
+            ihdr.put((byte) (bytesPerSample * 8)).put((byte) 2).put((byte) 0).put((byte) 0).put((byte) 0);
+            writePngChunk(channel, "IHDR", ihdr.array());
+
+            encodeStrips(stripCount, strip -> {
+                int startY = strip * stripRows;
+                int endY = Math.min(startY + stripRows, height);
+                int rowBytes = width * bytesPerPixel;
+                byte[] filtered = new byte[(endY - startY) * (rowBytes + 1)];
+                byte[] previous = new byte[rowBytes];
+                byte[] current = new byte[rowBytes];
+                int[] rgbRow = new int[width];
+                int[] samples = new int[width * 3];
+
+                if (startY > 0) {
+                    readRow(image, startY - 1, bytesPerSample, rgbRow, samples);
+                    toBigEndianBytes(samples, bytesPerSample, previous);
+                }
+
+                for (int y = startY; y < endY; y++) {
+                    readRow(image, y, bytesPerSample, rgbRow, samples);
+                    toBigEndianBytes(samples, bytesPerSample, current);
+                    filterPngRow(current, previous, bytesPerPixel, filtered, (y - startY) * (rowBytes + 1));
+                    byte[] swap = previous;
+                    previous = current;
+                    current = swap;
+                }
+
+                Adler32 adler = new Adler32();
+                adler.update(filtered);
+                adlers[strip] = adler.getValue();
+                lengths[strip] = filtered.length;
+                return deflate(filtered, true, strip == stripCount - 1);
+            }, (strip, data) -> {
+                if (strip == 0) {
+                    byte[] withHeader = new byte[data.length + 2];
+                    withHeader[0] = 0x78;
+                    withHeader[1] = 0x01;
+                    System.arraycopy(data, 0, withHeader, 2, data.length);
+                    data = withHeader;
+                }
+                writePngChunk(channel, "IDAT", data);
+            });
+
+            long adler = adlers[0];
+            for (int i = 1; i < stripCount; i++) {
+                adler = adler32Combine(adler, adlers[i], lengths[i]);
+            }
+            writePngChunk(channel, "IDAT", ByteBuffer.allocate(4).putInt((int) adler).array());
+            writePngChunk(channel, "IEND", new byte[0]);
+        }
+    }
+
+    private void filterPngRow(byte[] row, byte[] prior, int bpp, byte[] out, int offset) {
+        int length = row.length;
+        long sumSub = 0, sumUp = 0, sumPaeth = 0;
+
+        for (int i = 0; i < length; i++) {
+            int raw = row[i] & 0xFF;
+            int left = i >= bpp ? row[i - bpp] & 0xFF : 0;
+            int up = prior[i] & 0xFF;
+            int upLeft = i >= bpp ? prior[i - bpp] & 0xFF : 0;
+            sumSub += Math.abs((byte) (raw - left));
+            sumUp += Math.abs((byte) (raw - up));
+            sumPaeth += Math.abs((byte) (raw - paeth(left, up, upLeft)));
+        }
+
+        int filter = 1;
+        if (sumUp < sumSub && sumUp <= sumPaeth) {
+            filter = 2;
+        } else if (sumPaeth < sumSub && sumPaeth < sumUp) {
+            filter = 4;
+        }
+
+        out[offset] = (byte) filter;
+        for (int i = 0; i < length; i++) {
+            int raw = row[i] & 0xFF;
+            int left = i >= bpp ? row[i - bpp] & 0xFF : 0;
+            int up = prior[i] & 0xFF;
+            int upLeft = i >= bpp ? prior[i - bpp] & 0xFF : 0;
+            int predicted = switch (filter) {
+                case 1 -> left;
+                case 2 -> up;
+                default -> paeth(left, up, upLeft);
+            };
+            out[offset + 1 + i] = (byte) (raw - predicted);
+        }
+    }
+
+    private static int paeth(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) return a;
+        if (pb <= pc) return b;
+        return c;
+    }
+
+    private void writePngChunk(FileChannel channel, String type, byte[] data) throws IOException {
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data);
+
+        ByteBuffer head = ByteBuffer.allocate(8).putInt(data.length).put(typeBytes);
+        writeFully(channel, head.flip());
+        writeFully(channel, ByteBuffer.wrap(data));
+        writeFully(channel, ByteBuffer.allocate(4).putInt((int) crc.getValue()).flip());
+    }
+
+    private static long adler32Combine(long adler1, long adler2, long length2) {
+        final long base = 65521;
+        long rem = length2 % base;
+        long sum1 = adler1 & 0xFFFF;
+        long sum2 = (rem * sum1) % base;
+        sum1 += (adler2 & 0xFFFF) + base - 1;
+        sum2 += ((adler1 >> 16) & 0xFFFF) + ((adler2 >> 16) & 0xFFFF) + base - rem;
+        if (sum1 >= base) sum1 -= base;
+        if (sum1 >= base) sum1 -= base;
+        if (sum2 >= (base << 1)) sum2 -= (base << 1);
+        if (sum2 >= base) sum2 -= base;
+        return sum1 | (sum2 << 16);
+    }
+
+    /**
+     * Compresses strips on the pool and hands them to the sink strictly in order.
+     * At most two strips per thread are in flight, which bounds the encoder's memory.
+     */
+    private void encodeStrips(int stripCount, StripEncoder encoder, StripSink sink) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        Deque<Future<byte[]>> pending = new ArrayDeque<>();
+        int maxInFlight = threadCount * 2;
+        int nextToSubmit = 0;
+
+        try {
+            for (int strip = 0; strip < stripCount; strip++) {
+                while (nextToSubmit < stripCount && pending.size() < maxInFlight) {
+                    final int index = nextToSubmit++;
+                    pending.addLast(executor.submit(() -> encoder.encode(index)));
+                }
+                sink.write(strip, pending.removeFirst().get());
+            }
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception cause ? cause : e;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private byte[] deflate(byte[] data, boolean raw, boolean last) {
+        Deflater deflater = new Deflater(compressionLevel, raw);
+        try {
+            deflater.setInput(data);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, data.length / 2));
+            byte[] buffer = new byte[64 * 1024];
+
+            if (!raw || last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    int n = deflater.deflate(buffer);
+                    out.write(buffer, 0, n);
+                }
+            } else {
+                int n;
+                do {
+                    n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                    out.write(buffer, 0, n);
+                } while (n == buffer.length);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static boolean is16Bit(BufferedImage image) {
+        Raster raster = image.getRaster();
+        return raster.getNumBands() >= 3 && raster.getSampleModel().getSampleSize(0) == 16;
+    }
+
+    /** Reads one row as interleaved R, G, B samples at the output bit depth. */
+    private static void readRow(BufferedImage image, int y, int bytesPerSample, int[] rgbRow, int[] samples) {
+        int width = image.getWidth();
+        if (bytesPerSample == 2) {
+            Raster raster = image.getRaster();
+            for (int band = 0; band < 3; band++) {
+                raster.getSamples(0, y, width, 1, band, rgbRow);
+                for (int x = 0; x < width; x++) {
+                    samples[x * 3 + band] = rgbRow[x];
+                }
+            }
+            return;
+        }
+
+        image.getRGB(0, y, width, 1, rgbRow, 0, width);
+        for (int x = 0; x < width; x++) {
+            int rgb = rgbRow[x];
+            samples[x * 3] = (rgb >> 16) & 0xFF;
+            samples[x * 3 + 1] = (rgb >> 8) & 0xFF;
+            samples[x * 3 + 2] = rgb & 0xFF;
+        }
+    }
+
+    private static void applyHorizontalPredictor(int[] samples) {
+        for (int i = samples.length - 1; i >= 3; i--) {
+            samples[i] -= samples[i - 3];
+        }
+    }
+
+    private static void toBigEndianBytes(int[] samples, int bytesPerSample, byte[] out) {
+        if (bytesPerSample == 2) {
+            for (int i = 0; i < samples.length; i++) {
+                out[i * 2] = (byte) (samples[i] >> 8);
+                out[i * 2 + 1] = (byte) samples[i];
+            }
+        } else {
+            for (int i = 0; i < samples.length; i++) {
+                out[i] = (byte) samples[i];
+            }
+        }
+    }
+
+    private static FileChannel openForWrite(File file) throws IOException {
+        return FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
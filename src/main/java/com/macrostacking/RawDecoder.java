@@ -0,0 +1,976 @@
+package com.macrostacking;
+
+import java.awt.Dimension;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * In-process decoder for Bayer DNG files (uncompressed or lossless JPEG, strips or
+ * tiles) and lossless-JPEG Canon CR2 files. The TIFF structure is parsed directly,
+ * tiles are decoded in parallel and a bilinear demosaic writes straight into planar
+ * 16-bit buffers. The output matches what {@code dcraw -w -o 1 -4} gives: linear
+ * 16-bit sRGB at the camera white balance, upright. Anything else (other makes, sRAW,
+ * X-Trans, lossy DNG) is left to dcraw: {@link #decode} then returns null. CR2 files
+ * carry no colour matrix, so only their mosaic is read here; their colour images still
+ * come from dcraw, which has a matrix for each Canon model.
+ */
+public class RawDecoder {
+    private static final int TAG_NEW_SUBFILE_TYPE = 254;
+    private static final int TAG_IMAGE_WIDTH = 256;
+    private static final int TAG_IMAGE_LENGTH = 257;
+    private static final int TAG_BITS_PER_SAMPLE = 258;
+    private static final int TAG_COMPRESSION = 259;
+    private static final int TAG_PHOTOMETRIC = 262;
+    private static final int TAG_STRIP_OFFSETS = 273;
+    private static final int TAG_ORIENTATION = 274;
+    private static final int TAG_SAMPLES_PER_PIXEL = 277;
+    private static final int TAG_ROWS_PER_STRIP = 278;
+    private static final int TAG_STRIP_BYTE_COUNTS = 279;
+    private static final int TAG_TILE_WIDTH = 322;
+    private static final int TAG_TILE_LENGTH = 323;
+    private static final int TAG_TILE_OFFSETS = 324;
+    private static final int TAG_TILE_BYTE_COUNTS = 325;
+    private static final int TAG_SUB_IFDS = 330;
+    private static final int TAG_CFA_REPEAT_PATTERN_DIM = 33421;
+    private static final int TAG_CFA_PATTERN = 33422;
+    private static final int TAG_EXIF_IFD = 34665;
+    private static final int TAG_MAKER_NOTE = 37500;
+    private static final int TAG_DNG_VERSION = 50706;
+    private static final int TAG_LINEARIZATION_TABLE = 50712;
+    private static final int TAG_BLACK_LEVEL_REPEAT_DIM = 50713;
+    private static final int TAG_BLACK_LEVEL = 50714;
+    private static final int TAG_WHITE_LEVEL = 50717;
+    private static final int TAG_COLOR_MATRIX_1 = 50721;
+    private static final int TAG_COLOR_MATRIX_2 = 50722;
+    private static final int TAG_AS_SHOT_NEUTRAL = 50728;
+    private static final int TAG_CR2_SLICES = 50752;
+    private static final int TAG_CALIBRATION_ILLUMINANT_1 = 50778;
+    private static final int TAG_ACTIVE_AREA = 50829;
+    private static final int CANON_SENSOR_INFO = 0x00E0;
+    private static final int CANON_COLOR_DATA = 0x4001;
+
+    private static final int PHOTOMETRIC_CFA = 32803;
+    private static final int ILLUMINANT_D65 = 21;
+    private static final double[][] XYZ_RGB = {
+            {0.412453, 0.357580, 0.180423},
+            {0.212671, 0.715160, 0.072169},
+            {0.019334, 0.119193, 0.950227}};
+    // Rows per parallel band of the scaling and demosaic passes
+    private static final int BAND_ROWS = 64;
+
+    /** Everything needed to develop the mosaic, gathered from the TIFF structure. */
+    private static class Layout {
+        ByteBuffer data;
+        int rawWidth;
+        int rawHeight;
+        // Active area inside the raw frame
+        int top;
+        int left;
+        int width;
+        int height;
+        // Colour (0 R, 1 G, 2 B) of each 2x2 cell, relative to the active area
+        int[] cfa = new int[4];
+        double[] black = new double[4];
+        int white;
+        int[] linearization;
+        double[] cameraMultipliers = {1, 1, 1};
+        double[][] rgbCam;
+        int orientation = 1;
+        Ifd raw;
+        boolean cr2;
+        int[] slices;
+    }
+
+    /**
+     * Bayer samples of the active area, black-subtracted and white-balanced but not
+     * demosaiced, as {@link #readMosaic} gives them; {@link #develop} makes the image.
+     */
+    public static class Mosaic {
+        public final int width;
+        public final int height;
+        // Sample (x, y) is data[origin + y * stride + x]
+        final short[] data;
+        final int stride;
+        final int origin;
+        // Colour (0 R, 1 G, 2 B) of each 2x2 cell
+        final int[] cfa;
+        // Camera RGB to linear sRGB, null to keep the camera's primaries
+        final double[][] rgbCam;
+        final int orientation;
+
+        Mosaic(int width, int height, short[] data, int stride, int origin, int[] cfa, double[][] rgbCam,
+               int orientation) {
+            this.width = width;
+            this.height = height;
+            this.data = data;
+            this.stride = stride;
+            this.origin = origin;
+            this.cfa = cfa;
+            this.rgbCam = rgbCam;
+            this.orientation = orientation;
+        }
+
+        int sample(int x, int y) {
+            return data[origin + y * stride + x] & 0xFFFF;
+        }
+
+        /** Same size, pattern, colours and orientation over other samples (stride = width). */
+        Mosaic withData(short[] samples) {
+            return new Mosaic(width, height, samples, width, 0, cfa, rgbCam, orientation);
+        }
+
+        /** The samples of {@code area}; its corner must be even so that the CFA phase is kept. */
+        Mosaic crop(Rectangle area) {
+            return new Mosaic(area.width, area.height, data, stride, origin + area.y * stride + area.x, cfa, rgbCam,
+                    orientation);
+        }
+
+        /** True when the other mosaic can be combined with this one sample for sample. */
+        boolean isCompatible(Mosaic other) {
+            return width == other.width && height == other.height && Arrays.equals(cfa, other.cfa);
+        }
+    }
+
+    private int threadCount = Runtime.getRuntime().availableProcessors();
+
+    public void setThreadCount(int count) {
+        this.threadCount = Math.max(1, count);
+    }
+
+    /** Decodes with the default thread count; null when the file is not a supported RAW. */
+    public static BufferedImage decode(File file) throws Exception {
+        return new RawDecoder().read(file);
+    }
+
+    /** Output size, upright, from the TIFF structure alone; null when not supported. */
+    public static Dimension readDimensions(File file) throws Exception {
+        Layout layout = readLayout(map(file));
+        if (layout == null || layout.rgbCam == null) {
+            return null;
+        }
+        return layout.orientation >= 5 ? new Dimension(layout.height, layout.width)
+                : new Dimension(layout.width, layout.height);
+    }
+
+    public BufferedImage read(File file) throws Exception {
+        Mosaic mosaic = readDevelopable(file);
+        return mosaic != null ? develop(mosaic) : null;
+    }
+
+    /**
+     * Only {@code region} of the upright image, clipped to it. The whole mosaic is still
+     * decoded, but the demosaic and colour conversion, most of the work, run over the
+     * region (plus two samples around it for the interpolation) only.
+     */
+    public BufferedImage read(File file, Rectangle region) throws Exception {
+        Mosaic mosaic = readDevelopable(file);
+        if (mosaic == null) {
+            return null;
+        }
+        int orientation = mosaic.orientation;
+        boolean swap = orientation >= 5;
+        int uprightWidth = swap ? mosaic.height : mosaic.width;
+        int uprightHeight = swap ? mosaic.width : mosaic.height;
+        Rectangle wanted = region.intersection(new Rectangle(0, 0, uprightWidth, uprightHeight));
+        if (wanted.isEmpty()) {
+            throw new Exception("Zone en dehors de l'image " + file.getName());
+        }
+
+        // 6 and 8 undo each other, every other orientation is its own inverse
+        int inverse = orientation == 6 ? 8 : orientation == 8 ? 6 : orientation;
+        Rectangle sensor = orient(inverse, wanted, uprightWidth, uprightHeight);
+        int x0 = Math.max(0, sensor.x - 2) & ~1;
+        int y0 = Math.max(0, sensor.y - 2) & ~1;
+        int x1 = Math.min(mosaic.width, sensor.x + sensor.width + 2);
+        int y1 = Math.min(mosaic.height, sensor.y + sensor.height + 2);
+        Rectangle area = new Rectangle(x0, y0, x1 - x0, y1 - y0);
+
+        BufferedImage developed = develop(mosaic.crop(area));
+        Rectangle placed = orient(orientation, area, mosaic.width, mosaic.height);
+        return ImageLoader.crop(developed, new Rectangle(wanted.x - placed.x, wanted.y - placed.y,
+                wanted.width, wanted.height));
+    }
+
+    /** Scaled Bayer samples, not demosaiced; null when the file is not a supported RAW. */
+    public Mosaic readMosaic(File file) throws Exception {
+        Layout layout = readLayout(map(file));
+        return layout != null ? readMosaic(layout) : null;
+    }
+
+    /** The mosaic, only when it can be developed to sRGB; null leaves the file to dcraw. */
+    private Mosaic readDevelopable(File file) throws Exception {
+        Layout layout = readLayout(map(file));
+        return layout != null && layout.rgbCam != null ? readMosaic(layout) : null;
+    }
+
+    private Mosaic readMosaic(Layout layout) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        try {
+            short[] data = new short[layout.rawWidth * layout.rawHeight];
+            if (layout.cr2) {
+                decodeCr2(layout, data);
+                calibrateCanon(layout, data);
+            } else {
+                decodeDng(layout, data, executor);
+            }
+            scale(layout, data, executor);
+            return new Mosaic(layout.width, layout.height, data, layout.rawWidth,
+                    layout.top * layout.rawWidth + layout.left, layout.cfa, layout.rgbCam, layout.orientation);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception cause ? cause : e;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /** Demosaics, converts to sRGB and turns upright; the mosaic is left untouched. */
+    public BufferedImage develop(Mosaic mosaic) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        try {
+            return develop(mosaic, executor);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception cause ? cause : e;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static ByteBuffer map(File file) throws Exception {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() < 16 || channel.size() > Integer.MAX_VALUE) {
+                throw new Exception("Fichier RAW invalide: " + file.getName());
+            }
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    // ---- TIFF structure ----
+
+    private static Layout readLayout(ByteBuffer data) throws Exception {
+        int b0 = data.get(0) & 0xFF;
+        int b1 = data.get(1) & 0xFF;
+        if (b0 == 'I' && b1 == 'I') {
+            data.order(ByteOrder.LITTLE_ENDIAN);
+        } else if (b0 == 'M' && b1 == 'M') {
+            data.order(ByteOrder.BIG_ENDIAN);
+        } else {
+            return null;
+        }
+        if (data.getShort(2) != 42) {
+            return null;
+        }
+
+        List<Ifd> chain = new ArrayList<>();
+        int offset = data.getInt(4);
+        while (offset > 0 && offset < data.limit() - 2 && chain.size() < 16) {
+            Ifd ifd = new Ifd(data, offset);
+            chain.add(ifd);
+            offset = ifd.next;
+        }
+        if (chain.isEmpty()) {
+            return null;
+        }
+
+        Ifd first = chain.get(0);
+        boolean cr2 = (data.get(8) & 0xFF) == 'C' && (data.get(9) & 0xFF) == 'R';
+        Layout layout;
+        if (first.has(TAG_DNG_VERSION)) {
+            layout = dngLayout(data, chain);
+        } else if (cr2) {
+            layout = cr2Layout(data, chain);
+        } else {
+            return null;
+        }
+        if (layout != null) {
+            layout.orientation = Math.max(1, Math.min(8, first.getInt(TAG_ORIENTATION, 0, 1)));
+        }
+        return layout;
+    }
+
+    private static Layout dngLayout(ByteBuffer data, List<Ifd> chain) throws Exception {
+        Ifd first = chain.get(0);
+        List<Ifd> candidates = new ArrayList<>(chain);
+        for (Ifd ifd : chain) {
+            for (int k = 0; k < ifd.count(TAG_SUB_IFDS); k++) {
+                candidates.add(new Ifd(data, ifd.getInt(TAG_SUB_IFDS, k, 0)));
+            }
+        }
+        Ifd raw = null;
+        for (Ifd ifd : candidates) {
+            if (ifd.getInt(TAG_NEW_SUBFILE_TYPE, 0, 0) == 0 && ifd.getInt(TAG_PHOTOMETRIC, 0, 0) == PHOTOMETRIC_CFA) {
+                raw = ifd;
+                break;
+            }
+        }
+        if (raw == null) {
+            return null;
+        }
+
+        int compression = raw.getInt(TAG_COMPRESSION, 0, 1);
+        int bits = raw.getInt(TAG_BITS_PER_SAMPLE, 0, 16);
+        if ((compression != 1 && compression != 7) || raw.getInt(TAG_SAMPLES_PER_PIXEL, 0, 1) != 1 || bits > 16) {
+            return null;
+        }
+        if (raw.getInt(TAG_CFA_REPEAT_PATTERN_DIM, 0, 2) != 2 || raw.getInt(TAG_CFA_REPEAT_PATTERN_DIM, 1, 2) != 2 ||
+                raw.count(TAG_CFA_PATTERN) != 4) {
+            return null;
+        }
+
+        Layout layout = new Layout();
+        layout.data = data;
+        layout.raw = raw;
+        layout.rawWidth = raw.getInt(TAG_IMAGE_WIDTH, 0, 0);
+        layout.rawHeight = raw.getInt(TAG_IMAGE_LENGTH, 0, 0);
+        layout.top = 0;
+        layout.left = 0;
+        layout.width = layout.rawWidth;
+        layout.height = layout.rawHeight;
+        if (raw.count(TAG_ACTIVE_AREA) == 4) {
+            layout.top = raw.getInt(TAG_ACTIVE_AREA, 0, 0);
+            layout.left = raw.getInt(TAG_ACTIVE_AREA, 1, 0);
+            layout.height = raw.getInt(TAG_ACTIVE_AREA, 2, layout.rawHeight) - layout.top;
+            layout.width = raw.getInt(TAG_ACTIVE_AREA, 3, layout.rawWidth) - layout.left;
+        }
+        if (layout.width < 4 || layout.height < 4 || layout.top + layout.height > layout.rawHeight ||
+                layout.left + layout.width > layout.rawWidth) {
+            return null;
+        }
+
+        // The pattern is given from the raw origin, the demosaic works from the active area
+        boolean seen0 = false, seen1 = false, seen2 = false;
+        for (int cell = 0; cell < 4; cell++) {
+            int y = (cell >> 1) + layout.top;
+            int x = (cell & 1) + layout.left;
+            int colour = raw.getInt(TAG_CFA_PATTERN, (y & 1) * 2 + (x & 1), -1);
+            if (colour < 0 || colour > 2) {
+                return null;
+            }
+            layout.cfa[cell] = colour;
+            seen0 |= colour == 0;
+            seen1 |= colour == 1;
+            seen2 |= colour == 2;
+        }
+        if (!(seen0 && seen1 && seen2)) {
+            return null;
+        }
+
+        int blackCells = raw.getInt(TAG_BLACK_LEVEL_REPEAT_DIM, 0, 1) * raw.getInt(TAG_BLACK_LEVEL_REPEAT_DIM, 1, 1);
+        int blackRepeatX = raw.getInt(TAG_BLACK_LEVEL_REPEAT_DIM, 1, 1);
+        for (int cell = 0; cell < 4; cell++) {
+            int index = 0;
+            if (blackCells == 4 && raw.count(TAG_BLACK_LEVEL) >= 4) {
+                index = (((cell >> 1) + layout.top) & 1) * blackRepeatX + (((cell & 1) + layout.left) & 1);
+            }
+            layout.black[cell] = raw.has(TAG_BLACK_LEVEL) ? raw.getDouble(TAG_BLACK_LEVEL, index, 0) : 0;
+        }
+        layout.white = raw.getInt(TAG_WHITE_LEVEL, 0, (1 << bits) - 1);
+
+        if (raw.has(TAG_LINEARIZATION_TABLE)) {
+            int count = raw.count(TAG_LINEARIZATION_TABLE);
+            layout.linearization = new int[count];
+            for (int k = 0; k < count; k++) {
+                layout.linearization[k] = raw.getInt(TAG_LINEARIZATION_TABLE, k, 0);
+            }
+        }
+
+        if (first.count(TAG_AS_SHOT_NEUTRAL) >= 3) {
+            for (int c = 0; c < 3; c++) {
+                double neutral = first.getDouble(TAG_AS_SHOT_NEUTRAL, c, 1);
+                layout.cameraMultipliers[c] = neutral > 0 ? 1 / neutral : 1;
+            }
+        }
+
+        // Prefer the D65 calibration, as sRGB is a D65 space
+        int matrixTag = first.count(TAG_COLOR_MATRIX_2) == 9 &&
+                first.getInt(TAG_CALIBRATION_ILLUMINANT_1, 0, 0) != ILLUMINANT_D65 ? TAG_COLOR_MATRIX_2 : TAG_COLOR_MATRIX_1;
+        if (first.count(matrixTag) == 9) {
+            double[][] camXyz = new double[3][3];
+            for (int k = 0; k < 9; k++) {
+                camXyz[k / 3][k % 3] = first.getDouble(matrixTag, k, 0);
+            }
+            layout.rgbCam = rgbFromCamera(camXyz);
+        }
+        return layout;
+    }
+
+    /**
+     * Canon CR2: the raw strip is the lossless JPEG of the fourth IFD, the sensor borders
+     * and the as-shot white balance sit in the maker note. Without them the file is left to
+     * dcraw, which knows each model's margins.
+     */
+    private static Layout cr2Layout(ByteBuffer data, List<Ifd> chain) throws Exception {
+        Ifd raw = null;
+        for (Ifd ifd : chain) {
+            if (ifd.has(TAG_STRIP_OFFSETS) && LosslessJpegDecoder.isLossless(data,
+                    ifd.getInt(TAG_STRIP_OFFSETS, 0, 0), ifd.getInt(TAG_STRIP_BYTE_COUNTS, 0, 0))) {
+                raw = ifd;
+            }
+        }
+        Ifd first = chain.get(0);
+        if (raw == null || !first.has(TAG_EXIF_IFD)) {
+            return null;
+        }
+        Ifd exif = new Ifd(data, first.getInt(TAG_EXIF_IFD, 0, 0));
+        if (!exif.has(TAG_MAKER_NOTE)) {
+            return null;
+        }
+        Ifd makerNote = new Ifd(data, exif.valueOffset(TAG_MAKER_NOTE));
+        if (makerNote.count(CANON_SENSOR_INFO) < 9 || makerNote.count(CANON_COLOR_DATA) <= 500) {
+            return null;
+        }
+
+        LosslessJpegDecoder jpeg = new LosslessJpegDecoder(data, raw.getInt(TAG_STRIP_OFFSETS, 0, 0),
+                raw.getInt(TAG_STRIP_BYTE_COUNTS, 0, 0));
+        if (jpeg.getComponents() % 2 != 0) {
+            return null;
+        }
+
+        Layout layout = new Layout();
+        layout.data = data;
+        layout.raw = raw;
+        layout.cr2 = true;
+        layout.rawWidth = jpeg.getWidth() * jpeg.getComponents();
+        layout.rawHeight = jpeg.getHeight();
+        // Some models store two sensor rows per JPEG row
+        if (layout.rawWidth > 4 * layout.rawHeight) {
+            layout.rawWidth /= 2;
+            layout.rawHeight *= 2;
+        }
+        if (raw.count(TAG_CR2_SLICES) == 3 && raw.getInt(TAG_CR2_SLICES, 0, 0) > 0) {
+            layout.slices = new int[3];
+            for (int k = 0; k < 3; k++) {
+                layout.slices[k] = raw.getInt(TAG_CR2_SLICES, k, 0);
+            }
+            if (layout.slices[0] * layout.slices[1] + layout.slices[2] != layout.rawWidth) {
+                return null;
+            }
+        }
+
+        // SensorInfo: [5] left, [6] top, [7] right, [8] bottom border, inclusive
+        layout.left = makerNote.getInt(CANON_SENSOR_INFO, 5, 0);
+        layout.top = makerNote.getInt(CANON_SENSOR_INFO, 6, 0);
+        layout.width = makerNote.getInt(CANON_SENSOR_INFO, 7, 0) - layout.left + 1;
+        layout.height = makerNote.getInt(CANON_SENSOR_INFO, 8, 0) - layout.top + 1;
+        if (layout.left < 8 || layout.width < 4 || layout.height < 4 ||
+                layout.left + layout.width > layout.rawWidth || layout.top + layout.height > layout.rawHeight) {
+            return null;
+        }
+        layout.white = (1 << jpeg.getPrecision()) - 1;
+
+        // As-shot RGGB levels, at an offset that depends on the ColorData version
+        int length = makerNote.count(CANON_COLOR_DATA);
+        int skip = length == 582 ? 50 : length == 653 ? 68 : length == 5120 ? 142 : 126;
+        int levels = makerNote.valueOffset(CANON_COLOR_DATA) + skip;
+        double red = data.getShort(levels) & 0xFFFF;
+        double green = ((data.getShort(levels + 2) & 0xFFFF) + (data.getShort(levels + 4) & 0xFFFF)) / 2.0;
+        double blue = data.getShort(levels + 6) & 0xFFFF;
+        if (red <= 0 || green <= 0 || blue <= 0) {
+            return null;
+        }
+        layout.cameraMultipliers = new double[]{red / green, 1, blue / green};
+
+        // RGGB from the active area, checked against the data once decoded
+        layout.cfa = new int[]{0, 1, 1, 2};
+        return layout;
+    }
+
+    /**
+     * Camera-to-sRGB matrix from a DNG XYZ-to-camera matrix, as dcraw derives it: rows
+     * normalised so white stays white, then inverted.
+     */
+    private static double[][] rgbFromCamera(double[][] camXyz) {
+        double[][] camRgb = new double[3][3];
+        for (int i = 0; i < 3; i++) {
+            double sum = 0;
+            for (int j = 0; j < 3; j++) {
+                for (int k = 0; k < 3; k++) {
+                    camRgb[i][j] += camXyz[i][k] * XYZ_RGB[k][j];
+                }
+                sum += camRgb[i][j];
+            }
+            if (sum == 0) {
+                return null;
+            }
+            for (int j = 0; j < 3; j++) {
+                camRgb[i][j] /= sum;
+            }
+        }
+        return invert(camRgb);
+    }
+
+    private static double[][] invert(double[][] m) {
+        double det = m[0][0] * (m[1][1] * m[2][2] - m[1][2] * m[2][1]) -
+                m[0][1] * (m[1][0] * m[2][2] - m[1][2] * m[2][0]) +
+                m[0][2] * (m[1][0] * m[2][1] - m[1][1] * m[2][0]);
+        if (Math.abs(det) < 1e-12) {
+            return null;
+        }
+        double[][] inverse = new double[3][3];
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < 3; j++) {
+                int i1 = (j + 1) % 3, i2 = (j + 2) % 3;
+                int j1 = (i + 1) % 3, j2 = (i + 2) % 3;
+                inverse[i][j] = (m[i1][j1] * m[i2][j2] - m[i1][j2] * m[i2][j1]) / det;
+            }
+        }
+        return inverse;
+    }
+
+    // ---- Sensor data ----
+
+    /** Every strip or tile is decoded on its own thread, straight into the mosaic. */
+    private void decodeDng(Layout layout, short[] mosaic, ExecutorService executor) throws Exception {
+        Ifd raw = layout.raw;
+        boolean tiled = raw.has(TAG_TILE_OFFSETS);
+        int blockWidth = tiled ? raw.getInt(TAG_TILE_WIDTH, 0, 0) : layout.rawWidth;
+        int blockHeight = tiled ? raw.getInt(TAG_TILE_LENGTH, 0, 0) : raw.getInt(TAG_ROWS_PER_STRIP, 0, layout.rawHeight);
+        int offsetsTag = tiled ? TAG_TILE_OFFSETS : TAG_STRIP_OFFSETS;
+        int countsTag = tiled ? TAG_TILE_BYTE_COUNTS : TAG_STRIP_BYTE_COUNTS;
+        if (blockWidth <= 0 || blockHeight <= 0) {
+            throw new Exception("DNG: taille de tuile invalide");
+        }
+        blockHeight = Math.min(blockHeight, layout.rawHeight);
+        int across = (layout.rawWidth + blockWidth - 1) / blockWidth;
+        int down = (layout.rawHeight + blockHeight - 1) / blockHeight;
+        if (raw.count(offsetsTag) < across * down) {
+            throw new Exception("DNG: tuiles manquantes");
+        }
+        boolean lossless = raw.getInt(TAG_COMPRESSION, 0, 1) == 7;
+        int bits = raw.getInt(TAG_BITS_PER_SAMPLE, 0, 16);
+
+        List<Future<?>> futures = new ArrayList<>();
+        for (int block = 0; block < across * down; block++) {
+            int x0 = (block % across) * blockWidth;
+            int y0 = (block / across) * blockHeight;
+            int offset = raw.getInt(offsetsTag, block, 0);
+            int length = raw.getInt(countsTag, block, 0);
+            int width = blockWidth;
+            int height = blockHeight;
+            futures.add(executor.submit(() -> {
+                if (lossless) {
+                    decodeLosslessBlock(layout, mosaic, offset, length, x0, y0, width);
+                } else {
+                    decodeUncompressedBlock(layout, mosaic, offset, length, x0, y0, width, height, bits);
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+    }
+
+    /** The samples of a tile run row after row across the tile width. */
+    private static void decodeLosslessBlock(Layout layout, short[] mosaic, int offset, int length,
+                                            int x0, int y0, int blockWidth) throws Exception {
+        LosslessJpegDecoder jpeg = new LosslessJpegDecoder(layout.data, offset, length);
+        int rowLength = jpeg.getWidth() * jpeg.getComponents();
+        int[] samples = new int[rowLength];
+        int row = 0;
+        int col = 0;
+        for (int jrow = 0; jrow < jpeg.getHeight(); jrow++) {
+            jpeg.decodeRow(samples);
+            for (int k = 0; k < rowLength; k++) {
+                int y = y0 + row;
+                int x = x0 + col;
+                if (y < layout.rawHeight && x < layout.rawWidth) {
+                    mosaic[y * layout.rawWidth + x] = (short) samples[k];
+                }
+                if (++col >= blockWidth) {
+                    col = 0;
+                    row++;
+                }
+            }
+        }
+    }
+
+    private static void decodeUncompressedBlock(Layout layout, short[] mosaic, int offset, int length,
+                                                int x0, int y0, int blockWidth, int blockHeight, int bits) {
+        ByteBuffer data = layout.data;
+        int end = Math.min(data.limit(), offset + length);
+        long bitPos = (long) offset * 8;
+        for (int row = 0; row < blockHeight && y0 + row < layout.rawHeight; row++) {
+            // Rows of packed samples start on a byte boundary
+            bitPos = (bitPos + 7) & ~7L;
+            for (int col = 0; col < blockWidth; col++) {
+                int value;
+                if (bits == 16) {
+                    int p = (int) (bitPos >> 3);
+                    value = p + 1 < end ? data.getShort(p) & 0xFFFF : 0;
+                } else if (bits == 8) {
+                    int p = (int) (bitPos >> 3);
+                    value = p < end ? data.get(p) & 0xFF : 0;
+                } else {
+                    value = 0;
+                    for (int b = 0; b < bits; b++) {
+                        long at = bitPos + b;
+                        int p = (int) (at >> 3);
+                        int bit = p < end ? (data.get(p) >> (7 - (int) (at & 7))) & 1 : 0;
+                        value = (value << 1) | bit;
+                    }
+                }
+                bitPos += bits;
+                int x = x0 + col;
+                if (x < layout.rawWidth) {
+                    mosaic[(y0 + row) * layout.rawWidth + x] = (short) value;
+                }
+            }
+        }
+    }
+
+    /**
+     * The CR2 stream is a single Huffman run, so it is decoded on one thread; the sensor
+     * is stored as vertical slices laid one after another.
+     */
+    private static void decodeCr2(Layout layout, short[] mosaic) throws Exception {
+        LosslessJpegDecoder jpeg = new LosslessJpegDecoder(layout.data, layout.raw.getInt(TAG_STRIP_OFFSETS, 0, 0),
+                layout.raw.getInt(TAG_STRIP_BYTE_COUNTS, 0, 0));
+        int rowLength = jpeg.getWidth() * jpeg.getComponents();
+        int[] samples = new int[rowLength];
+        int[] slices = layout.slices;
+        int rawWidth = layout.rawWidth;
+        int rawHeight = layout.rawHeight;
+        int row = 0;
+        int col = 0;
+        long index = 0;
+
+        for (int jrow = 0; jrow < jpeg.getHeight(); jrow++) {
+            jpeg.decodeRow(samples);
+            for (int k = 0; k < rowLength; k++, index++) {
+                if (slices != null) {
+                    long sliceSize = (long) slices[1] * rawHeight;
+                    int slice = (int) (index / sliceSize);
+                    int last = slice >= slices[0] ? 1 : 0;
+                    if (last == 1) {
+                        slice = slices[0];
+                    }
+                    long inSlice = index - slice * sliceSize;
+                    int sliceWidth = slices[1 + last];
+                    row = (int) (inSlice / sliceWidth);
+                    col = (int) (inSlice % sliceWidth) + slice * slices[1];
+                }
+                if (row < rawHeight && col < rawWidth) {
+                    mosaic[row * rawWidth + col] = (short) samples[k];
+                }
+                if (++col >= rawWidth) {
+                    col = 0;
+                    row++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Canon black level: the mean of the masked columns left of the active area, per CFA
+     * cell. The borders of a few models are off by one row, which would put green on the
+     * other diagonal; green being by far the strongest raw channel, the diagonal with the
+     * larger mean is taken as green.
+     */
+    private static void calibrateCanon(Layout layout, short[] mosaic) {
+        double[] sums = new double[4];
+        long[] counts = new long[4];
+        for (int y = layout.top; y < layout.top + layout.height; y++) {
+            for (int x = 2; x < layout.left - 2; x++) {
+                int cell = ((y - layout.top) & 1) * 2 + ((x - layout.left) & 1);
+                sums[cell] += mosaic[y * layout.rawWidth + x] & 0xFFFF;
+                counts[cell]++;
+            }
+        }
+        for (int cell = 0; cell < 4; cell++) {
+            layout.black[cell] = counts[cell] > 0 ? sums[cell] / counts[cell] : 0;
+        }
+
+        double[] means = new double[4];
+        // Every seventh row samples both row phases
+        for (int y = 0; y < layout.height; y += 7) {
+            int rowStart = (y + layout.top) * layout.rawWidth + layout.left;
+            for (int x = 0; x < layout.width; x++) {
+                int cell = (y & 1) * 2 + (x & 1);
+                means[cell] += (mosaic[rowStart + x] & 0xFFFF) - layout.black[cell];
+            }
+        }
+        if (means[0] + means[3] > means[1] + means[2]) {
+            layout.cfa = new int[]{1, 2, 0, 1};
+        }
+    }
+
+    // ---- Development ----
+
+    private void scale(Layout layout, short[] mosaic, ExecutorService executor) throws Exception {
+        // dcraw's scaling: the weakest channel reaches white at the white level, the others clip
+        double minMultiplier = Math.min(layout.cameraMultipliers[0],
+                Math.min(layout.cameraMultipliers[1], layout.cameraMultipliers[2]));
+        double blackMean = (layout.black[0] + layout.black[1] + layout.black[2] + layout.black[3]) / 4;
+        double range = Math.max(1, layout.white - blackMean);
+        double[] scale = new double[4];
+        for (int cell = 0; cell < 4; cell++) {
+            scale[cell] = layout.cameraMultipliers[layout.cfa[cell]] / minMultiplier * 65535.0 / range;
+        }
+
+        List<Future<?>> futures = new ArrayList<>();
+        for (int startY = 0; startY < layout.height; startY += BAND_ROWS) {
+            int bandStart = startY;
+            int bandEnd = Math.min(layout.height, startY + BAND_ROWS);
+            futures.add(executor.submit(() -> scaleRows(layout, mosaic, scale, bandStart, bandEnd)));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+    }
+
+    private BufferedImage develop(Mosaic mosaic, ExecutorService executor) throws Exception {
+        int width = mosaic.width;
+        int height = mosaic.height;
+        boolean swap = mosaic.orientation >= 5;
+        int outWidth = swap ? height : width;
+        int outHeight = swap ? width : height;
+        short[][] planes = new short[3][outWidth * outHeight];
+        int[][][] neighbours = bilinearNeighbours(mosaic.cfa);
+
+        List<Future<?>> futures = new ArrayList<>();
+        for (int startY = 0; startY < height; startY += BAND_ROWS) {
+            int bandStart = startY;
+            int bandEnd = Math.min(height, startY + BAND_ROWS);
+            futures.add(executor.submit(() -> demosaicRows(mosaic, neighbours, planes, outWidth, bandStart, bandEnd)));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+
+        ComponentColorModel colorModel = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_sRGB),
+                false, false, Transparency.OPAQUE, DataBuffer.TYPE_USHORT);
+        WritableRaster raster = Raster.createBandedRaster(new DataBufferUShort(planes, outWidth * outHeight),
+                outWidth, outHeight, outWidth, new int[]{0, 1, 2}, new int[]{0, 0, 0}, null);
+        return new BufferedImage(colorModel, raster, false, null);
+    }
+
+    /** Linearises, subtracts the black level and applies the white balance, in place. */
+    private static void scaleRows(Layout layout, short[] mosaic, double[] scale, int startY, int endY) {
+        int[] curve = layout.linearization;
+        for (int y = startY; y < endY; y++) {
+            int rowStart = (y + layout.top) * layout.rawWidth + layout.left;
+            for (int x = 0; x < layout.width; x++) {
+                int cell = (y & 1) * 2 + (x & 1);
+                int value = mosaic[rowStart + x] & 0xFFFF;
+                if (curve != null) {
+                    value = curve[Math.min(value, curve.length - 1)];
+                }
+                long scaled = Math.round((value - layout.black[cell]) * scale[cell]);
+                mosaic[rowStart + x] = (short) Math.max(0, Math.min(65535, scaled));
+            }
+        }
+    }
+
+    /**
+     * For each 2x2 cell and colour, the 3x3 neighbours of that colour: bilinear
+     * interpolation is their mean (the pixel itself when it has the colour).
+     */
+    private static int[][][] bilinearNeighbours(int[] cfa) {
+        int[][][] neighbours = new int[4][3][];
+        for (int cell = 0; cell < 4; cell++) {
+            int cy = cell >> 1;
+            int cx = cell & 1;
+            for (int colour = 0; colour < 3; colour++) {
+                if (cfa[cell] == colour) {
+                    neighbours[cell][colour] = new int[]{0, 0};
+                    continue;
+                }
+                List<int[]> offsets = new ArrayList<>();
+                for (int dy = -1; dy <= 1; dy++) {
+                    for (int dx = -1; dx <= 1; dx++) {
+                        if (cfa[((cy + dy) & 1) * 2 + ((cx + dx) & 1)] == colour) {
+                            offsets.add(new int[]{dy, dx});
+                        }
+                    }
+                }
+                int[] flat = new int[offsets.size() * 2];
+                for (int k = 0; k < offsets.size(); k++) {
+                    flat[2 * k] = offsets.get(k)[0];
+                    flat[2 * k + 1] = offsets.get(k)[1];
+                }
+                neighbours[cell][colour] = flat;
+            }
+        }
+        return neighbours;
+    }
+
+    /** Bilinear demosaic, colour conversion and orientation, one band of active rows. */
+    private static void demosaicRows(Mosaic mosaic, int[][][] neighbours, short[][] planes,
+                                     int outWidth, int startY, int endY) {
+        int width = mosaic.width;
+        int height = mosaic.height;
+        int stride = mosaic.stride;
+        int origin = mosaic.origin;
+        short[] data = mosaic.data;
+        double[][] m = mosaic.rgbCam;
+        double[] camera = new double[3];
+
+        for (int y = startY; y < endY; y++) {
+            for (int x = 0; x < width; x++) {
+                int cell = (y & 1) * 2 + (x & 1);
+                for (int colour = 0; colour < 3; colour++) {
+                    int[] offsets = neighbours[cell][colour];
+                    int sum = 0;
+                    for (int k = 0; k < offsets.length; k += 2) {
+                        // Mirrored by two at the edges, which keeps the CFA phase
+                        int ny = y + offsets[k];
+                        int nx = x + offsets[k + 1];
+                        ny = ny < 0 ? ny + 2 : ny >= height ? ny - 2 : ny;
+                        nx = nx < 0 ? nx + 2 : nx >= width ? nx - 2 : nx;
+                        sum += data[origin + ny * stride + nx] & 0xFFFF;
+                    }
+                    camera[colour] = sum / (double) (offsets.length / 2);
+                }
+
+                int index = orientedIndex(mosaic.orientation, x, y, width, height, outWidth);
+                for (int c = 0; c < 3; c++) {
+                    double value = m == null ? camera[c] : m[c][0] * camera[0] + m[c][1] * camera[1] + m[c][2] * camera[2];
+                    planes[c][index] = (short) Math.max(0, Math.min(65535, Math.round(value)));
+                }
+            }
+        }
+    }
+
+    /** Output index of (x, y) once the EXIF orientation is applied. */
+    private static int orientedIndex(int orientation, int x, int y, int width, int height, int outWidth) {
+        return switch (orientation) {
+            case 2 -> y * outWidth + (width - 1 - x);
+            case 3 -> (height - 1 - y) * outWidth + (width - 1 - x);
+            case 4 -> (height - 1 - y) * outWidth + x;
+            case 5 -> x * outWidth + y;
+            case 6 -> x * outWidth + (height - 1 - y);
+            case 7 -> (width - 1 - x) * outWidth + (height - 1 - y);
+            case 8 -> (width - 1 - x) * outWidth + y;
+            default -> y * outWidth + x;
+        };
+    }
+
+    /** Where a rectangle of a {@code width} x {@code height} image lands once the orientation is applied. */
+    private static Rectangle orient(int orientation, Rectangle r, int width, int height) {
+        Point a = orient(orientation, r.x, r.y, width, height);
+        Point b = orient(orientation, r.x + r.width - 1, r.y + r.height - 1, width, height);
+        return new Rectangle(Math.min(a.x, b.x), Math.min(a.y, b.y), Math.abs(a.x - b.x) + 1, Math.abs(a.y - b.y) + 1);
+    }
+
+    /** Output position of (x, y), as {@link #orientedIndex} gives it. */
+    private static Point orient(int orientation, int x, int y, int width, int height) {
+        return switch (orientation) {
+            case 2 -> new Point(width - 1 - x, y);
+            case 3 -> new Point(width - 1 - x, height - 1 - y);
+            case 4 -> new Point(x, height - 1 - y);
+            case 5 -> new Point(y, x);
+            case 6 -> new Point(height - 1 - y, x);
+            case 7 -> new Point(height - 1 - y, width - 1 - x);
+            case 8 -> new Point(y, width - 1 - x);
+            default -> new Point(x, y);
+        };
+    }
+
+    /** One image file directory: tags mapped to their type, count and value position. */
+    private static class Ifd {
+        private static final int[] TYPE_SIZES = {0, 1, 1, 2, 4, 8, 1, 1, 2, 4, 8, 4, 8, 4};
+
+        private final ByteBuffer data;
+        private final Map<Integer, int[]> entries = new HashMap<>();
+        final int next;
+
+        Ifd(ByteBuffer data, int offset) throws Exception {
+            this.data = data;
+            if (offset < 8 || offset + 2 > data.limit()) {
+                throw new Exception("TIFF: répertoire hors du fichier");
+            }
+            int count = data.getShort(offset) & 0xFFFF;
+            if (offset + 2 + count * 12 + 4 > data.limit()) {
+                throw new Exception("TIFF: répertoire tronqué");
+            }
+            for (int k = 0; k < count; k++) {
+                int entry = offset + 2 + k * 12;
+                int tag = data.getShort(entry) & 0xFFFF;
+                int type = data.getShort(entry + 2) & 0xFFFF;
+                int valueCount = data.getInt(entry + 4);
+                if (type <= 0 || type >= TYPE_SIZES.length || valueCount < 0) {
+                    continue;
+                }
+                long bytes = (long) TYPE_SIZES[type] * valueCount;
+                int valueOffset = bytes <= 4 ? entry + 8 : data.getInt(entry + 8);
+                if (valueOffset < 0 || valueOffset + bytes > data.limit()) {
+                    continue;
+                }
+                entries.put(tag, new int[]{type, valueCount, valueOffset});
+            }
+            next = data.getInt(offset + 2 + count * 12);
+        }
+
+        boolean has(int tag) {
+            return entries.containsKey(tag);
+        }
+
+        int count(int tag) {
+            int[] entry = entries.get(tag);
+            return entry != null ? entry[1] : 0;
+        }
+
+        int valueOffset(int tag) {
+            return entries.get(tag)[2];
+        }
+
+        int getInt(int tag, int index, int fallback) {
+            int[] entry = entries.get(tag);
+            if (entry == null || index >= entry[1]) {
+                return fallback;
+            }
+            int at = entry[2] + index * TYPE_SIZES[entry[0]];
+            return switch (entry[0]) {
+                case 1, 7 -> data.get(at) & 0xFF;
+                case 6 -> data.get(at);
+                case 3 -> data.getShort(at) & 0xFFFF;
+                case 8 -> data.getShort(at);
+                case 4, 9, 13 -> data.getInt(at);
+                default -> (int) Math.round(getDouble(tag, index, fallback));
+            };
+        }
+
+        double getDouble(int tag, int index, double fallback) {
+            int[] entry = entries.get(tag);
+            if (entry == null || index >= entry[1]) {
+                return fallback;
+            }
+            int at = entry[2] + index * TYPE_SIZES[entry[0]];
+            return switch (entry[0]) {
+                case 5 -> {
+                    long denominator = data.getInt(at + 4) & 0xFFFFFFFFL;
+                    yield denominator == 0 ? fallback : (data.getInt(at) & 0xFFFFFFFFL) / (double) denominator;
+                }
+                case 10 -> {
+                    int denominator = data.getInt(at + 4);
+                    yield denominator == 0 ? fallback : data.getInt(at) / (double) denominator;
+                }
+                case 11 -> data.getFloat(at);
+                case 12 -> data.getDouble(at);
+                default -> getInt(tag, index, (int) fallback);
+            };
+        }
+    }
+}
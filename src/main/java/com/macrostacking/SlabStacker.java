@@ -0,0 +1,220 @@
+package com.macrostacking;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hierarchical "slab" stacking for very deep stacks: frames are split into overlapping
+ * groups, each group is stacked on its own by an {@link ImageStacker}, and the slab
+ * results are stacked again (recursively if there are still too many of them).
+ * Only slab results survive between levels, so peak memory follows the slab size plus
+ * one full-size result per slab. Slabs run concurrently as far as the memory budget
+ * left by those results allows.
+ */
+public class SlabStacker {
+    // Decoded frame (up to 16-bit RGB) plus the aligned view and depth-map work arrays
+    private static final int BYTES_PER_PIXEL_PER_FRAME = 8;
+    private static final int BYTES_PER_PIXEL_PER_SLAB = 16;
+    // TYPE_INT_RGB slab result
+    private static final int BYTES_PER_PIXEL_PER_RESULT = 4;
+    static final int DEFAULT_OVERLAP = 2;
+
+    private final StackingAlgorithm algorithm;
+    private int slabSize = 20;
+    private int overlap = DEFAULT_OVERLAP;
+    private int threadCount;
+    private boolean autoAlign = true;
+    private boolean compressFrames = false;
+    private boolean offHeapFrames = false;
+    private long memoryBudget;
+    private FocusMeasure focusMeasure;
+    private Rectangle region;
+    private int regionMargin = ImageStacker.DEFAULT_REGION_MARGIN;
+
+    public SlabStacker(StackingAlgorithm algorithm) {
+        this.algorithm = algorithm;
+        this.threadCount = Runtime.getRuntime().availableProcessors();
+        this.memoryBudget = (long) (Runtime.getRuntime().maxMemory() * 0.7);
+    }
+
+    public void setSlabSize(int slabSize) {
+        this.slabSize = Math.max(2, slabSize);
+        this.overlap = Math.min(overlap, this.slabSize - 1);
+    }
+
+    public void setOverlap(int overlap) {
+        this.overlap = Math.max(0, Math.min(overlap, slabSize - 1));
+    }
+
+    public void setThreadCount(int count) {
+        this.threadCount = Math.max(1, count);
+    }
+
+    public void setAutoAlign(boolean autoAlign) {
+        this.autoAlign = autoAlign;
+    }
+
+    public void setCompressFrames(boolean compressFrames) {
+        this.compressFrames = compressFrames;
+    }
+
+    public void setOffHeapFrames(boolean offHeapFrames) {
+        this.offHeapFrames = offHeapFrames;
+    }
+
+    public void setMemoryBudget(long bytes) {
+        this.memoryBudget = bytes;
+    }
+
+    public void setFocusMeasure(FocusMeasure focusMeasure) {
+        this.focusMeasure = focusMeasure;
+    }
+
+    /** See {@link ImageStacker#setRegion}: every slab decodes and stacks the region only. */
+    public void setRegion(Rectangle region) {
+        this.region = region != null ? new Rectangle(region) : null;
+    }
+
+    public void setRegionMargin(int pixels) {
+        this.regionMargin = Math.max(0, pixels);
+    }
+
+    public BufferedImage stackImages(List<File> files, ImageStacker.ProgressCallback callback) throws Exception {
+        if (files.isEmpty()) {
+            throw new Exception("Aucune image à traiter");
+        }
+
+        if (files.size() <= slabSize) {
+            return createStacker(threadCount).stackImages(files, callback);
+        }
+
+        Dimension size = ImageLoader.readDimensions(files.get(0));
+        if (region != null) {
+            int margin = autoAlign ? 2 * regionMargin : 0;
+            size = new Dimension(Math.min(size.width, region.width + margin), Math.min(size.height, region.height + margin));
+        }
+        long slabBytes = estimateSlabBytes(size, slabSize);
+        long resultBytes = (long) size.width * size.height * BYTES_PER_PIXEL_PER_RESULT;
+
+        List<List<File>> slabs = split(files);
+        callback.update(0, slabs.size() + " sous-stacks de " + slabSize + " images (chevauchement " + overlap + ")");
+
+        List<BufferedImage> results = runSlabs(slabs, slabBytes, slabs.size() * resultBytes, callback, 0, 80,
+                (slab, stacker) -> stacker.stackImages(slab, (p, s) -> {}));
+
+        // Higher levels only ever hold slab results
+        int level = 2;
+        while (results.size() > slabSize) {
+            List<List<BufferedImage>> groups = split(results);
+            int progressStart = 80 + Math.min(10, (level - 2) * 5);
+            callback.update(progressStart, "Niveau " + level + ": " + groups.size() + " sous-stacks");
+            // The previous level's results stay alive until this one is done
+            long retainedBytes = (results.size() + groups.size()) * resultBytes;
+            results = runSlabs(groups, slabBytes, retainedBytes, callback, progressStart, 5, (group, stacker) ->
+                    stacker.stackImages(group.toArray(new BufferedImage[0]), (p, s) -> {}));
+            level++;
+        }
+
+        callback.update(90, "Stack final de " + results.size() + " sous-stacks...");
+        return createStacker(threadCount).stackImages(results.toArray(new BufferedImage[0]),
+                (p, s) -> callback.update(90 + p / 10, s));
+    }
+
+    @FunctionalInterface
+    private interface SlabTask<T> {
+        BufferedImage stack(List<T> slab, ImageStacker stacker) throws Exception;
+    }
+
+    /** Runs the slabs with as many in parallel as the budget allows once {@code retainedBytes} of results are held. */
+    private <T> List<BufferedImage> runSlabs(List<List<T>> slabs, long slabBytes, long retainedBytes,
+                                             ImageStacker.ProgressCallback callback, int progressStart, int progressSpan,
+                                             SlabTask<T> task) throws Exception {
+        int parallelSlabs = (int) Math.max(1, Math.min(Math.min(slabs.size(), threadCount),
+                (memoryBudget - retainedBytes) / Math.max(1, slabBytes)));
+        int threadsPerSlab = Math.max(1, threadCount / parallelSlabs);
+        System.out.println("Sous-stacks: " + parallelSlabs + " en parallèle, " + threadsPerSlab + " threads chacun (" +
+                (slabBytes >> 20) + " Mo estimés par sous-stack)");
+
+        ExecutorService executor = Executors.newFixedThreadPool(parallelSlabs);
+        List<Future<BufferedImage>> futures = new ArrayList<>();
+        AtomicInteger completed = new AtomicInteger(0);
+
+        for (List<T> slab : slabs) {
+            futures.add(executor.submit(() -> {
+                BufferedImage result = task.stack(slab, createStacker(threadsPerSlab));
+                int done = completed.incrementAndGet();
+                callback.update(progressStart + done * progressSpan / slabs.size(),
+                        "Sous-stack " + done + "/" + slabs.size() + " terminé");
+                return result;
+            }));
+        }
+
+        List<BufferedImage> results = new ArrayList<>();
+        try {
+            for (Future<BufferedImage> future : futures) {
+                results.add(future.get());
+            }
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception cause ? cause : e;
+        } finally {
+            // Slabs still running after a failure keep their frames: wait until they let go
+            ImageStacker.stopAndWait(executor);
+        }
+        return results;
+    }
+
+    /** Number of slabs {@link #split} makes of {@code items}. */
+    static int slabCount(int items, int slabSize, int overlap) {
+        int step = slabSize - overlap;
+        return items <= slabSize ? 1 : 1 + (items - slabSize + step - 1) / step;
+    }
+
+    /**
+     * Slab results alive at the peak: those of one level plus those of the next, which
+     * are produced while the first are still held.
+     */
+    static int retainedResults(int items, int slabSize, int overlap) {
+        if (items <= slabSize) {
+            return 0;
+        }
+        int first = slabCount(items, slabSize, overlap);
+        return first + (first > slabSize ? slabCount(first, slabSize, overlap) : 0);
+    }
+
+    private <T> List<List<T>> split(List<T> items) {
+        List<List<T>> slabs = new ArrayList<>();
+        int step = slabSize - overlap;
+
+        for (int start = 0; start < items.size(); start += step) {
+            int end = Math.min(start + slabSize, items.size());
+            slabs.add(new ArrayList<>(items.subList(start, end)));
+            if (end == items.size()) {
+                break;
+            }
+        }
+        return slabs;
+    }
+
+    private long estimateSlabBytes(Dimension size, int frames) {
+        long pixels = (long) size.width * size.height;
+        return pixels * frames * (compressFrames ? 2 : BYTES_PER_PIXEL_PER_FRAME) + pixels * BYTES_PER_PIXEL_PER_SLAB;
+    }
+
+    private ImageStacker createStacker(int threads) {
+        ImageStacker stacker = new ImageStacker(algorithm);
+        stacker.setAutoAlign(autoAlign);
+        stacker.setCompressFrames(compressFrames);
+        stacker.setOffHeapFrames(offHeapFrames);
+        stacker.setThreadCount(threads);
+        stacker.setFocusMeasure(focusMeasure);
+        stacker.setRegion(region);
+        stacker.setRegionMargin(regionMargin);
+        return stacker;
+    }
+}
@@ -0,0 +1,291 @@
+package com.macrostacking;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import java.awt.Point;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Scratch-directory checkpoint of a running stack: alignment offsets per frame and the
+ * output of every finished tile of every phase. Tile files are written asynchronously
+ * on a single writer thread (tmp file + atomic rename) and only listed in the manifest
+ * once complete, so the manifest always describes a consistent state to resume from.
+ */
+public class StackCheckpoint {
+    private static final String MANIFEST = "manifest.json";
+    private static final long MANIFEST_INTERVAL_MS = 5000;
+    // 2: offsets are the translation applied to the frame (sign fixed)
+    private static final int VERSION = 2;
+
+    private final File directory;
+    private final Manifest manifest;
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "checkpoint-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+    private long lastManifestWrite;
+    private volatile IOException writeError;
+
+    private static class Manifest {
+        int version = VERSION;
+        String algorithm;
+        List<String> files = new ArrayList<>();
+        List<Long> fileSizes = new ArrayList<>();
+        List<Long> fileDates = new ArrayList<>();
+        int width;
+        int height;
+        int tileHeight;
+        String focusMeasure;
+        int[][] offsets;
+        Map<String, Set<Integer>> completedTiles = new HashMap<>();
+    }
+
+    private StackCheckpoint(File directory, Manifest manifest) {
+        this.directory = directory;
+        this.manifest = manifest;
+    }
+
+    /** Default scratch directory for a given input set, stable across sessions. */
+    public static File defaultDirectory(List<File> files, StackingAlgorithm algorithm) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(algorithm.name().getBytes(StandardCharsets.UTF_8));
+            for (File file : files) {
+                digest.update(file.getAbsolutePath().getBytes(StandardCharsets.UTF_8));
+            }
+            String key = HexFormat.of().formatHex(digest.digest(), 0, 8);
+            return new File(System.getProperty("java.io.tmpdir"), "macro-stacker-checkpoints/" + key);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** True if the directory holds a checkpoint for exactly these inputs. */
+    public static boolean exists(File directory, List<File> files, StackingAlgorithm algorithm) {
+        Manifest manifest = readManifest(directory);
+        return manifest != null && matches(manifest, files, algorithm);
+    }
+
+    /** Drops a checkpoint the user chose not to resume. */
+    public static void discard(File directory) throws IOException {
+        delete(directory);
+    }
+
+    /**
+     * Opens the checkpoint for these inputs, resuming it if the manifest matches and
+     * starting from an empty directory otherwise.
+     */
+    public static StackCheckpoint open(File directory, List<File> files, StackingAlgorithm algorithm) throws IOException {
+        Manifest manifest = readManifest(directory);
+        if (manifest != null && matches(manifest, files, algorithm)) {
+            System.out.println("Reprise du point de contrôle: " + directory);
+            return new StackCheckpoint(directory, manifest);
+        }
+
+        delete(directory);
+        Files.createDirectories(directory.toPath());
+
+        manifest = new Manifest();
+        manifest.algorithm = algorithm.name();
+        for (File file : files) {
+            manifest.files.add(file.getAbsolutePath());
+            manifest.fileSizes.add(file.length());
+            manifest.fileDates.add(file.lastModified());
+        }
+        manifest.offsets = new int[files.size()][];
+
+        StackCheckpoint checkpoint = new StackCheckpoint(directory, manifest);
+        checkpoint.writeManifest();
+        return checkpoint;
+    }
+
+    /**
+     * Checks the frame geometry and focus measure against a resumed checkpoint; finished
+     * tiles are dropped if they differ. Returns the tile height the checkpoint was written
+     * with, which the stacker must keep to reuse tiles.
+     */
+    public synchronized int bindGeometry(int width, int height, int tileHeight, String focusMeasure) {
+        if (manifest.width != width || manifest.height != height || manifest.tileHeight == 0 ||
+                !focusMeasure.equals(manifest.focusMeasure)) {
+            manifest.width = width;
+            manifest.height = height;
+            manifest.tileHeight = tileHeight;
+            manifest.focusMeasure = focusMeasure;
+            manifest.completedTiles.clear();
+        }
+        return manifest.tileHeight;
+    }
+
+    public synchronized Point getOffset(int frame) {
+        int[] offset = manifest.offsets[frame];
+        return offset == null ? null : new Point(offset[0], offset[1]);
+    }
+
+    public synchronized void setOffset(int frame, Point offset) {
+        manifest.offsets[frame] = new int[]{offset.x, offset.y};
+    }
+
+    public synchronized boolean hasTile(String phase, int startY) {
+        Set<Integer> done = manifest.completedTiles.get(phase);
+        return done != null && done.contains(startY);
+    }
+
+    /** Reads back a finished tile as {ints, doubles}; either part may be empty. */
+    public TileData loadTile(String phase, int startY) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new InflaterInputStream(new FileInputStream(tileFile(phase, startY)))))) {
+            int[] ints = new int[in.readInt()];
+            for (int i = 0; i < ints.length; i++) {
+                ints[i] = in.readInt();
+            }
+            double[] doubles = new double[in.readInt()];
+            for (int i = 0; i < doubles.length; i++) {
+                doubles[i] = in.readDouble();
+            }
+            return new TileData(ints, doubles);
+        }
+    }
+
+    /** Queues a finished tile for writing. The arrays must not be modified afterwards. */
+    public void saveTile(String phase, int startY, int[] ints, double[] doubles) {
+        writer.submit(() -> {
+            try {
+                File target = tileFile(phase, startY);
+                File tmp = new File(target.getPath() + ".tmp");
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                        new DeflaterOutputStream(new FileOutputStream(tmp))))) {
+                    int[] intData = ints != null ? ints : new int[0];
+                    double[] doubleData = doubles != null ? doubles : new double[0];
+                    out.writeInt(intData.length);
+                    for (int value : intData) {
+                        out.writeInt(value);
+                    }
+                    out.writeInt(doubleData.length);
+                    for (double value : doubleData) {
+                        out.writeDouble(value);
+                    }
+                }
+                Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+
+                synchronized (this) {
+                    manifest.completedTiles.computeIfAbsent(phase, k -> new TreeSet<>()).add(startY);
+                    if (System.currentTimeMillis() - lastManifestWrite > MANIFEST_INTERVAL_MS) {
+                        writeManifest();
+                    }
+                }
+            } catch (IOException e) {
+                writeError = e;
+                e.printStackTrace();
+            }
+        });
+    }
+
+    /** Queues a manifest write, e.g. after alignment or at the end of a phase. */
+    public void flush() {
+        writer.submit(() -> {
+            synchronized (this) {
+                try {
+                    writeManifest();
+                } catch (IOException e) {
+                    writeError = e;
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+    /** Waits for pending writes. With {@code success}, the stack is finished and the directory removed. */
+    public void close(boolean success) throws IOException {
+        if (!success) {
+            flush();
+        }
+        writer.shutdown();
+        try {
+            writer.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (success) {
+            delete(directory);
+        } else if (writeError != null) {
+            throw writeError;
+        }
+    }
+
+    public static class TileData {
+        public final int[] ints;
+        public final double[] doubles;
+
+        TileData(int[] ints, double[] doubles) {
+            this.ints = ints;
+            this.doubles = doubles;
+        }
+    }
+
+    private File tileFile(String phase, int startY) {
+        return new File(directory, phase + "-" + startY + ".bin");
+    }
+
+    private void writeManifest() throws IOException {
+        File tmp = new File(directory, MANIFEST + ".tmp");
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8)) {
+            gson.toJson(manifest, out);
+        }
+        Files.move(tmp.toPath(), new File(directory, MANIFEST).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        lastManifestWrite = System.currentTimeMillis();
+    }
+
+    private static Manifest readManifest(File directory) {
+        File file = new File(directory, MANIFEST);
+        if (!file.isFile()) {
+            return null;
+        }
+        try (Reader in = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+            return new Gson().fromJson(in, Manifest.class);
+        } catch (Exception e) {
+            System.err.println("Point de contrôle illisible: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static boolean matches(Manifest manifest, List<File> files, StackingAlgorithm algorithm) {
+        if (manifest.version != VERSION || !algorithm.name().equals(manifest.algorithm) ||
+                manifest.files.size() != files.size()) {
+            return false;
+        }
+        for (int i = 0; i < files.size(); i++) {
+            File file = files.get(i);
+            if (!file.getAbsolutePath().equals(manifest.files.get(i)) ||
+                    file.length() != manifest.fileSizes.get(i) ||
+                    file.lastModified() != manifest.fileDates.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void delete(File directory) throws IOException {
+        File[] children = directory.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                Files.deleteIfExists(child.toPath());
+            }
+        }
+        Files.deleteIfExists(directory.toPath());
+    }
+}
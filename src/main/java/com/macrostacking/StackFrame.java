@@ -0,0 +1,25 @@
+package com.macrostacking;
+
+import java.awt.Rectangle;
+
+/**
+ * Read-only access to one aligned frame of the stack. Kernels pull full-width row
+ * ranges (packed ARGB, as returned by {@link java.awt.image.BufferedImage#getRGB})
+ * so that frame storage can be backed by something other than a BufferedImage.
+ */
+public interface StackFrame {
+    int getWidth();
+
+    int getHeight();
+
+    /** Copies rows [startY, endY) into dst, row stride = width. */
+    void readRows(int startY, int endY, int[] dst);
+
+    /**
+     * Area holding real image data. Pixels outside it (e.g. uncovered borders after
+     * alignment) read as black and must be ignored by the kernels.
+     */
+    default Rectangle getValidBounds() {
+        return new Rectangle(0, 0, getWidth(), getHeight());
+    }
+}
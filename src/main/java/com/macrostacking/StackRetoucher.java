@@ -0,0 +1,185 @@
+package com.macrostacking;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixes one area of a finished stack without running it again. It keeps the aligned
+ * frames of the run (see {@link ImageStacker#setRetainFrames}) and, for a rectangle,
+ * either copies one chosen frame into the result or stacks that rectangle again, with
+ * any algorithm, over the rectangle plus a margin only. Frame pixels and focus scores of
+ * the last area are cached, so trying several algorithms on it reads and scores once.
+ */
+public class StackRetoucher implements AutoCloseable {
+    /**
+     * Pixels stacked around the rectangle and then dropped: enough for the focus measures,
+     * the depth-map median and the guided filter to see the same neighbourhood as in the
+     * full run.
+     */
+    static final int MARGIN = 32;
+
+    private final StackFrame[] frames;
+    private final FrameArena arena;
+    private final BufferedImage result;
+    private final FocusMeasure focusMeasure;
+    private int threadCount;
+
+    // Cropped frames and their scores for the last re-stacked area
+    private Rectangle cachedWindow;
+    private StackFrame[] cachedCrops;
+    private final Map<ScoreKey, double[]> scores = new ConcurrentHashMap<>();
+    private final AtomicLong cachedBytes = new AtomicLong();
+    private final long maxCachedBytes = Runtime.getRuntime().maxMemory() / 8;
+
+    StackRetoucher(StackFrame[] frames, FrameArena arena, BufferedImage result, int threadCount,
+                   FocusMeasure focusMeasure) {
+        this.frames = frames;
+        this.arena = arena;
+        this.result = result;
+        this.threadCount = threadCount;
+        this.focusMeasure = focusMeasure;
+    }
+
+    public void setThreadCount(int count) {
+        this.threadCount = Math.max(1, count);
+    }
+
+    public int getFrameCount() {
+        return frames.length;
+    }
+
+    /** The stack result, retouched in place. */
+    public BufferedImage getResult() {
+        return result;
+    }
+
+    /**
+     * Copies frame {@code frameIndex} into the rectangle; pixels the frame does not cover
+     * after alignment are left as they were. Returns the area actually changed.
+     */
+    public Rectangle forceFrame(Rectangle region, int frameIndex) throws Exception {
+        if (frameIndex < 0 || frameIndex >= frames.length) {
+            throw new Exception("Image source invalide: " + (frameIndex + 1));
+        }
+        Rectangle area = clip(region).intersection(frames[frameIndex].getValidBounds());
+        if (area.isEmpty()) {
+            throw new Exception("L'image " + (frameIndex + 1) + " ne couvre pas cette zone");
+        }
+
+        int width = result.getWidth();
+        int[] rows = new int[area.height * width];
+        frames[frameIndex].readRows(area.y, area.y + area.height, rows);
+        result.setRGB(area.x, area.y, area.width, area.height, rows, area.x, width);
+        return area;
+    }
+
+    /**
+     * Stacks the rectangle again with {@code algorithm} and the measure of the original
+     * run. Returns the area changed.
+     */
+    public Rectangle restack(Rectangle region, StackingAlgorithm algorithm, ImageStacker.ProgressCallback callback)
+            throws Exception {
+        Rectangle area = clip(region);
+        if (area.isEmpty()) {
+            throw new Exception("Zone de retouche vide");
+        }
+        Rectangle window = new Rectangle(area.x - MARGIN, area.y - MARGIN, area.width + 2 * MARGIN,
+                area.height + 2 * MARGIN).intersection(bounds());
+
+        callback.update(0, "Lecture de la zone " + window.width + "x" + window.height + "...");
+        StackFrame[] crops = crops(window);
+
+        ImageStacker stacker = new ImageStacker(algorithm);
+        stacker.setThreadCount(threadCount);
+        stacker.setFocusMeasure(focusMeasure);
+        stacker.setScoreCache(new ImageStacker.ScoreCache() {
+            @Override
+            public double[] get(StackFrame frame, String measureId, int startY) {
+                return scores.get(new ScoreKey(frame, measureId, startY));
+            }
+
+            @Override
+            public void put(StackFrame frame, String measureId, int startY, double[] values) {
+                if (cachedBytes.addAndGet(8L * values.length) <= maxCachedBytes) {
+                    scores.put(new ScoreKey(frame, measureId, startY), values);
+                } else {
+                    cachedBytes.addAndGet(-8L * values.length);
+                }
+            }
+        });
+        BufferedImage patch = stacker.stackFrames(crops, callback);
+
+        int[] rows = new int[area.width * area.height];
+        patch.getRGB(area.x - window.x, area.y - window.y, area.width, area.height, rows, 0, area.width);
+        result.setRGB(area.x, area.y, area.width, area.height, rows, 0, area.width);
+        return area;
+    }
+
+    /** Frees the retained frames; the result stays valid. */
+    @Override
+    public void close() {
+        clearCache();
+        if (arena != null) {
+            arena.close();
+        }
+    }
+
+    /** The frames cropped to the window, read once per window and then reused. */
+    private StackFrame[] crops(Rectangle window) {
+        if (window.equals(cachedWindow)) {
+            return cachedCrops;
+        }
+        clearCache();
+
+        StackFrame[] crops = new StackFrame[frames.length];
+        for (int i = 0; i < frames.length; i++) {
+            TranslatedFrame view = new TranslatedFrame(frames[i], -window.x, -window.y, window.width, window.height);
+            BufferedImage copy = new BufferedImage(window.width, window.height, BufferedImage.TYPE_INT_RGB);
+            int[] pixels = new int[window.width * window.height];
+            view.readRows(0, window.height, pixels);
+            copy.setRGB(0, 0, window.width, window.height, pixels, 0, window.width);
+            crops[i] = new CroppedFrame(copy, view.getValidBounds());
+        }
+        cachedWindow = window;
+        cachedCrops = crops;
+        return crops;
+    }
+
+    private void clearCache() {
+        cachedWindow = null;
+        cachedCrops = null;
+        scores.clear();
+        cachedBytes.set(0);
+    }
+
+    private Rectangle bounds() {
+        return new Rectangle(0, 0, result.getWidth(), result.getHeight());
+    }
+
+    private Rectangle clip(Rectangle region) {
+        Rectangle area = region.intersection(bounds());
+        return area.isEmpty() ? new Rectangle() : area;
+    }
+
+    /** A frame cropped to the window, keeping the part of it that holds real pixels. */
+    private static class CroppedFrame extends BufferedStackFrame {
+        private final Rectangle validBounds;
+
+        CroppedFrame(BufferedImage image, Rectangle validBounds) {
+            super(image);
+            this.validBounds = validBounds;
+        }
+
+        @Override
+        public Rectangle getValidBounds() {
+            return new Rectangle(validBounds);
+        }
+    }
+
+    // StackFrame has no equals(): frames compare by identity
+    private record ScoreKey(StackFrame frame, String measureId, int startY) {
+    }
+}
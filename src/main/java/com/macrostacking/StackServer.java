@@ -0,0 +1,587 @@
+package com.macrostacking;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Headless stacking server: workstations submit jobs over a small HTTP/JSON API and the
+ * server runs them, highest priority first, within one thread and memory budget shared by
+ * every job. A job gets the threads it asks for (all of the budget by default) as soon
+ * as at least one is free, and is planned by {@link MemoryPlanner} against the memory
+ * still free, so a job arriving while another runs falls back to compressed frames or
+ * slabs rather than wait. It waits only when even the leanest plan does not fit.
+ * Start it with
+ * {@code java -cp macro-stacker.jar com.macrostacking.StackServer 8750 [threads] [address]};
+ * it listens on the loopback interface unless an address is given. Any other address
+ * needs a token in {@code STACK_SERVER_TOKEN}, which every request must then send as
+ * {@code Authorization: Bearer <token>}.
+ *
+ * <pre>
+ * POST   /jobs             {"files": [...], "algorithm": "DEPTH_MAP", "format": "TIFF", "priority": 0,
+ *                           "threads": 4, "focusMeasure": "tenengrad", "autoAlign": true, "output": "..."}
+ * GET    /jobs             every job, queued ones in the order they will run
+ * GET    /jobs/{id}        state, progress and status text of one job
+ * GET    /jobs/{id}/result the saved result, once the job is DONE
+ * DELETE /jobs/{id}        cancels a queued or running job
+ * </pre>
+ * File paths are read and written on the server's machine; {@code output} is relative to
+ * the work directory and may not leave it. A finished job is forgotten once its result
+ * has been fetched, or an hour after it ended.
+ */
+public class StackServer {
+    static final String READY_PREFIX = "STACK_SERVER_PORT ";
+    static final int DEFAULT_PORT = 8750;
+    static final String TOKEN_VARIABLE = "STACK_SERVER_TOKEN";
+    private static final long FINISHED_JOB_TTL_MILLIS = 60 * 60 * 1000;
+
+    public enum State {
+        QUEUED, RUNNING, DONE, FAILED, CANCELLED
+    }
+
+    /** Body of POST /jobs; absent fields keep these defaults. */
+    static class JobRequest {
+        List<String> files = new ArrayList<>();
+        String algorithm = StackingAlgorithm.DEPTH_MAP.name();
+        String format = OutputFormat.TIFF.name();
+        String focusMeasure;
+        int priority;
+        int threads;
+        boolean autoAlign = true;
+        String output;
+    }
+
+    /** What GET /jobs returns for one job. */
+    static class JobStatus {
+        String id;
+        State state;
+        int priority;
+        int progress;
+        String status;
+        String error;
+        int threads;
+        String strategy;
+        long memoryMb;
+        String output;
+    }
+
+    private static class Job {
+        final String id;
+        final long sequence;
+        final int priority;
+        final List<File> files;
+        final StackingAlgorithm algorithm;
+        final OutputFormat format;
+        final FocusMeasure focusMeasure;
+        final int requestedThreads;
+        final boolean autoAlign;
+        final File output;
+
+        volatile State state = State.QUEUED;
+        volatile int progress;
+        volatile String status = "En attente";
+        volatile String error;
+        volatile int threads;
+        volatile long memoryBytes;
+        volatile MemoryPlanner.Strategy strategy;
+        volatile Runnable cancelAction;
+        volatile boolean cancelRequested;
+        // When the job reached DONE, FAILED or CANCELLED; 0 while it is queued or running
+        volatile long finishedAt;
+
+        Job(String id, long sequence, int priority, List<File> files, StackingAlgorithm algorithm, OutputFormat format,
+            FocusMeasure focusMeasure, int requestedThreads, boolean autoAlign, File output) {
+            this.id = id;
+            this.sequence = sequence;
+            this.priority = priority;
+            this.files = files;
+            this.algorithm = algorithm;
+            this.format = format;
+            this.focusMeasure = focusMeasure;
+            this.requestedThreads = requestedThreads;
+            this.autoAlign = autoAlign;
+            this.output = output;
+        }
+    }
+
+    private final int threadBudget;
+    private final long memoryBudget;
+    private final File workDirectory;
+    private final Gson gson = new Gson();
+    private final Map<String, Job> jobs = new LinkedHashMap<>();
+    private final PriorityBlockingQueue<Job> queue = new PriorityBlockingQueue<>(16,
+            Comparator.<Job>comparingInt(job -> -job.priority).thenComparingLong(job -> job.sequence));
+    private final AtomicLong sequence = new AtomicLong();
+    private final ExecutorService runner = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "stack-job");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private Thread dispatcher;
+    private HttpServer server;
+    private String token;
+
+    // Free part of the budgets, guarded by this
+    private int freeThreads;
+    private long freeMemory;
+
+    public StackServer(int threadBudget, long memoryBudget, File workDirectory) {
+        this.threadBudget = Math.max(1, threadBudget);
+        this.memoryBudget = memoryBudget;
+        this.workDirectory = workDirectory;
+        this.freeThreads = this.threadBudget;
+        this.freeMemory = memoryBudget;
+    }
+
+    /** Token every request must carry; required to listen on anything but the loopback interface. */
+    public void setToken(String token) {
+        this.token = token != null && !token.isEmpty() ? token : null;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        InetAddress address = args.length > 2 ? InetAddress.getByName(args[2]) : InetAddress.getLoopbackAddress();
+
+        StackServer stackServer = new StackServer(threads, (long) (Runtime.getRuntime().maxMemory() * 0.8),
+                new File(System.getProperty("java.io.tmpdir"), "macro-stacker-jobs"));
+        stackServer.setToken(System.getenv(TOKEN_VARIABLE));
+        int bound = stackServer.start(new InetSocketAddress(address, port));
+        System.out.println(READY_PREFIX + bound);
+        System.out.println("Budget: " + threads + " threads, " + (stackServer.memoryBudget >> 20) + " MB");
+        // Every server thread is a daemon: the process lives as long as the dispatcher
+        stackServer.dispatcher.join();
+    }
+
+    /** Starts listening and running jobs; returns the port, useful when 0 was asked for. */
+    public int start(InetSocketAddress address) throws IOException {
+        if (token == null && !address.getAddress().isLoopbackAddress()) {
+            throw new IOException("Écoute sur " + address.getAddress().getHostAddress() +
+                    " refusée sans jeton (variable " + TOKEN_VARIABLE + ")");
+        }
+        server = HttpServer.create(address, 0);
+        server.createContext("/jobs", this::handle);
+        server.setExecutor(Executors.newFixedThreadPool(4, r -> {
+            Thread thread = new Thread(r, "stack-server-http");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        server.start();
+
+        dispatcher = new Thread(this::dispatch, "stack-dispatcher");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+        return server.getAddress().getPort();
+    }
+
+    /** Stops the API and the dispatcher, and cancels running jobs. */
+    public void stop() {
+        if (server != null) {
+            server.stop(0);
+            ((ExecutorService) server.getExecutor()).shutdownNow();
+        }
+        if (dispatcher != null) {
+            dispatcher.interrupt();
+        }
+        synchronized (jobs) {
+            for (Job job : jobs.values()) {
+                cancel(job);
+            }
+        }
+        runner.shutdown();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String[] parts = exchange.getRequestURI().getPath().replaceAll("/+$", "").split("/");
+            String method = exchange.getRequestMethod();
+            if (!authorized(exchange)) {
+                throw new HttpError(401, "Jeton absent ou invalide");
+            }
+            pruneJobs();
+            // parts: "", "jobs", id, "result"
+            if (parts.length == 2 && method.equals("POST")) {
+                Job job = submit(exchange);
+                sendJson(exchange, 202, status(job));
+            } else if (parts.length == 2 && method.equals("GET")) {
+                sendJson(exchange, 200, listJobs());
+            } else if (parts.length == 3 && method.equals("GET")) {
+                sendJson(exchange, 200, status(findJob(parts[2])));
+            } else if (parts.length == 3 && method.equals("DELETE")) {
+                Job job = findJob(parts[2]);
+                cancel(job);
+                sendJson(exchange, 200, status(job));
+            } else if (parts.length == 4 && parts[3].equals("result") && method.equals("GET")) {
+                sendResult(exchange, findJob(parts[2]));
+            } else {
+                sendError(exchange, 404, "Requête inconnue: " + method + " " + exchange.getRequestURI().getPath());
+            }
+        } catch (HttpError e) {
+            sendError(exchange, e.code, e.getMessage());
+        } catch (Exception e) {
+            e.printStackTrace();
+            sendError(exchange, 500, String.valueOf(e.getMessage()));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private Job submit(HttpExchange exchange) throws IOException, HttpError {
+        JobRequest request;
+        try (InputStreamReader reader = new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8)) {
+            request = gson.fromJson(reader, JobRequest.class);
+        } catch (JsonParseException e) {
+            throw new HttpError(400, "JSON invalide: " + e.getMessage());
+        }
+        if (request == null || request.files == null || request.files.isEmpty()) {
+            throw new HttpError(400, "Aucune image à traiter");
+        }
+
+        List<File> files = new ArrayList<>();
+        for (String path : request.files) {
+            File file = new File(path);
+            if (!file.isFile()) {
+                throw new HttpError(400, "Fichier introuvable: " + path);
+            }
+            files.add(file);
+        }
+
+        StackingAlgorithm algorithm;
+        OutputFormat format;
+        FocusMeasure focusMeasure;
+        try {
+            algorithm = StackingAlgorithm.valueOf(request.algorithm);
+            format = OutputFormat.valueOf(request.format);
+            focusMeasure = request.focusMeasure != null ? FocusMeasures.byId(request.focusMeasure) : null;
+        } catch (IllegalArgumentException | NullPointerException e) {
+            throw new HttpError(400, "Paramètre invalide: " + e.getMessage());
+        }
+
+        // Read once: another request may take the next number meanwhile
+        long jobSequence = sequence.incrementAndGet();
+        String id = Long.toString(jobSequence);
+        File output = outputFile(request.output != null ? request.output : id + File.separator + "resultat", format);
+
+        int threads = request.threads > 0 ? Math.min(request.threads, threadBudget) : threadBudget;
+        Job job = new Job(id, jobSequence, request.priority, files, algorithm, format, focusMeasure, threads,
+                request.autoAlign, output);
+        synchronized (jobs) {
+            jobs.put(id, job);
+        }
+        queue.add(job);
+        System.out.println("Job " + id + " queued: " + files.size() + " files, " + algorithm + ", priority " + job.priority);
+        return job;
+    }
+
+    /** {@code path} under the work directory, with the format's extension; refused if it leaves the directory. */
+    private File outputFile(String path, OutputFormat format) throws IOException, HttpError {
+        if (!workDirectory.isDirectory() && !workDirectory.mkdirs()) {
+            throw new IOException("Impossible de créer le dossier " + workDirectory);
+        }
+        Path root = workDirectory.getCanonicalFile().toPath();
+        Path target = root.resolve(path).normalize();
+        // ImageSaver adds the extension when it is missing
+        if (!target.getFileName().toString().toLowerCase().endsWith(format.getExtension())) {
+            target = target.resolveSibling(target.getFileName() + format.getExtension());
+        }
+        if (!target.startsWith(root) || target.equals(root)) {
+            throw new HttpError(400, "Sortie hors du dossier de travail: " + path);
+        }
+
+        File parent = target.getParent().toFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new HttpError(400, "Impossible de créer le dossier " + parent);
+        }
+        // A link inside the work directory could still point outside it
+        if (!parent.getCanonicalFile().toPath().startsWith(root) ||
+                (Files.exists(target) && !target.toFile().getCanonicalFile().toPath().startsWith(root))) {
+            throw new HttpError(400, "Sortie hors du dossier de travail: " + path);
+        }
+        return target.toFile();
+    }
+
+    private boolean authorized(HttpExchange exchange) {
+        if (token == null) {
+            return true;
+        }
+        String header = exchange.getRequestHeaders().getFirst("Authorization");
+        byte[] expected = ("Bearer " + token).getBytes(StandardCharsets.UTF_8);
+        return header != null && MessageDigest.isEqual(expected, header.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** Forgets jobs that ended more than {@link #FINISHED_JOB_TTL_MILLIS} ago. */
+    private void pruneJobs() {
+        long now = System.currentTimeMillis();
+        synchronized (jobs) {
+            jobs.values().removeIf(job -> job.finishedAt > 0 && now - job.finishedAt > FINISHED_JOB_TTL_MILLIS);
+        }
+    }
+
+    private Job findJob(String id) throws HttpError {
+        synchronized (jobs) {
+            Job job = jobs.get(id);
+            if (job == null) {
+                throw new HttpError(404, "Tâche inconnue: " + id);
+            }
+            return job;
+        }
+    }
+
+    /** Running and finished jobs in submission order, then queued ones in the order they will run. */
+    private List<JobStatus> listJobs() {
+        List<JobStatus> list = new ArrayList<>();
+        List<Job> queued = new ArrayList<>();
+        synchronized (jobs) {
+            for (Job job : jobs.values()) {
+                if (job.state == State.QUEUED) {
+                    queued.add(job);
+                } else {
+                    list.add(status(job));
+                }
+            }
+        }
+        queued.sort(queue.comparator());
+        for (Job job : queued) {
+            list.add(status(job));
+        }
+        return list;
+    }
+
+    private void cancel(Job job) {
+        job.cancelRequested = true;
+        if (job.state == State.QUEUED && queue.remove(job)) {
+            finish(job, State.CANCELLED, "Annulée", null);
+            return;
+        }
+        Runnable action = job.cancelAction;
+        if (action != null) {
+            action.run();
+        }
+        // Wakes the dispatcher if the job is waiting for memory
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    private void sendResult(HttpExchange exchange, Job job) throws IOException, HttpError {
+        if (job.state != State.DONE) {
+            throw new HttpError(409, "Résultat non disponible, tâche " + job.id + ": " + job.state);
+        }
+        exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+        exchange.getResponseHeaders().set("Content-Disposition", "attachment; filename=\"" + job.output.getName() + "\"");
+        exchange.sendResponseHeaders(200, job.output.length());
+        try (OutputStream out = exchange.getResponseBody()) {
+            Files.copy(job.output.toPath(), out);
+        }
+        synchronized (jobs) {
+            jobs.remove(job.id);
+        }
+    }
+
+    private void sendJson(HttpExchange exchange, int code, Object body) throws IOException {
+        byte[] bytes = gson.toJson(body).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(code, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private void sendError(HttpExchange exchange, int code, String message) throws IOException {
+        sendJson(exchange, code, Map.of("error", message));
+    }
+
+    private static JobStatus status(Job job) {
+        JobStatus status = new JobStatus();
+        status.id = job.id;
+        status.state = job.state;
+        status.priority = job.priority;
+        status.progress = job.progress;
+        status.status = job.status;
+        status.error = job.error;
+        status.threads = job.threads;
+        status.strategy = job.strategy != null ? job.strategy.name() : null;
+        status.memoryMb = job.memoryBytes >> 20;
+        status.output = job.output.getPath();
+        return status;
+    }
+
+    /** Takes jobs by priority, waits for their share of the budgets and starts them. */
+    private void dispatch() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                // The job is chosen once a thread is free, so one submitted meanwhile with a higher priority goes first
+                synchronized (this) {
+                    while (freeThreads == 0) {
+                        wait();
+                    }
+                }
+                Job job = queue.take();
+                if (job.cancelRequested) {
+                    finish(job, State.CANCELLED, "Annulée", null);
+                    continue;
+                }
+                MemoryPlanner.Plan plan;
+                try {
+                    plan = reserve(job);
+                } catch (InterruptedException e) {
+                    throw e;
+                } catch (CancellationException e) {
+                    finish(job, State.CANCELLED, "Annulée", null);
+                    continue;
+                } catch (Exception e) {
+                    finish(job, State.FAILED, "Échec", e.getMessage());
+                    continue;
+                }
+                job.state = State.RUNNING;
+                runner.execute(() -> run(job, plan));
+            }
+        } catch (InterruptedException e) {
+            // Server stopped
+        }
+    }
+
+    /**
+     * Takes the job's threads (as many as it asked for and are free, at least one) and
+     * the memory of the best plan that fits in the free memory. Only the dispatcher
+     * takes from the budgets, so waiting here keeps the queue in priority order.
+     */
+    private MemoryPlanner.Plan reserve(Job job) throws Exception {
+        MemoryPlanner planner = new MemoryPlanner(job.algorithm);
+        planner.setThreadCount(job.requestedThreads);
+        planner.setBudgetBytes(memoryBudget);
+        // Fails the job when no plan fits even in the whole budget
+        MemoryPlanner.Plan full = planner.plan(job.files);
+        Dimension size = new Dimension(full.width, full.height);
+
+        synchronized (this) {
+            int threads = Math.min(job.requestedThreads, freeThreads);
+            planner.setThreadCount(threads);
+
+            while (true) {
+                planner.setBudgetBytes(freeMemory);
+                MemoryPlanner.Plan plan;
+                try {
+                    plan = planner.plan(job.files, size);
+                } catch (Exception e) {
+                    plan = null;
+                }
+                if (plan != null) {
+                    freeThreads -= threads;
+                    freeMemory -= plan.estimatedBytes;
+                    job.threads = threads;
+                    job.memoryBytes = plan.estimatedBytes;
+                    job.strategy = plan.strategy;
+                    return plan;
+                }
+                job.status = "En attente de mémoire (" + (freeMemory >> 20) + " Mo libres)";
+                wait();
+                if (job.cancelRequested) {
+                    throw new CancellationException("Tâche annulée");
+                }
+            }
+        }
+    }
+
+    private synchronized void release(Job job) {
+        freeThreads += job.threads;
+        freeMemory += job.memoryBytes;
+        notifyAll();
+    }
+
+    private void run(Job job, MemoryPlanner.Plan plan) {
+        ImageStacker.ProgressCallback callback = (progress, status) -> {
+            job.progress = progress;
+            job.status = status;
+        };
+        System.out.println("Job " + job.id + " started: " + plan.strategy + ", " + job.threads + " threads, " +
+                (plan.estimatedBytes >> 20) + " MB");
+
+        try {
+            if (job.cancelRequested) {
+                throw new CancellationException("Tâche annulée");
+            }
+            BufferedImage result;
+            if (plan.strategy == MemoryPlanner.Strategy.SLABS) {
+                // Slabs cannot be interrupted: a cancel only takes effect before the job starts
+                SlabStacker stacker = new SlabStacker(job.algorithm);
+                stacker.setAutoAlign(job.autoAlign);
+                stacker.setCompressFrames(true);
+                stacker.setThreadCount(job.threads);
+                stacker.setSlabSize(plan.slabSize);
+                stacker.setMemoryBudget(plan.estimatedBytes);
+                stacker.setFocusMeasure(job.focusMeasure);
+                result = stacker.stackImages(job.files, callback);
+            } else {
+                ImageStacker stacker = new ImageStacker(job.algorithm);
+                stacker.setAutoAlign(job.autoAlign);
+                stacker.setCompressFrames(plan.strategy == MemoryPlanner.Strategy.COMPRESSED);
+                stacker.setThreadCount(job.threads);
+                stacker.setFocusMeasure(job.focusMeasure);
+                job.cancelAction = stacker::cancel;
+                if (job.cancelRequested) {
+                    stacker.cancel();
+                }
+                result = plan.strategy == MemoryPlanner.Strategy.STREAMING
+                        ? stacker.stackStreaming(job.files, callback)
+                        : stacker.stackImages(job.files, callback);
+            }
+
+            job.status = "Sauvegarde (" + result.getWidth() + "x" + result.getHeight() + ")...";
+            ImageSaver.saveImage(result, job.output, job.format, job.threads);
+            job.progress = 100;
+            finish(job, State.DONE, "Terminé - " + result.getWidth() + "x" + result.getHeight(), null);
+        } catch (CancellationException e) {
+            finish(job, State.CANCELLED, "Annulée", null);
+        } catch (Exception e) {
+            e.printStackTrace();
+            finish(job, State.FAILED, "Échec", String.valueOf(e.getMessage()));
+        } finally {
+            job.cancelAction = null;
+            // The stackers only return once their workers have stopped, so the budget is really free again
+            release(job);
+        }
+    }
+
+    private void finish(Job job, State state, String status, String error) {
+        job.status = status;
+        job.error = error;
+        job.state = state;
+        job.finishedAt = System.currentTimeMillis();
+        System.out.println("Job " + job.id + " " + state + (error != null ? ": " + error : ""));
+    }
+
+    /** An error answered with its HTTP status. */
+    private static class HttpError extends Exception {
+        final int code;
+
+        HttpError(int code, String message) {
+            super(message);
+            this.code = code;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.macrostacking;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Long-lived owner of a {@link BufferPool}, for an application that stacks the same
+ * frames again and again (trying algorithms or focus measures). Stackers created here
+ * lease their work planes, depth maps and result images from the pool, so repeat runs
+ * allocate next to nothing; results handed back with {@link #recycle} are reused too.
+ */
+public class StackingSession implements AutoCloseable {
+    private final BufferPool pool;
+
+    /** Keeps up to a quarter of the maximum heap between runs. */
+    public StackingSession() {
+        this(Runtime.getRuntime().maxMemory() / 4);
+    }
+
+    public StackingSession(long maxRetainedBytes) {
+        this.pool = new BufferPool(maxRetainedBytes);
+    }
+
+    public ImageStacker createStacker(StackingAlgorithm algorithm) {
+        ImageStacker stacker = new ImageStacker(algorithm);
+        stacker.setBufferPool(pool);
+        return stacker;
+    }
+
+    /** Hands a result back once it has been saved or displayed; it must not be used afterwards. */
+    public void recycle(BufferedImage result) {
+        pool.release(result);
+    }
+
+    public BufferPool getBufferPool() {
+        return pool;
+    }
+
+    /** Drops every pooled buffer, e.g. before loading frames of another size. */
+    @Override
+    public void close() {
+        pool.clear();
+    }
+}
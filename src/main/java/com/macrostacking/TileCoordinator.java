@@ -0,0 +1,357 @@
+package com.macrostacking;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Distributes the stacking of a file stack over {@link TileWorker} processes. The
+ * coordinator decodes and aligns the frames, splits the output into horizontal bands,
+ * and sends every band with a halo of extra rows (covering the score windows, the
+ * depth-map median and the guided filter) to the next free worker, then stitches the
+ * returned rows. Local workers are spawned as child JVMs on localhost; workers started
+ * by hand on other machines can be added with {@link #addRemoteWorker}.
+ */
+public class TileCoordinator {
+    // Depth map: median of the labels, then the guided filter of the weights (two box passes)
+    private static final int ASSEMBLY_HALO_ROWS = ImageStacker.DEPTH_MEDIAN_RADIUS + 2 * ImageStacker.GUIDED_RADIUS;
+    private static final long WORKER_START_TIMEOUT_S = 30;
+
+    private final StackingAlgorithm algorithm;
+    private final List<InetSocketAddress> remoteWorkers = new ArrayList<>();
+    private int localWorkers = 2;
+    private int threadCount;
+    private int bandRows = 256;
+    private boolean autoAlign = true;
+    private boolean compressFrames = false;
+    private boolean offHeapFrames = false;
+    private String workerHeap;
+    private FocusMeasure focusMeasure;
+    private Rectangle region;
+    private int regionMargin = ImageStacker.DEFAULT_REGION_MARGIN;
+    private ImageStacker.TileListener tileListener;
+    private double priorityHeight = 0.5;
+    private volatile ImageStacker loader;
+    private volatile boolean cancelled;
+
+    public TileCoordinator(StackingAlgorithm algorithm) {
+        this.algorithm = algorithm;
+        this.threadCount = Runtime.getRuntime().availableProcessors();
+    }
+
+    public void setLocalWorkers(int count) {
+        this.localWorkers = Math.max(0, count);
+    }
+
+    public void addRemoteWorker(String host, int port) {
+        remoteWorkers.add(new InetSocketAddress(host, port));
+    }
+
+    /** Threads of the coordinator; local workers share them evenly. */
+    public void setThreadCount(int count) {
+        this.threadCount = Math.max(1, count);
+    }
+
+    public void setBandRows(int rows) {
+        this.bandRows = Math.max(16, rows);
+    }
+
+    public void setAutoAlign(boolean autoAlign) {
+        this.autoAlign = autoAlign;
+    }
+
+    public void setCompressFrames(boolean compressFrames) {
+        this.compressFrames = compressFrames;
+    }
+
+    public void setOffHeapFrames(boolean offHeapFrames) {
+        this.offHeapFrames = offHeapFrames;
+    }
+
+    public void setFocusMeasure(FocusMeasure focusMeasure) {
+        this.focusMeasure = focusMeasure;
+    }
+
+    /** See {@link ImageStacker#setRegion}: only the bands of the region are sent out. */
+    public void setRegion(Rectangle region) {
+        this.region = region != null ? new Rectangle(region) : null;
+    }
+
+    public void setRegionMargin(int pixels) {
+        this.regionMargin = Math.max(0, pixels);
+    }
+
+    /** Called with every band as soon as its rows are back from a worker. */
+    public void setTileListener(ImageStacker.TileListener listener) {
+        this.tileListener = listener;
+    }
+
+    /** See {@link ImageStacker#setPriorityHeight}. */
+    public void setPriorityHeight(double fraction) {
+        this.priorityHeight = Math.max(0, Math.min(1, fraction));
+    }
+
+    /** Stops loading or dispatching; bands already sent to a worker are dropped. */
+    public void cancel() {
+        cancelled = true;
+        ImageStacker current = loader;
+        if (current != null) {
+            current.cancel();
+        }
+    }
+
+    /** Maximum heap of spawned workers, e.g. "2g" (JVM default if unset). */
+    public void setWorkerHeap(String heap) {
+        this.workerHeap = heap;
+    }
+
+    public BufferedImage stackImages(List<File> files, ImageStacker.ProgressCallback callback) throws Exception {
+        if (localWorkers == 0 && remoteWorkers.isEmpty()) {
+            throw new Exception("Aucun worker configuré");
+        }
+
+        ImageStacker loader = new ImageStacker(algorithm);
+        this.loader = loader;
+        if (cancelled) {
+            loader.cancel();
+        }
+        loader.setAutoAlign(autoAlign);
+        loader.setCompressFrames(compressFrames);
+        loader.setOffHeapFrames(offHeapFrames);
+        loader.setThreadCount(threadCount);
+        loader.setFocusMeasure(focusMeasure);
+        loader.setRegion(region);
+        loader.setRegionMargin(regionMargin);
+        StackFrame[] frames = loader.loadFrames(files, callback);
+        String measureId = loader.focusMeasure().getId();
+        int halo = loader.focusMeasure().getHalo() + ASSEMBLY_HALO_ROWS;
+
+        int width = frames[0].getWidth();
+        int height = frames[0].getHeight();
+        BufferedImage result = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+
+        List<int[]> ordered = new ArrayList<>();
+        for (int startY = 0; startY < height; startY += bandRows) {
+            ordered.add(new int[]{startY, Math.min(startY + bandRows, height)});
+        }
+        double priorityRow = priorityHeight * height;
+        ordered.sort(Comparator.comparingDouble(band -> Math.abs((band[0] + band[1]) / 2.0 - priorityRow)));
+        Queue<int[]> bands = new ConcurrentLinkedQueue<>(ordered);
+        int bandCount = bands.size();
+
+        callback.update(50, "Démarrage des workers...");
+        List<Worker> workers = startWorkers();
+        callback.update(50, bandCount + " bandes sur " + workers.size() + " workers");
+
+        AtomicInteger completed = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(workers.size());
+        try {
+            // A band lost with its worker goes back in the queue for another round
+            while (!bands.isEmpty()) {
+                List<Worker> alive = workers.stream().filter(w -> !w.failed).toList();
+                if (alive.isEmpty()) {
+                    throw new Exception("Tous les workers ont échoué");
+                }
+
+                List<Future<?>> futures = new ArrayList<>();
+                for (Worker worker : alive) {
+                    futures.add(executor.submit(() -> {
+                        int[] band;
+                        while ((band = bands.poll()) != null) {
+                            if (cancelled) {
+                                throw new CancellationException("Stacking annulé");
+                            }
+                            int[] rows;
+                            try {
+                                rows = worker.stack(frames, measureId, halo, band[0], band[1], width, height);
+                            } catch (IOException e) {
+                                System.err.println("Worker " + worker.name + " perdu: " + e.getMessage());
+                                worker.failed = true;
+                                bands.add(band);
+                                return null;
+                            }
+                            result.setRGB(0, band[0], width, band[1] - band[0], rows, 0, width);
+                            if (tileListener != null) {
+                                tileListener.tileCompleted(result, band[0], band[1]);
+                            }
+
+                            int done = completed.incrementAndGet();
+                            callback.update(50 + done * 50 / bandCount, "Bandes: " + done + "/" + bandCount);
+                        }
+                        return null;
+                    }));
+                }
+
+                try {
+                    for (Future<?> future : futures) {
+                        future.get();
+                    }
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof Exception cause ? cause : e;
+                }
+            }
+        } finally {
+            // Closing the sockets unblocks the band tasks, which must be done before the frames are freed
+            executor.shutdownNow();
+            for (Worker worker : workers) {
+                worker.close();
+            }
+            ImageStacker.stopAndWait(executor);
+            loader.releaseFrames();
+        }
+
+        callback.update(100, "Terminé - " + width + "x" + height);
+        return result;
+    }
+
+    private List<Worker> startWorkers() throws Exception {
+        List<Worker> workers = new ArrayList<>();
+        try {
+            int threadsPerWorker = Math.max(1, threadCount / Math.max(1, localWorkers));
+            for (int i = 0; i < localWorkers; i++) {
+                workers.add(spawnLocal(i, threadsPerWorker));
+            }
+            for (InetSocketAddress address : remoteWorkers) {
+                try {
+                    workers.add(new Worker(address.toString(), new Socket(address.getHostString(), address.getPort()), null));
+                } catch (IOException e) {
+                    System.err.println("Worker " + address + " injoignable: " + e.getMessage());
+                }
+            }
+        } catch (Exception e) {
+            for (Worker worker : workers) {
+                worker.close();
+            }
+            throw e;
+        }
+
+        if (workers.isEmpty()) {
+            throw new Exception("Aucun worker joignable");
+        }
+        return workers;
+    }
+
+    private Worker spawnLocal(int index, int threads) throws Exception {
+        List<String> command = new ArrayList<>();
+        command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+        if (workerHeap != null) {
+            command.add("-Xmx" + workerHeap);
+        }
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(TileWorker.class.getName());
+        command.add("0");
+        command.add(String.valueOf(threads));
+        command.add("--once");
+
+        Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+
+        CompletableFuture<Integer> port = new CompletableFuture<>();
+        Thread reader = new Thread(() -> {
+            try {
+                String line;
+                while ((line = output.readLine()) != null) {
+                    if (line.startsWith(TileWorker.READY_PREFIX)) {
+                        port.complete(Integer.parseInt(line.substring(TileWorker.READY_PREFIX.length()).trim()));
+                    } else {
+                        // Keep draining the worker's log so it never blocks on a full pipe
+                        System.out.println("[worker " + index + "] " + line);
+                    }
+                }
+            } catch (IOException | NumberFormatException e) {
+                port.completeExceptionally(e);
+            }
+            port.completeExceptionally(new IOException("le processus s'est arrêté"));
+        }, "tile-worker-" + index + "-output");
+        reader.setDaemon(true);
+        reader.start();
+
+        try {
+            int workerPort = port.get(WORKER_START_TIMEOUT_S, TimeUnit.SECONDS);
+            return new Worker("local-" + index, new Socket(InetAddress.getLoopbackAddress(), workerPort), process);
+        } catch (Exception e) {
+            process.destroyForcibly();
+            throw new Exception("Impossible de démarrer le worker " + index + ": " + e.getMessage());
+        }
+    }
+
+    private class Worker {
+        final String name;
+        final Socket socket;
+        final Process process;
+        final DataInputStream in;
+        final DataOutputStream out;
+        volatile boolean failed;
+
+        Worker(String name, Socket socket, Process process) throws IOException {
+            this.name = name;
+            this.socket = socket;
+            this.process = process;
+            socket.setTcpNoDelay(true);
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+        }
+
+        /** Sends rows [startY, endY) plus halo and returns the stacked rows [startY, endY). */
+        int[] stack(StackFrame[] frames, String measureId, int halo, int startY, int endY, int width, int height)
+                throws Exception {
+            int haloStart = Math.max(0, startY - halo);
+            int haloEnd = Math.min(height, endY + halo);
+            int rows = haloEnd - haloStart;
+            Rectangle band = new Rectangle(0, haloStart, width, rows);
+            int[] pixels = new int[rows * width];
+
+            out.writeUTF(algorithm.name());
+            out.writeUTF(measureId);
+            out.writeInt(width);
+            out.writeInt(rows);
+            out.writeInt(startY - haloStart);
+            out.writeInt(endY - startY);
+            out.writeInt(frames.length);
+            for (StackFrame frame : frames) {
+                Rectangle valid = frame.getValidBounds().intersection(band);
+                if (valid.isEmpty()) {
+                    out.writeInt(0);
+                    out.writeInt(0);
+                    out.writeInt(0);
+                    out.writeInt(0);
+                    continue;
+                }
+                out.writeInt(valid.x);
+                out.writeInt(valid.y - haloStart);
+                out.writeInt(valid.width);
+                out.writeInt(valid.height);
+                frame.readRows(haloStart, haloEnd, pixels);
+                TileWorker.writeInts(out, pixels);
+            }
+            out.flush();
+
+            if (in.readInt() != TileWorker.STATUS_OK) {
+                throw new Exception("Erreur du worker " + name + ": " + in.readUTF());
+            }
+            return TileWorker.readInts(in, (endY - startY) * width);
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // already gone
+            }
+            if (process != null) {
+                process.destroy();
+            }
+        }
+    }
+}
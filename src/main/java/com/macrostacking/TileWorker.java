@@ -0,0 +1,154 @@
+package com.macrostacking;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Worker process for {@link TileCoordinator}: listens on a TCP port and stacks the bands
+ * it receives with the regular {@link ImageStacker} kernels (alignment is done by the
+ * coordinator). Start it by hand on other machines:
+ * {@code java -cp macro-stacker.jar com.macrostacking.TileWorker 5500 [threads]};
+ * it then listens on every interface. Workers spawned with {@code --once} only listen
+ * on the loopback interface.
+ *
+ * Request: algorithm name, focus measure id, width, band rows, first and count of result rows inside the
+ * band, frame count, then per frame its valid rectangle (band coordinates) and its
+ * pixels when that rectangle is not empty. Response: status, then the result rows or
+ * an error message.
+ */
+public class TileWorker {
+    static final String READY_PREFIX = "TILE_WORKER_PORT ";
+    static final int STATUS_OK = 0;
+    static final int STATUS_ERROR = 1;
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 0;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        // Spawned workers serve their coordinator only and exit with it
+        boolean once = args.length > 2 && args[2].equals("--once");
+
+        try (ServerSocket server = once ? new ServerSocket(port, 0, InetAddress.getLoopbackAddress())
+                : new ServerSocket(port)) {
+            System.out.println(READY_PREFIX + server.getLocalPort());
+            System.out.flush();
+
+            do {
+                Socket socket = server.accept();
+                Thread thread = new Thread(() -> serve(socket, threads), "tile-worker");
+                if (once) {
+                    thread.run();
+                } else {
+                    thread.start();
+                }
+            } while (!once);
+        }
+    }
+
+    private static void serve(Socket socket, int threads) {
+        try (socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16))) {
+            socket.setTcpNoDelay(true);
+
+            while (true) {
+                String algorithmName;
+                try {
+                    algorithmName = in.readUTF();
+                } catch (EOFException e) {
+                    return;
+                }
+
+                String measureId = in.readUTF();
+                int width = in.readInt();
+                int bandRows = in.readInt();
+                int resultStart = in.readInt();
+                int resultRows = in.readInt();
+                StackFrame[] frames = new StackFrame[in.readInt()];
+                for (int f = 0; f < frames.length; f++) {
+                    Rectangle valid = new Rectangle(in.readInt(), in.readInt(), in.readInt(), in.readInt());
+                    int[] pixels = valid.isEmpty() ? null : readInts(in, width * bandRows);
+                    frames[f] = new BandFrame(width, bandRows, pixels, valid);
+                }
+
+                try {
+                    ImageStacker stacker = new ImageStacker(StackingAlgorithm.valueOf(algorithmName));
+                    stacker.setAutoAlign(false);
+                    stacker.setFocusMeasure(FocusMeasures.byId(measureId));
+                    stacker.setThreadCount(threads);
+                    BufferedImage result = stacker.stackFrames(frames, (p, s) -> {});
+
+                    int[] rows = result.getRGB(0, resultStart, width, resultRows, null, 0, width);
+                    out.writeInt(STATUS_OK);
+                    writeInts(out, rows);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    out.writeInt(STATUS_ERROR);
+                    out.writeUTF(String.valueOf(e.getMessage()));
+                }
+                out.flush();
+            }
+        } catch (IOException e) {
+            System.err.println("Connexion perdue: " + e.getMessage());
+        }
+    }
+
+    static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(values.length * 4);
+        buffer.asIntBuffer().put(values);
+        out.write(buffer.array());
+    }
+
+    static int[] readInts(DataInputStream in, int count) throws IOException {
+        byte[] bytes = new byte[count * 4];
+        in.readFully(bytes);
+        int[] values = new int[count];
+        ByteBuffer.wrap(bytes).asIntBuffer().get(values);
+        return values;
+    }
+
+    /** One frame restricted to a band, with its valid area; missing frames read as black. */
+    private static class BandFrame implements StackFrame {
+        private final int width;
+        private final int height;
+        private final int[] pixels;
+        private final Rectangle valid;
+
+        BandFrame(int width, int height, int[] pixels, Rectangle valid) {
+            this.width = width;
+            this.height = height;
+            this.pixels = pixels;
+            this.valid = valid;
+        }
+
+        @Override
+        public int getWidth() {
+            return width;
+        }
+
+        @Override
+        public int getHeight() {
+            return height;
+        }
+
+        @Override
+        public Rectangle getValidBounds() {
+            return new Rectangle(valid);
+        }
+
+        @Override
+        public void readRows(int startY, int endY, int[] dst) {
+            int length = (endY - startY) * width;
+            if (pixels == null) {
+                Arrays.fill(dst, 0, length, 0xFF000000);
+            } else {
+                System.arraycopy(pixels, startY * width, dst, 0, length);
+            }
+        }
+    }
+}
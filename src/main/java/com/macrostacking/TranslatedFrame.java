@@ -0,0 +1,90 @@
+package com.macrostacking;
+
+import java.awt.Rectangle;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * View of a source frame shifted by (dx, dy) into a target canvas, without copying
+ * the pixels. Target pixel (x, y) maps to source pixel (x - dx, y - dy); the part of
+ * the canvas not covered by the source is reported through {@link #getValidBounds()}.
+ */
+public class TranslatedFrame implements StackFrame {
+    // Source rows of each thread's calls, kept since tiles keep the same height; a stack
+    // because the source can itself be a TranslatedFrame reading on the same thread
+    private static final ThreadLocal<ArrayDeque<int[]>> scratch = ThreadLocal.withInitial(ArrayDeque::new);
+
+    private final StackFrame source;
+    private final int dx;
+    private final int dy;
+    private final int width;
+    private final int height;
+    private final Rectangle validBounds;
+
+    public TranslatedFrame(StackFrame source, int dx, int dy, int width, int height) {
+        this.source = source;
+        this.dx = dx;
+        this.dy = dy;
+        this.width = width;
+        this.height = height;
+
+        Rectangle covered = new Rectangle(dx, dy, source.getWidth(), source.getHeight());
+        Rectangle sourceValid = source.getValidBounds();
+        sourceValid.translate(dx, dy);
+        this.validBounds = covered.intersection(sourceValid).intersection(new Rectangle(0, 0, width, height));
+    }
+
+    public int getOffsetX() {
+        return dx;
+    }
+
+    public int getOffsetY() {
+        return dy;
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public Rectangle getValidBounds() {
+        return new Rectangle(validBounds);
+    }
+
+    @Override
+    public void readRows(int startY, int endY, int[] dst) {
+        Arrays.fill(dst, 0, (endY - startY) * width, 0xFF000000);
+
+        int sourceWidth = source.getWidth();
+        int srcStartY = Math.max(0, startY - dy);
+        int srcEndY = Math.min(source.getHeight(), endY - dy);
+        int startX = Math.max(0, dx);
+        int endX = Math.min(width, dx + sourceWidth);
+        if (srcStartY >= srcEndY || startX >= endX) {
+            return;
+        }
+
+        ArrayDeque<int[]> buffers = scratch.get();
+        int length = (srcEndY - srcStartY) * sourceWidth;
+        int[] rows = buffers.poll();
+        if (rows == null || rows.length < length) {
+            rows = new int[length];
+        }
+        try {
+            source.readRows(srcStartY, srcEndY, rows);
+
+            for (int sy = srcStartY; sy < srcEndY; sy++) {
+                System.arraycopy(rows, (sy - srcStartY) * sourceWidth + (startX - dx),
+                        dst, (sy + dy - startY) * width + startX, endX - startX);
+            }
+        } finally {
+            buffers.push(rows);
+        }
+    }
+}
@@ -0,0 +1,394 @@
+package com.macrostacking;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseWheelEvent;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Zoom and pan view of an image of any size. Only the tiles in view are drawn, from a
+ * mip-mapped tile cache (level n halves the image n times, each pixel the mean of four
+ * of the level below) filled lazily by background threads; a tile not ready yet is drawn
+ * from a coarser one meanwhile. The cache holds a
+ * fixed number of tiles, so the view costs the same memory for a 1 MP frame as for a
+ * 100 MP composite. Wheel zooms around the cursor, dragging pans, double-click switches
+ * between fit and 100 %.
+ */
+public class ZoomableImageView extends JComponent {
+    private static final int TILE_SIZE = 256;
+    // 256 KB each: at most 48 MB, about three screens of tiles
+    private static final int MAX_CACHED_TILES = 192;
+    private static final double MAX_ZOOM = 16;
+
+    private BufferedImage image;
+    private String message = "";
+    private double zoom = 1;
+    private double offsetX;
+    private double offsetY;
+    private boolean fitted = true;
+    private boolean panEnabled = true;
+    private Point dragStart;
+
+    private final Map<TileKey, BufferedImage> tiles = new LinkedHashMap<>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<TileKey, BufferedImage> eldest) {
+            return size() > MAX_CACHED_TILES;
+        }
+    };
+    private final Set<TileKey> requested = new HashSet<>();
+    // Tiles of the last paint: queued tiles scrolled out of view meanwhile are skipped
+    private volatile Set<TileKey> visible = Collections.emptySet();
+    // Bumped when the image or its pixels change, so tiles computed before are dropped
+    private int generation;
+    private final ExecutorService renderer = Executors.newFixedThreadPool(
+            Math.max(1, Runtime.getRuntime().availableProcessors() - 1), r -> {
+                Thread thread = new Thread(r, "preview-tiles");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    public ZoomableImageView() {
+        setOpaque(true);
+        setBackground(Color.DARK_GRAY);
+        setForeground(Color.LIGHT_GRAY);
+
+        MouseAdapter navigation = new MouseAdapter() {
+            @Override
+            public void mouseWheelMoved(MouseWheelEvent e) {
+                if (image != null) {
+                    zoomAt(e.getPoint(), zoom * Math.pow(1.25, -e.getPreciseWheelRotation()));
+                }
+            }
+
+            @Override
+            public void mousePressed(MouseEvent e) {
+                dragStart = panEnabled && SwingUtilities.isLeftMouseButton(e) ? e.getPoint() : null;
+            }
+
+            @Override
+            public void mouseDragged(MouseEvent e) {
+                if (dragStart != null && image != null) {
+                    offsetX += e.getX() - dragStart.x;
+                    offsetY += e.getY() - dragStart.y;
+                    dragStart = e.getPoint();
+                    fitted = false;
+                    repaint();
+                }
+            }
+
+            @Override
+            public void mouseReleased(MouseEvent e) {
+                dragStart = null;
+            }
+
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                if (e.getClickCount() == 2 && panEnabled && image != null) {
+                    if (fitted) {
+                        zoomAt(e.getPoint(), 1);
+                    } else {
+                        fit();
+                    }
+                }
+            }
+        };
+        addMouseListener(navigation);
+        addMouseMotionListener(navigation);
+        addMouseWheelListener(navigation);
+    }
+
+    /** Shows {@code image} fitted to the view; the same image again is redrawn from scratch. */
+    public void setImage(BufferedImage image) {
+        boolean sameSize = this.image != null && image != null &&
+                this.image.getWidth() == image.getWidth() && this.image.getHeight() == image.getHeight();
+        this.image = image;
+        this.message = "";
+        clearTiles();
+        if (!sameSize) {
+            fitted = true;
+        }
+        if (fitted) {
+            fit();
+        }
+        repaint();
+    }
+
+    public BufferedImage getImage() {
+        return image;
+    }
+
+    /** Text shown instead of an image. */
+    public void setMessage(String message) {
+        this.image = null;
+        this.message = message;
+        clearTiles();
+        repaint();
+    }
+
+    /** Rows {@code startY} to {@code endY} of the image changed: their tiles are rebuilt. */
+    public void invalidateRows(int startY, int endY) {
+        synchronized (tiles) {
+            tiles.keySet().removeIf(key -> {
+                int top = key.y * (TILE_SIZE << key.level);
+                return top < endY && top + (TILE_SIZE << key.level) > startY;
+            });
+            requested.clear();
+            generation++;
+        }
+        repaint();
+    }
+
+    /** Off while the parent uses drags for something else, such as drawing a rectangle. */
+    public void setPanEnabled(boolean enabled) {
+        this.panEnabled = enabled;
+    }
+
+    /** Image coordinates of a point of the view, outside the image if the point is. */
+    public Point.Double toImage(Point point) {
+        return new Point.Double((point.x - offsetX) / zoom, (point.y - offsetY) / zoom);
+    }
+
+    /** View coordinates of a point of the image. */
+    public Point toView(double x, double y) {
+        return new Point((int) Math.round(offsetX + x * zoom), (int) Math.round(offsetY + y * zoom));
+    }
+
+    public void fit() {
+        if (image == null || getWidth() <= 0 || getHeight() <= 0) {
+            fitted = true;
+            return;
+        }
+        zoom = Math.min((double) getWidth() / image.getWidth(), (double) getHeight() / image.getHeight());
+        offsetX = (getWidth() - image.getWidth() * zoom) / 2;
+        offsetY = (getHeight() - image.getHeight() * zoom) / 2;
+        fitted = true;
+        repaint();
+    }
+
+    private void zoomAt(Point anchor, double newZoom) {
+        double fitZoom = Math.min((double) getWidth() / image.getWidth(), (double) getHeight() / image.getHeight());
+        newZoom = Math.max(Math.min(fitZoom, 1) / 2, Math.min(MAX_ZOOM, newZoom));
+        Point.Double target = toImage(anchor);
+        zoom = newZoom;
+        offsetX = anchor.x - target.x * zoom;
+        offsetY = anchor.y - target.y * zoom;
+        fitted = false;
+        repaint();
+    }
+
+    @Override
+    public void setBounds(int x, int y, int width, int height) {
+        super.setBounds(x, y, width, height);
+        if (fitted) {
+            fit();
+        }
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        g.setColor(getBackground());
+        g.fillRect(0, 0, getWidth(), getHeight());
+        if (image == null) {
+            if (!message.isEmpty()) {
+                FontMetrics metrics = g.getFontMetrics();
+                g.setColor(getForeground());
+                g.drawString(message, (getWidth() - metrics.stringWidth(message)) / 2, getHeight() / 2);
+            }
+            return;
+        }
+
+        Graphics2D g2d = (Graphics2D) g.create();
+        g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, zoom >= 1
+                ? RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR
+                : RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+
+        // Finest level whose pixels are still no smaller than the screen's
+        int level = 0;
+        while (zoom * (2 << level) <= 1 && (TILE_SIZE << level) < Math.max(image.getWidth(), image.getHeight())) {
+            level++;
+        }
+        int span = TILE_SIZE << level;
+        Point.Double topLeft = toImage(new Point(0, 0));
+        Point.Double bottomRight = toImage(new Point(getWidth(), getHeight()));
+        int firstX = Math.max(0, (int) Math.floor(topLeft.x / span));
+        int firstY = Math.max(0, (int) Math.floor(topLeft.y / span));
+        int lastX = Math.min((image.getWidth() - 1) / span, (int) Math.floor(bottomRight.x / span));
+        int lastY = Math.min((image.getHeight() - 1) / span, (int) Math.floor(bottomRight.y / span));
+
+        Set<TileKey> inView = new HashSet<>();
+        for (int ty = firstY; ty <= lastY; ty++) {
+            for (int tx = firstX; tx <= lastX; tx++) {
+                inView.add(new TileKey(level, tx, ty));
+            }
+        }
+        visible = inView;
+
+        for (int ty = firstY; ty <= lastY; ty++) {
+            for (int tx = firstX; tx <= lastX; tx++) {
+                TileKey key = new TileKey(level, tx, ty);
+                BufferedImage tile = tile(key);
+                if (tile != null) {
+                    drawTile(g2d, key, tile, tx * span, ty * span, span);
+                } else {
+                    drawFallback(g2d, key);
+                }
+            }
+        }
+        g2d.dispose();
+    }
+
+    /** Draws the image area {@code x, y, span} from a tile covering it, possibly larger. */
+    private void drawTile(Graphics2D g2d, TileKey key, BufferedImage tile, int x, int y, int span) {
+        int step = 1 << key.level;
+        int tileX = TILE_SIZE * key.x;
+        int tileY = TILE_SIZE * key.y;
+        int sx = Math.min(tile.getWidth(), (x >> key.level) - tileX);
+        int sy = Math.min(tile.getHeight(), (y >> key.level) - tileY);
+        int sw = Math.min(tile.getWidth() - sx, span / step);
+        int sh = Math.min(tile.getHeight() - sy, span / step);
+        if (sw <= 0 || sh <= 0) {
+            return;
+        }
+        int right = Math.min(image.getWidth(), x + sw * step);
+        int bottom = Math.min(image.getHeight(), y + sh * step);
+        Point from = toView(x, y);
+        Point to = toView(right, bottom);
+        g2d.drawImage(tile, from.x, from.y, to.x, to.y, sx, sy, sx + sw, sy + sh, null);
+    }
+
+    /** A coarser cached tile over the same area, until the wanted one is ready. */
+    private void drawFallback(Graphics2D g2d, TileKey key) {
+        int span = TILE_SIZE << key.level;
+        for (int level = key.level + 1; (TILE_SIZE << (level - 1)) < Math.max(image.getWidth(), image.getHeight()); level++) {
+            int shift = level - key.level;
+            TileKey coarser = new TileKey(level, key.x >> shift, key.y >> shift);
+            BufferedImage tile;
+            synchronized (tiles) {
+                tile = tiles.get(coarser);
+            }
+            if (tile != null) {
+                drawTile(g2d, coarser, tile, key.x * span, key.y * span, span);
+                return;
+            }
+        }
+    }
+
+    /** The cached tile, or null after queuing it. */
+    private BufferedImage tile(TileKey key) {
+        BufferedImage source = image;
+        int queuedGeneration;
+        synchronized (tiles) {
+            BufferedImage tile = tiles.get(key);
+            if (tile != null || !requested.add(key)) {
+                return tile;
+            }
+            queuedGeneration = generation;
+        }
+
+        renderer.execute(() -> {
+            if (!visible.contains(key)) {
+                synchronized (tiles) {
+                    requested.remove(key);
+                }
+                return;
+            }
+            BufferedImage tile = renderTile(source, key, queuedGeneration);
+            synchronized (tiles) {
+                requested.remove(key);
+                // Pixels changed meanwhile: the next paint queues the tile again
+                if (generation == queuedGeneration) {
+                    tiles.put(key, tile);
+                }
+            }
+            SwingUtilities.invokeLater(this::repaint);
+        });
+        return null;
+    }
+
+    /**
+     * One tile of a level. Level 0 is copied; a reduced tile box-filters the four tiles of
+     * the level below it, taken from the cache when they are there and rendered (without
+     * caching them) otherwise.
+     */
+    private BufferedImage renderTile(BufferedImage source, TileKey key, int queuedGeneration) {
+        int step = 1 << key.level;
+        int x0 = key.x * TILE_SIZE * step;
+        int y0 = key.y * TILE_SIZE * step;
+        int width = Math.min(TILE_SIZE, (source.getWidth() - x0 + step - 1) / step);
+        int height = Math.min(TILE_SIZE, (source.getHeight() - y0 + step - 1) / step);
+        BufferedImage tile = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] pixels = ((DataBufferInt) tile.getRaster().getDataBuffer()).getData();
+
+        if (step == 1) {
+            source.getRGB(x0, y0, width, height, pixels, 0, width);
+            return tile;
+        }
+
+        int half = TILE_SIZE / 2;
+        int childSpan = TILE_SIZE << (key.level - 1);
+        for (int quadrant = 0; quadrant < 4; quadrant++) {
+            TileKey child = new TileKey(key.level - 1, key.x * 2 + (quadrant & 1), key.y * 2 + (quadrant >> 1));
+            if (child.x * childSpan >= source.getWidth() || child.y * childSpan >= source.getHeight()) {
+                continue;
+            }
+            BufferedImage childTile = cachedTile(child, queuedGeneration);
+            if (childTile == null) {
+                childTile = renderTile(source, child, queuedGeneration);
+            }
+            int[] childPixels = ((DataBufferInt) childTile.getRaster().getDataBuffer()).getData();
+            int childWidth = childTile.getWidth();
+            int childHeight = childTile.getHeight();
+            int offsetX = (quadrant & 1) * half;
+            int offsetY = (quadrant >> 1) * half;
+
+            for (int cy = 0; cy < childHeight; cy += 2) {
+                int rows = Math.min(2, childHeight - cy);
+                for (int cx = 0; cx < childWidth; cx += 2) {
+                    int columns = Math.min(2, childWidth - cx);
+                    int r = 0, g = 0, b = 0;
+                    for (int j = 0; j < rows; j++) {
+                        for (int i = 0; i < columns; i++) {
+                            int rgb = childPixels[(cy + j) * childWidth + cx + i];
+                            r += (rgb >> 16) & 0xFF;
+                            g += (rgb >> 8) & 0xFF;
+                            b += rgb & 0xFF;
+                        }
+                    }
+                    int count = rows * columns;
+                    pixels[(offsetY + cy / 2) * width + offsetX + cx / 2] =
+                            ((r / count) << 16) | ((g / count) << 8) | (b / count);
+                }
+            }
+        }
+        return tile;
+    }
+
+    /** A tile already in the cache, if it holds the pixels of that generation. */
+    private BufferedImage cachedTile(TileKey key, int queuedGeneration) {
+        synchronized (tiles) {
+            return generation == queuedGeneration ? tiles.get(key) : null;
+        }
+    }
+
+    private void clearTiles() {
+        synchronized (tiles) {
+            tiles.clear();
+            requested.clear();
+            generation++;
+        }
+        visible = Collections.emptySet();
+    }
+
+    private record TileKey(int level, int x, int y) {
+    }
+}
@@ -0,0 +1,219 @@
+package com.macrostacking;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.reflect.TypeToken;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Accuracy regression check for the stacking kernels. Every algorithm is run on synthetic
+ * series ({@link SyntheticStack}), without alignment on a still series and with alignment
+ * on a drifting, breathing one. PSNR and SSIM against the ground truth are compared with
+ * the saved baseline; every algorithm must also give the same pixels whatever the thread
+ * count and tile height. Runtimes are printed but not checked.
+ *
+ * <pre>
+ * mvn test -Dtest=RegressionSuiteTest -Dregression.update=true
+ * </pre>
+ * rewrites {@code src/test/resources/regression-baseline.json} from the current results.
+ */
+class RegressionSuiteTest {
+    // Allowed loss before a result counts as a regression
+    private static final double PSNR_TOLERANCE = 0.05;
+    private static final double SSIM_TOLERANCE = 0.001;
+    private static final int SSIM_WINDOW = 8;
+    private static final int[][] DETERMINISM_CONFIGS = {{1, 16}, {2, 64}, {4, 7}};
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+    private static final int FRAME_COUNT = 8;
+    private static final String BASELINE = "regression-baseline.json";
+
+    static class Measure {
+        double psnr;
+        double ssim;
+
+        Measure(double psnr, double ssim) {
+            this.psnr = psnr;
+            this.ssim = ssim;
+        }
+    }
+
+    private static final boolean UPDATE = Boolean.getBoolean("regression.update");
+    private static final Map<String, Measure> results = new TreeMap<>();
+    private static Map<String, Measure> baseline;
+    private static SyntheticStack still;
+    private static SyntheticStack drifting;
+    private static BufferedImage[] stillFrames;
+    private static BufferedImage[] driftingFrames;
+
+    @BeforeAll
+    static void renderSeries() throws Exception {
+        baseline = readBaseline();
+        still = new SyntheticStack(WIDTH, HEIGHT, FRAME_COUNT);
+        drifting = new SyntheticStack(WIDTH, HEIGHT, FRAME_COUNT);
+        drifting.setSeed(2);
+        drifting.setMaxShift(Math.min(WIDTH, HEIGHT) / 40);
+        drifting.setMagnification(0.002);
+        stillFrames = still.render();
+        driftingFrames = drifting.render();
+    }
+
+    @AfterAll
+    static void writeBaseline() throws Exception {
+        if (UPDATE) {
+            File file = new File("src/test/resources", BASELINE);
+            Files.writeString(file.toPath(), new GsonBuilder().setPrettyPrinting().create().toJson(results),
+                    StandardCharsets.UTF_8);
+            System.out.println("Référence enregistrée: " + file);
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(StackingAlgorithm.class)
+    void stillSeriesKeepsItsAccuracy(StackingAlgorithm algorithm) throws Exception {
+        measure("fixe/" + algorithm.name(), still, stillFrames, algorithm, false);
+    }
+
+    @ParameterizedTest
+    @EnumSource(StackingAlgorithm.class)
+    void driftingSeriesKeepsItsAccuracy(StackingAlgorithm algorithm) throws Exception {
+        measure("aligné/" + algorithm.name(), drifting, driftingFrames, algorithm, true);
+    }
+
+    @ParameterizedTest
+    @EnumSource(StackingAlgorithm.class)
+    void resultDoesNotDependOnThreadsOrTiles(StackingAlgorithm algorithm) throws Exception {
+        int[] expected = null;
+        for (int[] config : DETERMINISM_CONFIGS) {
+            ImageStacker stacker = new ImageStacker(algorithm);
+            stacker.setAutoAlign(false);
+            stacker.setThreadCount(config[0]);
+            stacker.setTileHeight(config[1]);
+            BufferedImage result = stacker.stackImages(stillFrames, (p, s) -> {});
+            int[] pixels = result.getRGB(0, 0, WIDTH, HEIGHT, null, 0, WIDTH);
+
+            if (expected == null) {
+                expected = pixels;
+            } else {
+                assertArrayEquals(expected, pixels, algorithm.name() + ": pixels différents avec " + config[0] +
+                        " threads et des tuiles de " + config[1] + " lignes");
+            }
+        }
+    }
+
+    private void measure(String name, SyntheticStack stack, BufferedImage[] frames, StackingAlgorithm algorithm,
+                         boolean align) throws Exception {
+        ImageStacker stacker = new ImageStacker(algorithm);
+        stacker.setAutoAlign(align);
+
+        long start = System.nanoTime();
+        BufferedImage result = stacker.stackImages(frames, (p, s) -> {});
+        long millis = (System.nanoTime() - start) / 1_000_000;
+
+        // Alignment crops and magnification smears the borders; score the common area only
+        int margin = 8 + stack.getMaxShift() + (int) Math.ceil(stack.getMagnification() * Math.max(WIDTH, HEIGHT) / 2);
+        BufferedImage truth = stack.getGroundTruth();
+        Measure measure = new Measure(psnr(truth, result, margin), ssim(truth, result, margin));
+        synchronized (results) {
+            results.put(name, measure);
+        }
+        System.out.println(String.format("%-40s %8.2f %8.4f %8d ms", name, measure.psnr, measure.ssim, millis));
+        if (UPDATE) {
+            return;
+        }
+
+        Measure reference = baseline != null ? baseline.get(name) : null;
+        assertNotNull(reference, "Pas de référence pour " + name + " (relancez avec -Dregression.update=true)");
+        assertTrue(measure.psnr >= reference.psnr - PSNR_TOLERANCE,
+                name + ": PSNR " + format(measure.psnr) + " < " + format(reference.psnr));
+        assertTrue(measure.ssim >= reference.ssim - SSIM_TOLERANCE,
+                name + ": SSIM " + format(measure.ssim) + " < " + format(reference.ssim));
+    }
+
+    /** PSNR over the three channels, inside the margin. */
+    static double psnr(BufferedImage truth, BufferedImage image, int margin) {
+        double sum = 0;
+        long count = 0;
+        for (int y = margin; y < truth.getHeight() - margin; y++) {
+            for (int x = margin; x < truth.getWidth() - margin; x++) {
+                int a = truth.getRGB(x, y);
+                int b = image.getRGB(x, y);
+                for (int shift = 0; shift <= 16; shift += 8) {
+                    int d = ((a >> shift) & 0xFF) - ((b >> shift) & 0xFF);
+                    sum += d * d;
+                }
+                count += 3;
+            }
+        }
+        double mse = sum / Math.max(1, count);
+        return mse == 0 ? 99 : 10 * Math.log10(255.0 * 255.0 / mse);
+    }
+
+    /** Mean SSIM of the luminance over non-overlapping windows, inside the margin. */
+    static double ssim(BufferedImage truth, BufferedImage image, int margin) {
+        double c1 = (0.01 * 255) * (0.01 * 255);
+        double c2 = (0.03 * 255) * (0.03 * 255);
+        double total = 0;
+        int windows = 0;
+        int n = SSIM_WINDOW * SSIM_WINDOW;
+
+        for (int wy = margin; wy + SSIM_WINDOW <= truth.getHeight() - margin; wy += SSIM_WINDOW) {
+            for (int wx = margin; wx + SSIM_WINDOW <= truth.getWidth() - margin; wx += SSIM_WINDOW) {
+                double sumA = 0, sumB = 0, sumAA = 0, sumBB = 0, sumAB = 0;
+                for (int y = wy; y < wy + SSIM_WINDOW; y++) {
+                    for (int x = wx; x < wx + SSIM_WINDOW; x++) {
+                        double a = luminance(truth.getRGB(x, y));
+                        double b = luminance(image.getRGB(x, y));
+                        sumA += a;
+                        sumB += b;
+                        sumAA += a * a;
+                        sumBB += b * b;
+                        sumAB += a * b;
+                    }
+                }
+                double meanA = sumA / n;
+                double meanB = sumB / n;
+                double varA = sumAA / n - meanA * meanA;
+                double varB = sumBB / n - meanB * meanB;
+                double cov = sumAB / n - meanA * meanB;
+                total += ((2 * meanA * meanB + c1) * (2 * cov + c2)) /
+                        ((meanA * meanA + meanB * meanB + c1) * (varA + varB + c2));
+                windows++;
+            }
+        }
+        return windows > 0 ? total / windows : 1;
+    }
+
+    private static double luminance(int rgb) {
+        return 0.299 * ((rgb >> 16) & 0xFF) + 0.587 * ((rgb >> 8) & 0xFF) + 0.114 * (rgb & 0xFF);
+    }
+
+    private static String format(double value) {
+        return String.format("%.4f", value);
+    }
+
+    private static Map<String, Measure> readBaseline() throws Exception {
+        try (InputStream in = RegressionSuiteTest.class.getResourceAsStream("/" + BASELINE)) {
+            if (in == null) {
+                return null;
+            }
+            String json = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            return new Gson().fromJson(json, new TypeToken<TreeMap<String, Measure>>() {}.getType());
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.macrostacking;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/** Submit, status and result against a server on localhost. */
+class StackServerTest {
+    private static final int WIDTH = 160;
+    private static final int HEIGHT = 120;
+
+    @TempDir
+    Path tempDir;
+
+    private final Gson gson = new Gson();
+    private final HttpClient client = HttpClient.newHttpClient();
+    private StackServer server;
+    private String base;
+    private List<String> files;
+
+    @BeforeEach
+    void startServer() throws Exception {
+        BufferedImage[] frames = new SyntheticStack(WIDTH, HEIGHT, 4).render();
+        files = new ArrayList<>();
+        for (int i = 0; i < frames.length; i++) {
+            File file = tempDir.resolve("f" + i + ".png").toFile();
+            ImageIO.write(frames[i], "png", file);
+            files.add(file.getAbsolutePath());
+        }
+        server = new StackServer(2, Runtime.getRuntime().maxMemory() / 2, tempDir.resolve("jobs").toFile());
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.stop();
+    }
+
+    private void start(String token) throws IOException {
+        server.setToken(token);
+        int port = server.start(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        base = "http://127.0.0.1:" + port + "/jobs";
+    }
+
+    private HttpResponse<byte[]> send(HttpRequest.Builder request) throws Exception {
+        return client.send(request.build(), HttpResponse.BodyHandlers.ofByteArray());
+    }
+
+    private HttpResponse<byte[]> submit(Map<String, Object> body, String token) throws Exception {
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(base))
+                .POST(HttpRequest.BodyPublishers.ofString(gson.toJson(body)));
+        if (token != null) {
+            request.header("Authorization", "Bearer " + token);
+        }
+        return send(request);
+    }
+
+    private JsonObject json(HttpResponse<byte[]> response) {
+        return gson.fromJson(new String(response.body()), JsonObject.class);
+    }
+
+    @Test
+    void runsAJobAndServesItsResult() throws Exception {
+        start(null);
+        HttpResponse<byte[]> submitted = submit(Map.of("files", files, "format", "PNG", "threads", 1), null);
+        assertEquals(202, submitted.statusCode());
+        String id = json(submitted).get("id").getAsString();
+
+        String state = "QUEUED";
+        for (int i = 0; i < 600 && (state.equals("QUEUED") || state.equals("RUNNING")); i++) {
+            Thread.sleep(100);
+            HttpResponse<byte[]> status = send(HttpRequest.newBuilder(URI.create(base + "/" + id)));
+            assertEquals(200, status.statusCode());
+            state = json(status).get("state").getAsString();
+        }
+        assertEquals("DONE", state);
+
+        HttpResponse<byte[]> result = send(HttpRequest.newBuilder(URI.create(base + "/" + id + "/result")));
+        assertEquals(200, result.statusCode());
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(result.body()));
+        assertNotNull(image);
+        assertTrue(image.getWidth() <= WIDTH && image.getHeight() <= HEIGHT);
+
+        // Forgotten once fetched
+        assertEquals(404, send(HttpRequest.newBuilder(URI.create(base + "/" + id))).statusCode());
+    }
+
+    @Test
+    void refusesOutputOutsideTheWorkDirectory() throws Exception {
+        start(null);
+        HttpResponse<byte[]> escaping = submit(Map.of("files", files, "output", "../evasion"), null);
+        assertEquals(400, escaping.statusCode());
+        HttpResponse<byte[]> absolute = submit(Map.of("files", files,
+                "output", tempDir.resolve("ailleurs").toAbsolutePath().toString()), null);
+        assertEquals(400, absolute.statusCode());
+        assertEquals(0, tempDir.resolve("jobs").toFile().list().length);
+    }
+
+    @Test
+    void requiresTheTokenWhenOneIsSet() throws Exception {
+        start("secret");
+        assertEquals(401, send(HttpRequest.newBuilder(URI.create(base))).statusCode());
+        assertEquals(401, submit(Map.of("files", files), "autre").statusCode());
+        HttpRequest.Builder list = HttpRequest.newBuilder(URI.create(base)).header("Authorization", "Bearer secret");
+        assertEquals(200, send(list).statusCode());
+    }
+
+    @Test
+    void refusesOtherInterfacesWithoutAToken() {
+        assertThrows(IOException.class, () -> server.start(new InetSocketAddress(0)));
+    }
+}
@@ -0,0 +1,295 @@
+package com.macrostacking;
+
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+/**
+ * Renders a synthetic focus series from a known all-in-focus scene and depth field, so
+ * stacking results can be measured against the ground truth. Frame f is sharp where the
+ * depth is f and blurred in proportion to the distance elsewhere; frames can also drift
+ * (integer shifts) and grow (magnification, as with focus breathing). Frame 0 is the
+ * reference: the ground truth is expressed in its coordinates.
+ */
+public class SyntheticStack {
+    private final int width;
+    private final int height;
+    private final int frameCount;
+    private long seed = 1;
+    private int maxShift = 0;
+    private double magnification = 0;
+    private double blurPerFrame = 1.5;
+    private int maxBlur = 12;
+
+    private double[][] scene;
+    private float[] depth;
+    private Point[] shifts;
+
+    public SyntheticStack(int width, int height, int frameCount) {
+        this.width = width;
+        this.height = height;
+        this.frameCount = Math.max(2, frameCount);
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    /** Largest drift of a frame from the reference, in pixels. */
+    public void setMaxShift(int pixels) {
+        this.maxShift = Math.max(0, pixels);
+    }
+
+    /** Scale of the last frame over the first, minus one (0.02 = 2% larger). */
+    public void setMagnification(double magnification) {
+        this.magnification = magnification;
+    }
+
+    /** Blur radius added per frame of distance from the in-focus frame. */
+    public void setBlurPerFrame(double radius) {
+        this.blurPerFrame = Math.max(0, radius);
+    }
+
+    public void setMaxBlur(int radius) {
+        this.maxBlur = Math.max(1, radius);
+    }
+
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    public int getMaxShift() {
+        return maxShift;
+    }
+
+    public double getMagnification() {
+        return magnification;
+    }
+
+    /** Index of the in-focus frame at every pixel (fractional), row by row. */
+    public float[] getDepth() {
+        build();
+        return depth;
+    }
+
+    /** Offset of a frame's content from the reference: frame(x + dx, y + dy) shows reference(x, y). */
+    public Point getShift(int frame) {
+        build();
+        return new Point(shifts[frame]);
+    }
+
+    public BufferedImage getGroundTruth() {
+        build();
+        return toImage(scene);
+    }
+
+    public BufferedImage[] render() {
+        build();
+        double[][][] levels = blurLevels();
+        BufferedImage[] frames = new BufferedImage[frameCount];
+        double[][] defocused = new double[3][width * height];
+
+        for (int f = 0; f < frameCount; f++) {
+            for (int i = 0; i < width * height; i++) {
+                double radius = Math.min(maxBlur, Math.abs(depth[i] - f) * blurPerFrame);
+                int low = (int) radius;
+                int high = Math.min(maxBlur, low + 1);
+                double t = radius - low;
+                for (int c = 0; c < 3; c++) {
+                    defocused[c][i] = levels[low][c][i] * (1 - t) + levels[high][c][i] * t;
+                }
+            }
+            frames[f] = toImage(warp(defocused, f));
+        }
+        return frames;
+    }
+
+    private void build() {
+        if (scene != null) {
+            return;
+        }
+        Random random = new Random(seed);
+        scene = createScene(random);
+        depth = createDepth(random);
+        shifts = new Point[frameCount];
+        shifts[0] = new Point(0, 0);
+        // Slow drift with jitter, as on a focusing rail
+        double driftX = (random.nextDouble() * 2 - 1) * maxShift;
+        double driftY = (random.nextDouble() * 2 - 1) * maxShift;
+        for (int f = 1; f < frameCount; f++) {
+            double t = f / (double) (frameCount - 1);
+            int jitter = Math.max(1, maxShift / 4);
+            int dx = (int) Math.round(driftX * t) + (maxShift > 0 ? random.nextInt(2 * jitter + 1) - jitter : 0);
+            int dy = (int) Math.round(driftY * t) + (maxShift > 0 ? random.nextInt(2 * jitter + 1) - jitter : 0);
+            shifts[f] = new Point(clamp(dx, -maxShift, maxShift), clamp(dy, -maxShift, maxShift));
+        }
+    }
+
+    /** Smooth colour gradients, hard-edged discs and fine texture: detail at every scale. */
+    private double[][] createScene(Random random) {
+        double[][] planes = new double[3][width * height];
+        double[] base = new double[3];
+        double[] slope = new double[3];
+        for (int c = 0; c < 3; c++) {
+            base[c] = 60 + random.nextDouble() * 80;
+            slope[c] = (random.nextDouble() * 2 - 1) * 60;
+        }
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                double t = (x + y) / (double) (width + height);
+                for (int c = 0; c < 3; c++) {
+                    planes[c][y * width + x] = base[c] + slope[c] * t;
+                }
+            }
+        }
+
+        int discs = Math.max(8, width * height / 6000);
+        for (int d = 0; d < discs; d++) {
+            int cx = random.nextInt(width);
+            int cy = random.nextInt(height);
+            int r = 3 + random.nextInt(Math.max(4, Math.min(width, height) / 12));
+            double[] colour = {random.nextInt(256), random.nextInt(256), random.nextInt(256)};
+            for (int y = Math.max(0, cy - r); y < Math.min(height, cy + r + 1); y++) {
+                for (int x = Math.max(0, cx - r); x < Math.min(width, cx + r + 1); x++) {
+                    if ((x - cx) * (x - cx) + (y - cy) * (y - cy) <= r * r) {
+                        for (int c = 0; c < 3; c++) {
+                            planes[c][y * width + x] = colour[c];
+                        }
+                    }
+                }
+            }
+        }
+
+        for (int i = 0; i < width * height; i++) {
+            double grain = (random.nextDouble() * 2 - 1) * 40;
+            for (int c = 0; c < 3; c++) {
+                planes[c][i] = Math.max(0, Math.min(255, planes[c][i] + grain));
+            }
+        }
+        return planes;
+    }
+
+    /** A tilted plane with a bump, spanning every frame of the series. */
+    private float[] createDepth(Random random) {
+        float[] field = new float[width * height];
+        double angle = random.nextDouble() * Math.PI * 2;
+        double bumpX = width * (0.3 + random.nextDouble() * 0.4);
+        double bumpY = height * (0.3 + random.nextDouble() * 0.4);
+        double bumpSigma = Math.min(width, height) / 5.0;
+        double min = Double.MAX_VALUE;
+        double max = -Double.MAX_VALUE;
+        double[] raw = new double[width * height];
+
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                double plane = (x * Math.cos(angle) + y * Math.sin(angle)) / Math.max(width, height);
+                double d2 = (x - bumpX) * (x - bumpX) + (y - bumpY) * (y - bumpY);
+                double value = plane + 0.6 * Math.exp(-d2 / (2 * bumpSigma * bumpSigma));
+                raw[y * width + x] = value;
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+            }
+        }
+        for (int i = 0; i < raw.length; i++) {
+            field[i] = (float) ((raw[i] - min) / (max - min) * (frameCount - 1));
+        }
+        return field;
+    }
+
+    /** The scene blurred at every integer radius, each level a twice-applied box (near Gaussian). */
+    private double[][][] blurLevels() {
+        double[][][] levels = new double[maxBlur + 1][][];
+        levels[0] = scene;
+        double[] temp = new double[width * height];
+        for (int r = 1; r <= maxBlur; r++) {
+            levels[r] = new double[3][];
+            for (int c = 0; c < 3; c++) {
+                double[] plane = scene[c].clone();
+                int half = Math.max(1, r / 2);
+                for (int pass = 0; pass < 2; pass++) {
+                    boxHorizontal(plane, temp, half);
+                    boxVertical(temp, plane, half);
+                }
+                levels[r][c] = plane;
+            }
+        }
+        return levels;
+    }
+
+    private void boxHorizontal(double[] src, double[] dst, int radius) {
+        for (int y = 0; y < height; y++) {
+            int row = y * width;
+            for (int x = 0; x < width; x++) {
+                double sum = 0;
+                for (int k = -radius; k <= radius; k++) {
+                    sum += src[row + clamp(x + k, 0, width - 1)];
+                }
+                dst[row + x] = sum / (2 * radius + 1);
+            }
+        }
+    }
+
+    private void boxVertical(double[] src, double[] dst, int radius) {
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                double sum = 0;
+                for (int k = -radius; k <= radius; k++) {
+                    sum += src[clamp(y + k, 0, height - 1) * width + x];
+                }
+                dst[y * width + x] = sum / (2 * radius + 1);
+            }
+        }
+    }
+
+    /** Moves a reference-space plane into frame f: shift, then scale about the centre (bilinear). */
+    private double[][] warp(double[][] planes, int f) {
+        double scale = 1 + magnification * f / (frameCount - 1);
+        Point shift = shifts[f];
+        if (scale == 1 && shift.x == 0 && shift.y == 0) {
+            return planes;
+        }
+
+        double cx = (width - 1) / 2.0;
+        double cy = (height - 1) / 2.0;
+        double[][] out = new double[3][width * height];
+        for (int y = 0; y < height; y++) {
+            double v = cy + (y - shift.y - cy) / scale;
+            int y0 = clamp((int) Math.floor(v), 0, height - 1);
+            int y1 = clamp(y0 + 1, 0, height - 1);
+            double ty = Math.max(0, Math.min(1, v - y0));
+            for (int x = 0; x < width; x++) {
+                double u = cx + (x - shift.x - cx) / scale;
+                int x0 = clamp((int) Math.floor(u), 0, width - 1);
+                int x1 = clamp(x0 + 1, 0, width - 1);
+                double tx = Math.max(0, Math.min(1, u - x0));
+                for (int c = 0; c < 3; c++) {
+                    double[] p = planes[c];
+                    double top = p[y0 * width + x0] * (1 - tx) + p[y0 * width + x1] * tx;
+                    double bottom = p[y1 * width + x0] * (1 - tx) + p[y1 * width + x1] * tx;
+                    out[c][y * width + x] = top * (1 - ty) + bottom * ty;
+                }
+            }
+        }
+        return out;
+    }
+
+    private BufferedImage toImage(double[][] planes) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int i = y * width + x;
+                int r = clamp((int) Math.round(planes[0][i]), 0, 255);
+                int g = clamp((int) Math.round(planes[1][i]), 0, 255);
+                int b = clamp((int) Math.round(planes[2][i]), 0, 255);
+                row[x] = (r << 16) | (g << 8) | b;
+            }
+            image.setRGB(0, y, width, 1, row, 0, width);
+        }
+        return image;
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+}